@@ -29,6 +29,144 @@ public class NanoFiles {
 	 *  Tamaño default del chunk que se descarga
 	 */
 	public static int DEFAULT_CHUNK_SIZE = 8000;
+	/**
+	 * Número máximo de chunks solicitados y todavía no recibidos por cada conexión
+	 * con un servidor durante una descarga
+	 */
+	public static int PIPELINE_WINDOW = 64;
+	/**
+	 * Número de chunks consecutivos que se piden a un servidor en cada petición
+	 * GET_RANGE
+	 */
+	public static int RANGE_CHUNKS = 16;
+	/**
+	 * Número máximo de veces que se vuelve a pedir un chunk que llega corrupto
+	 * (CRC32C incorrecto) antes de abortar la descarga
+	 */
+	public static int MAX_CHUNK_RETRIES = 3;
+	/**
+	 * Tamaño de las piezas del árbol de Merkle que el servidor anuncia para cada
+	 * fichero, con el que el cliente verifica cada pieza según la recibe
+	 */
+	public static int PIECE_SIZE = 32 * DEFAULT_CHUNK_SIZE;
+	/**
+	 * Si está activo, una descarga interrumpida deja el fichero parcial y un
+	 * fichero de progreso (.nfresume) en la carpeta de descargas, y al volver a
+	 * lanzarla sólo se piden los chunks que faltan
+	 */
+	public static boolean RESUMABLE_DOWNLOADS = true;
+	/**
+	 * Número máximo de chunks recibidos a la espera de escribirse en disco. Con 0
+	 * el hilo que recibe los chunks de todas las conexiones los escribe él mismo;
+	 * con más, un hilo aparte los escribe y, cuando la cola se llena, se deja de
+	 * leer de las conexiones hasta que baja
+	 */
+	public static int DISK_WRITER_QUEUE = PIPELINE_WINDOW;
+	/**
+	 * Número máximo de chunks recibidos fuera de orden que se guardan en memoria
+	 * para calcular el hash del fichero durante la descarga (0 para calcularlo al
+	 * final, volviendo a leer el fichero)
+	 */
+	public static int HASH_REORDER_CHUNKS = 256;
+	/**
+	 * Número máximo de veces que se consulta al directorio durante una descarga
+	 * para sustituir a los servidores que fallan
+	 */
+	public static int MAX_SERVER_LOOKUPS = 3;
+	/**
+	 * Número de chunks sin completar a partir del cual los que faltan se piden
+	 * también a los hosts que ya no tienen trabajo (endgame), y el primero que
+	 * llega se queda (0 para desactivarlo)
+	 */
+	public static int ENDGAME_CHUNKS = 2 * PIPELINE_WINDOW;
+	/**
+	 * Tiempo máximo (ms) para conectar con un servidor al empezar una descarga
+	 */
+	public static int CONNECT_TIMEOUT_MS = 3000;
+	/**
+	 * Tiempo máximo (ms) que se espera la respuesta de un servidor a la petición
+	 * de descarga; la descarga empieza con el primero que la aprueba y el resto se
+	 * suman según responden
+	 */
+	public static long NEGOTIATION_TIMEOUT_MS = 5000;
+	/**
+	 * Número máximo de conexiones que se establecen a la vez al negociar una
+	 * descarga
+	 */
+	public static int MAX_PARALLEL_NEGOTIATIONS = 16;
+	/**
+	 * Número máximo de descargas encoladas con el comando download que se
+	 * ejecutan a la vez en segundo plano
+	 */
+	public static int MAX_CONCURRENT_DOWNLOADS = 3;
+	/**
+	 * Número máximo de conexiones con servidores entre todas las descargas en
+	 * curso
+	 */
+	public static int MAX_TOTAL_CONNECTIONS = 64;
+	/**
+	 * Caudal máximo (bytes/s) entre todas las descargas en curso (0 sin límite)
+	 */
+	public static long MAX_DOWNLOAD_RATE = 0;
+	/**
+	 * Número de ficheros que se descargan a la vez por cada conexión en
+	 * download-all, cada uno en su stream
+	 */
+	public static int STREAMS_PER_CONNECTION = 4;
+	/**
+	 * Número de conexiones que se abren con cada host al empezar una descarga
+	 */
+	public static int CONNECTIONS_PER_HOST = 1;
+	/**
+	 * Número máximo de conexiones con un mismo host durante una descarga. Se
+	 * abren más (hasta este límite) mientras el RTT medido con el host no deje
+	 * llenar el enlace con PIPELINE_WINDOW chunks en vuelo por conexión
+	 */
+	public static int MAX_CONNECTIONS_PER_HOST = 4;
+	/**
+	 * Número máximo de conexiones con un mismo host que se conservan al terminar
+	 * las descargas para reutilizarlas en las siguientes (0 para no reutilizarlas)
+	 */
+	public static int POOLED_CONNECTIONS_PER_HOST = MAX_CONNECTIONS_PER_HOST;
+	/**
+	 * Tiempo máximo (ms) que se conserva una conexión sin usarse
+	 */
+	public static long POOLED_CONNECTION_IDLE_MS = 60000;
+	/**
+	 * Las conexiones conservadas que llevan más de este tiempo (ms) sin usarse se
+	 * comprueban con un PING antes de reutilizarlas
+	 */
+	public static long POOLED_CONNECTION_CHECK_MS = 1000;
+	/**
+	 * Un host va retrasado si su siguiente chunk tarda más de STRAGGLER_RATIO
+	 * veces lo que tarda de media un chunk del host más rápido (más su RTT): sus
+	 * chunks vencidos se piden a otro host y se reduce su ventana (0 para
+	 * desactivarlo)
+	 */
+	public static int STRAGGLER_RATIO = 8;
+	/**
+	 * Plazo mínimo (ms) para recibir el siguiente chunk de un host antes de
+	 * considerarlo retrasado
+	 */
+	public static long MIN_CHUNK_DEADLINE_MS = 250;
+	/**
+	 * Tiempo máximo (ms) sin recibir ningún chunk de un host con chunks pedidos
+	 * antes de cerrar su conexión
+	 */
+	public static long PEER_STALL_TIMEOUT_MS = 10000;
+	/**
+	 * Cada cuánto (ms) se comprueban los plazos de los chunks pedidos
+	 */
+	public static long DEADLINE_CHECK_INTERVAL_MS = 100;
+	/**
+	 * Intervalo mínimo (ms) entre dos guardados del progreso de una descarga
+	 */
+	public static long RESUME_SAVE_INTERVAL_MS = 1000;
+	/**
+	 * Número de hilos con los que se recorre la carpeta compartida y se calculan
+	 * los hash de sus ficheros al arrancar (1 para hacerlo secuencialmente)
+	 */
+	public static int SCAN_PARALLELISM = Runtime.getRuntime().availableProcessors();
 
 	public static void main(String[] args) {
 		System.setProperty("java.net.useSystemProxies", "false");
@@ -0,0 +1,807 @@
+package es.um.redes.nanoFiles.logic;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import es.um.redes.nanoFiles.application.NanoFiles;
+import es.um.redes.nanoFiles.tcp.client.NFAsyncConnector;
+import es.um.redes.nanoFiles.tcp.client.NFClientEventLoop;
+import es.um.redes.nanoFiles.tcp.client.NFConnector;
+import es.um.redes.nanoFiles.tcp.client.NFConnectorPool;
+import es.um.redes.nanoFiles.tcp.message.PeerMessage;
+import es.um.redes.nanoFiles.tcp.message.PeerMessageOps;
+import es.um.redes.nanoFiles.util.BandwidthLimiter;
+import es.um.redes.nanoFiles.util.ByteBufferPool;
+import es.um.redes.nanoFiles.util.FileDigest;
+import es.um.redes.nanoFiles.util.RemoteFile;
+
+/**
+ * Descarga de todos los ficheros que coinciden con un patrón (download-all).
+ *
+ * Los ficheros se agrupan por servidor: con cada servidor que comparte alguno
+ * se abre una sola conexión, por la que se descargan todos los que le tocan, y
+ * los servidores trabajan en paralelo. Las conexiones son asíncronas
+ * (NFAsyncConnector) y las lleva todas un mismo NFClientEventLoop, así que el
+ * número de hilos no crece con el de servidores: aparte del bucle sólo hay unos
+ * pocos hilos que conectan con ellos. Cada fichero se descarga entero
+ * de un servidor (se suponen ficheros pequeños, para los que repartir los
+ * chunks entre varios no compensa) en un stream propio: se pide con
+ * OPEN_STREAM y un GET_STREAM_RANGE del fichero completo en la misma escritura.
+ * Hay hasta STREAMS_PER_CONNECTION ficheros abiertos a la vez en cada conexión,
+ * cuyos chunks envía el servidor intercalados, así al terminar un fichero ya
+ * están llegando los siguientes y no se pierde un RTT entre fichero y fichero.
+ *
+ * Cada conexión toma primero los ficheros que tienen menos servidores, para que
+ * los que sólo tiene él no esperen a que termine con los que también tienen
+ * otros. Si un servidor no puede dar un fichero (no lo aprueba, los datos no
+ * coinciden o se cae la conexión), el fichero pasa a los demás servidores que
+ * lo tienen; la conexión sigue sirviendo para el resto de ficheros salvo que
+ * sea ella la que falla. Al terminar, las conexiones vuelven al NFConnectorPool.
+ *
+ * El hilo del bucle nunca se bloquea: los chunks recibidos se copian y se
+ * guardan (hash y escritura en disco) en unos pocos hilos de escritura, en
+ * orden dentro de cada fichero. Si una conexión acumula MAX_QUEUED_WRITES
+ * chunks sin guardar, o el BandwidthLimiter pide esperar, se deja de leer de
+ * ella (NFAsyncConnector.pauseReading) y el servidor deja de enviar.
+ *
+ * Cada fichero se escribe con un nombre temporal (PART_SUFFIX) y sólo se
+ * renombra al suyo cuando su hash es correcto, así en la carpeta de descargas
+ * nunca queda un fichero incompleto con el nombre definitivo.
+ */
+class BulkDownload {
+
+	/**
+	 * Sufijo del nombre con el que se escribe un fichero mientras se descarga
+	 */
+	static final String PART_SUFFIX = ".nfpart";
+	/**
+	 * Ficheros temporales que está escribiendo alguna descarga de este proceso.
+	 * Los que no están aquí son restos de una ejecución interrumpida y se
+	 * sobrescriben.
+	 */
+	private static final Set<File> partFilesInUse = new HashSet<>();
+	/**
+	 * Número máximo de chunks recibidos por una conexión pendientes de guardar;
+	 * al llegar a él se deja de leer de la conexión
+	 */
+	private static final int MAX_QUEUED_WRITES = 64;
+	private static final ByteBufferPool chunkBufferPool = new ByteBufferPool(NanoFiles.DEFAULT_CHUNK_SIZE, 256);
+
+	/**
+	 * Un fichero a descargar y los servidores que ya han fallado al darlo
+	 */
+	private static final class Entry {
+		final RemoteFile file;
+		final Set<InetSocketAddress> failedPeers = new HashSet<>();
+		boolean taken = false;
+		boolean done = false;
+
+		Entry(RemoteFile file) {
+			this.file = file;
+		}
+	}
+
+	/**
+	 * Conexión con un servidor y los ficheros que se descargan por ella. Sólo se
+	 * usa desde el hilo del bucle de eventos.
+	 */
+	private static final class PeerSession {
+		final InetSocketAddress peer;
+		final NFAsyncConnector connector;
+		// Ficheros en curso por identificador de stream
+		final Map<Integer, Transfer> transfers = new HashMap<>();
+		int nextStreamId = 1;
+		// Chunks recibidos pendientes de guardar en los hilos de escritura
+		int queuedWrites = 0;
+		boolean ended = false;
+
+		PeerSession(InetSocketAddress peer, NFAsyncConnector connector) {
+			this.peer = peer;
+			this.connector = connector;
+		}
+	}
+
+	/**
+	 * Un fichero que se está descargando por un stream de una conexión. Sus
+	 * campos los usa el hilo del bucle, salvo md y channel, que una vez aprobado
+	 * el fichero sólo usan las escrituras encadenadas en writes.
+	 */
+	private static final class Transfer {
+		final int streamId;
+		final Entry entry;
+		// Nombre definitivo del fichero y nombre temporal con el que se escribe
+		File localFile = null;
+		File partFile = null;
+		FileChannel channel = null;
+		MessageDigest md = null;
+		long received = 0;
+		/**
+		 * Última escritura del fichero: cada chunk se guarda cuando ha terminado la
+		 * del anterior, así el hash se calcula en orden
+		 */
+		CompletableFuture<Void> writes = CompletableFuture.completedFuture(null);
+		// Primer error al escribir el fichero (las escrituras siguientes se descartan)
+		volatile IOException writeError = null;
+
+		Transfer(int streamId, Entry entry) {
+			this.streamId = streamId;
+			this.entry = entry;
+		}
+
+		/**
+		 * Guarda un chunk (en un hilo de escritura) y devuelve su buffer al pool
+		 */
+		void write(ByteBuffer data, FileChannel channel) {
+			try {
+				if (writeError == null) {
+					md.update(data.duplicate());
+					while (data.hasRemaining()) {
+						channel.write(data);
+					}
+				}
+			} catch (IOException e) {
+				writeError = e;
+			} finally {
+				chunkBufferPool.release(data);
+			}
+		}
+	}
+
+	private final File downloadsDir;
+	private final Semaphore connectionPermits;
+	private final NFConnectorPool connectorPool;
+	private final BandwidthLimiter limiter;
+	private final DownloadJob job;
+
+	// Ficheros pendientes de cada servidor, los que tienen menos servidores primero
+	private final Map<InetSocketAddress, ArrayDeque<Entry>> queues = new LinkedHashMap<>();
+	// Servidores cuya conexión sigue activa, a los que se pueden pasar ficheros
+	private final Set<InetSocketAddress> livePeers = new HashSet<>();
+	// Conexiones sin ficheros en curso que esperan por si otro servidor falla y les pasa alguno
+	private final List<PeerSession> parkedSessions = new ArrayList<>();
+	// Conexiones abiertas (sólo se usa desde el hilo del bucle)
+	private final Set<PeerSession> sessions = new HashSet<>();
+	private NFClientEventLoop loop;
+	// Hilos que guardan los chunks recibidos
+	private ExecutorService writeThreads;
+	// Servidores que aún no han terminado (conectando o descargando)
+	private CountDownLatch peersDone;
+	// Ficheros descargados por cada servidor
+	private final Map<InetSocketAddress, Integer> filesByPeer = new LinkedHashMap<>();
+	private final int totalFiles;
+	private int inProgress = 0;
+	private int completedFiles = 0;
+	private long completedBytes = 0;
+
+	/**
+	 * @param files             Ficheros a descargar, cada uno con sus servidores
+	 * @param downloadsDir      Carpeta donde se guardan, con su nombre
+	 * @param connectionPermits Límite global de conexiones (null sin límite)
+	 * @param connectorPool     Pool del que se toman las conexiones
+	 * @param limiter           Límite de caudal (null sin límite)
+	 * @param job               Trabajo del DownloadManager que puede pedir
+	 *                          pararla (null si no hay)
+	 */
+	BulkDownload(List<RemoteFile> files, File downloadsDir, Semaphore connectionPermits, NFConnectorPool connectorPool,
+			BandwidthLimiter limiter, DownloadJob job) {
+		this.downloadsDir = downloadsDir;
+		this.connectionPermits = connectionPermits;
+		this.connectorPool = connectorPool;
+		this.limiter = limiter;
+		this.job = job;
+		this.totalFiles = files.size();
+		List<RemoteFile> sorted = new ArrayList<>(files);
+		sorted.sort(Comparator.comparingInt((RemoteFile file) -> file.servers.length)
+				.thenComparing(RemoteFile::getFileName));
+		for (RemoteFile file : sorted) {
+			Entry entry = new Entry(file);
+			for (InetSocketAddress server : file.servers) {
+				queues.computeIfAbsent(server, peer -> new ArrayDeque<>()).add(entry);
+			}
+		}
+		livePeers.addAll(queues.keySet());
+	}
+
+	int getTotalFiles() {
+		return totalFiles;
+	}
+
+	synchronized int getCompletedFiles() {
+		return completedFiles;
+	}
+
+	synchronized long getCompletedBytes() {
+		return completedBytes;
+	}
+
+	/**
+	 * @return Número de ficheros descargados de cada servidor
+	 */
+	synchronized Map<InetSocketAddress, Integer> getFilesByPeer() {
+		return new LinkedHashMap<>(filesByPeer);
+	}
+
+	/**
+	 * Descarga los ficheros: conecta con los servidores (como mucho
+	 * MAX_PARALLEL_NEGOTIATIONS a la vez) y el bucle de eventos lleva todas las
+	 * conexiones
+	 *
+	 * @return Verdadero si se han descargado todos
+	 */
+	boolean run() {
+		try {
+			loop = new NFClientEventLoop("BulkDownload");
+		} catch (IOException e) {
+			System.err.println("[-] Error starting download: " + e.getMessage());
+			return false;
+		}
+		peersDone = new CountDownLatch(queues.size());
+		writeThreads = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), queues.size())), task -> {
+					Thread thread = new Thread(task, "BulkDownload-write");
+					thread.setDaemon(true);
+					return thread;
+				});
+		ExecutorService connectThreads = Executors
+				.newFixedThreadPool(Math.max(1, Math.min(NanoFiles.MAX_PARALLEL_NEGOTIATIONS, queues.size())), task -> {
+					Thread thread = new Thread(task, "BulkDownload-connect");
+					thread.setDaemon(true);
+					return thread;
+				});
+		for (InetSocketAddress peer : queues.keySet()) {
+			connectThreads.execute(() -> connect(peer));
+		}
+		connectThreads.shutdown();
+		try {
+			boolean stopping = false;
+			while (!peersDone.await(NanoFiles.DEADLINE_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+				// Las conexiones que se abran después ven la petición al empezar
+				if (isStopRequested() && !stopping) {
+					stopping = true;
+					loop.execute(this::stopSessions);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			connectThreads.shutdownNow();
+			loop.close();
+			// Las escrituras que queden son de ficheros ya descartados
+			writeThreads.shutdown();
+		}
+		return getCompletedFiles() == totalFiles;
+	}
+
+	private boolean isStopRequested() {
+		return job != null && job.isStopRequested();
+	}
+
+	/**
+	 * Conecta con un servidor (en uno de los hilos que conectan) y pasa la
+	 * conexión al bucle de eventos
+	 */
+	private void connect(InetSocketAddress peer) {
+		boolean holdsPermit = false;
+		boolean started = false;
+		try {
+			if (!hasWork(peer)) {
+				return;
+			}
+			holdsPermit = acquirePermit();
+			if (!holdsPermit) {
+				return;
+			}
+			NFConnector connector;
+			try {
+				connector = connectorPool.lease(peer, NanoFiles.CONNECT_TIMEOUT_MS);
+			} catch (IOException | IllegalArgumentException e) {
+				System.err.println("\t[-] Cannot connect to host " + peer + ". Removing from hosts list");
+				return;
+			}
+			// A partir de aquí la conexión y su permiso son de la sesión
+			PeerSession session = new PeerSession(peer, loop.attach(connector));
+			started = true;
+			loop.execute(() -> start(session));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (!started) {
+				peerExited(peer);
+				if (holdsPermit && connectionPermits != null) {
+					connectionPermits.release();
+				}
+				peersDone.countDown();
+			}
+		}
+	}
+
+	/**
+	 * Empieza a descargar por una conexión recién abierta
+	 */
+	private void start(PeerSession session) {
+		sessions.add(session);
+		session.connector.setMessageHandler(message -> handleMessage(session, message));
+		session.connector.whenClosed().whenComplete((result, error) -> {
+			if (error != null) {
+				connectionLost(session);
+			}
+		});
+		fill(session);
+	}
+
+	/**
+	 * Abre streams hasta el límite con los ficheros pendientes del servidor. Si no
+	 * queda ninguno en curso, la conexión espera mientras otros servidores estén
+	 * descargando ficheros que podrían pasarle si fallan, o termina si no.
+	 */
+	private void fill(PeerSession session) {
+		if (session.ended) {
+			return;
+		}
+		if (isStopRequested()) {
+			end(session, true);
+			return;
+		}
+		while (session.transfers.size() < NanoFiles.STREAMS_PER_CONNECTION) {
+			Entry entry = take(session.peer);
+			if (entry == null) {
+				break;
+			}
+			open(session, entry);
+		}
+		if (session.transfers.isEmpty() && !park(session)) {
+			end(session, true);
+		}
+	}
+
+	/**
+	 * Pide un fichero en un stream nuevo: OPEN_STREAM y, sin esperar la
+	 * respuesta, el GET_STREAM_RANGE del fichero completo
+	 */
+	private void open(PeerSession session, Entry entry) {
+		Transfer transfer = new Transfer(session.nextStreamId++, entry);
+		session.transfers.put(transfer.streamId, transfer);
+		session.connector
+				.request(PeerMessage.PeerMessageOpenStream(transfer.streamId, entry.file.getFileName()),
+						NanoFiles.NEGOTIATION_TIMEOUT_MS)
+				.whenComplete((response, error) -> opened(session, transfer, response, error));
+		session.connector.send(PeerMessage.PeerMessageGetStreamRange(transfer.streamId, 0, entry.file.getFileSize()));
+	}
+
+	/**
+	 * Procesa la respuesta del servidor a un OPEN_STREAM
+	 */
+	private void opened(PeerSession session, Transfer transfer, PeerMessage response, Throwable error) {
+		if (session.ended || session.transfers.get(transfer.streamId) != transfer) {
+			return;
+		}
+		if (error != null) {
+			// Sin respuesta en el plazo o conexión caída
+			connectionLost(session);
+			return;
+		}
+		if (response.getOpcode() == PeerMessageOps.OPCODE_STREAM_REJECT) {
+			System.err.println("\t[-] Host " + session.peer + " did not aprove download of " + transfer.entry.file.getFileName());
+			transferDone(session, transfer, false);
+		} else if (!approve(transfer, response, session.peer)) {
+			reject(session, transfer);
+		} else if (transfer.entry.file.getFileSize() == 0) {
+			complete(session, transfer);
+		}
+	}
+
+	/**
+	 * Procesa un mensaje recibido por la conexión con un servidor que no responde
+	 * a ninguna petición: los chunks de los ficheros. Si el servidor no sigue el
+	 * protocolo se deja la conexión.
+	 */
+	private void handleMessage(PeerSession session, PeerMessage message) {
+		if (session.ended) {
+			return;
+		}
+		InetSocketAddress peer = session.peer;
+		// Los mensajes de streams ya cerrados por nosotros se ignoran
+		Transfer transfer = session.transfers.get(message.getRequestId());
+		switch (message.getOpcode()) {
+		case PeerMessageOps.OPCODE_SEND_TAGGED_CHUNK:
+			if (transfer == null) {
+				return;
+			}
+			if (transfer.channel == null) {
+				// Chunk de un fichero que el servidor no ha aprobado
+				end(session, false);
+				return;
+			}
+			if (!message.isChunkIntact()) {
+				System.err.println("\t[-] Chunk of " + transfer.entry.file.getFileName() + " from host " + peer + " is corrupt (CRC32C mismatch)");
+				reject(session, transfer);
+				return;
+			}
+			int chunkSize = message.getChunckSize();
+			if (transfer.received + chunkSize > transfer.entry.file.getFileSize()) {
+				System.err.println("\t[-] Host " + peer + " sent more data than the size of " + transfer.entry.file.getFileName());
+				end(session, false);
+				return;
+			}
+			if (limiter != null) {
+				// En vez de esperar aquí, se deja de leer de la conexión el tiempo que pide el límite
+				long waitNanos = limiter.reserve(chunkSize);
+				if (waitNanos > 0) {
+					session.connector.pauseReading(waitNanos, TimeUnit.NANOSECONDS);
+				}
+			}
+			queueWrite(session, transfer, message.getChunkBuffer());
+			transfer.received += chunkSize;
+			if (transfer.received == transfer.entry.file.getFileSize()) {
+				// Se comprueba el hash cuando se haya guardado todo
+				transfer.writes.whenComplete((result, error) -> loop.execute(() -> written(session, transfer)));
+			}
+			return;
+		case PeerMessageOps.OPCODE_CLOSE_STREAM:
+			return;
+		default:
+			System.err.println("\t[-] Host " + peer + " sent an unexpected message ("
+					+ PeerMessageOps.opcodeToOperation(message.getOpcode()) + ")");
+			end(session, false);
+		}
+	}
+
+	/**
+	 * Copia un chunk recibido y lo encola para guardarlo en un hilo de escritura,
+	 * detrás de los anteriores del mismo fichero. Si la conexión acumula
+	 * demasiados chunks sin guardar, se deja de leer de ella hasta que baje.
+	 */
+	private void queueWrite(PeerSession session, Transfer transfer, ByteBuffer chunk) {
+		ByteBuffer data = (chunk.remaining() <= chunkBufferPool.getBufferSize()) ? chunkBufferPool.acquire()
+				: ByteBuffer.allocate(chunk.remaining());
+		data.put(chunk.duplicate()).flip();
+		FileChannel channel = transfer.channel;
+		if (++session.queuedWrites == MAX_QUEUED_WRITES) {
+			session.connector.pauseReading();
+		}
+		transfer.writes = transfer.writes.thenRunAsync(() -> transfer.write(data, channel), writeThreads)
+				.whenComplete((result, error) -> loop.execute(() -> chunkWritten(session)));
+	}
+
+	/**
+	 * Un chunk de la conexión se ha guardado (o descartado)
+	 */
+	private void chunkWritten(PeerSession session) {
+		if (session.queuedWrites-- == MAX_QUEUED_WRITES) {
+			session.connector.resumeReading();
+		}
+	}
+
+	/**
+	 * Se ha guardado el último chunk de un fichero: se comprueba, salvo que se
+	 * haya descartado mientras tanto
+	 */
+	private void written(PeerSession session, Transfer transfer) {
+		if (session.ended || session.transfers.get(transfer.streamId) != transfer) {
+			return;
+		}
+		complete(session, transfer);
+	}
+
+	/**
+	 * Comprueba que el fichero aprobado por el servidor es el del directorio y
+	 * crea el fichero temporal donde se guarda
+	 *
+	 * @return Falso si no se puede descargar de este servidor
+	 */
+	private boolean approve(Transfer transfer, PeerMessage approval, InetSocketAddress peer) {
+		RemoteFile remoteFile = transfer.entry.file;
+		if (!remoteFile.getFileHash().equals(approval.getHashCode())
+				|| remoteFile.getFileSize() != (long) approval.getFileSize()) {
+			System.err.println("\t[-] Host " + peer + " returned inconsistent file data (Hash/Size mismatch) for "
+					+ remoteFile.getFileName());
+			return false;
+		}
+		File localFile = new File(downloadsDir, new File(remoteFile.getFileName()).getName());
+		File partFile = new File(downloadsDir, localFile.getName() + PART_SUFFIX);
+		if (localFile.exists()) {
+			System.err.println("\t[-] Error: File \"" + localFile.getName() + "\" already exists");
+			return false;
+		}
+		if (!claimPartFile(partFile)) {
+			System.err.println("\t[-] Error: File \"" + localFile.getName() + "\" is already being downloaded");
+			return false;
+		}
+		transfer.localFile = localFile;
+		transfer.partFile = partFile;
+		try {
+			transfer.channel = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			transfer.md = MessageDigest.getInstance(FileDigest.algorithm);
+		} catch (IOException | NoSuchAlgorithmException e) {
+			System.err.println("\t[-] Error creating file: " + e.getMessage());
+			discard(transfer);
+			return false;
+		}
+		return true;
+	}
+
+	private static boolean claimPartFile(File partFile) {
+		synchronized (partFilesInUse) {
+			return partFilesInUse.add(partFile.getAbsoluteFile());
+		}
+	}
+
+	private static void releasePartFile(File partFile) {
+		synchronized (partFilesInUse) {
+			partFilesInUse.remove(partFile.getAbsoluteFile());
+		}
+	}
+
+	/**
+	 * Termina un fichero recibido y guardado entero comprobando su hash, y si es
+	 * correcto le da su nombre definitivo (sin sobrescribir uno que haya aparecido
+	 * mientras)
+	 */
+	private void complete(PeerSession session, Transfer transfer) {
+		RemoteFile remoteFile = transfer.entry.file;
+		try {
+			transfer.channel.close();
+		} catch (IOException e) {
+		}
+		transfer.channel = null;
+		if (transfer.writeError != null || transfer.writes.isCompletedExceptionally()) {
+			System.err.println("[-] Error writing to local file: "
+					+ ((transfer.writeError != null) ? transfer.writeError.getMessage() : remoteFile.getFileName()));
+			reject(session, transfer);
+			return;
+		}
+		if (transfer.received != remoteFile.getFileSize()
+				|| !remoteFile.getFileHash().equals(FileDigest.getChecksumHexString(transfer.md.digest()))) {
+			System.err.println("\t[-] Error: File integrity check failed for " + remoteFile.getFileName() + " from host " + session.peer);
+			reject(session, transfer);
+			return;
+		}
+		try {
+			Files.move(transfer.partFile.toPath(), transfer.localFile.toPath());
+		} catch (IOException e) {
+			System.err.println("\t[-] Error: Could not rename downloaded file to \"" + transfer.localFile.getName() + "\": " + e);
+			reject(session, transfer);
+			return;
+		}
+		releasePartFile(transfer.partFile);
+		transfer.partFile = null;
+		// El servidor ya ha enviado todo el rango, cerramos el stream para que libere el fichero
+		session.connector.send(PeerMessage.PeerMessageCloseStream(transfer.streamId));
+		transferDone(session, transfer, true);
+	}
+
+	/**
+	 * Deja un fichero que no se ha podido descargar de este servidor: se cierra su
+	 * stream, se borra lo descargado y pasa a otros servidores
+	 */
+	private void reject(PeerSession session, Transfer transfer) {
+		session.connector.send(PeerMessage.PeerMessageCloseStream(transfer.streamId));
+		discard(transfer);
+		transferDone(session, transfer, false);
+	}
+
+	/**
+	 * Anota el resultado de un fichero de la conexión y abre el siguiente
+	 */
+	private void transferDone(PeerSession session, Transfer transfer, boolean downloaded) {
+		session.transfers.remove(transfer.streamId);
+		finished(transfer.entry, session.peer, downloaded);
+		wakeParkedSessions();
+		fill(session);
+	}
+
+	private void connectionLost(PeerSession session) {
+		if (!session.ended) {
+			System.err.println("\t[-] The conexion with host " + session.peer + " has been closed or the host have not replied");
+			end(session, false);
+		}
+	}
+
+	/**
+	 * Termina la descarga por una conexión: los ficheros a medias se borran y
+	 * pasan a otros servidores, y la conexión vuelve al pool si sigue el
+	 * protocolo (los streams que queden abiertos los cierra el PING con el que el
+	 * pool la recibe)
+	 */
+	private void end(PeerSession session, boolean reusable) {
+		if (session.ended) {
+			return;
+		}
+		session.ended = true;
+		sessions.remove(session);
+		unpark(session);
+		for (Transfer transfer : session.transfers.values()) {
+			discard(transfer);
+			finished(transfer.entry, session.peer, false);
+		}
+		session.transfers.clear();
+		peerExited(session.peer);
+		if (reusable) {
+			session.connector.detach().whenComplete((connector, error) -> {
+				if (connector != null) {
+					connectorPool.release(connector);
+				}
+				sessionClosed();
+			});
+		} else {
+			session.connector.close();
+			sessionClosed();
+		}
+		wakeParkedSessions();
+	}
+
+	private void sessionClosed() {
+		if (connectionPermits != null) {
+			connectionPermits.release();
+		}
+		peersDone.countDown();
+	}
+
+	/**
+	 * Para todas las conexiones, conservándolas en el pool
+	 */
+	private void stopSessions() {
+		for (PeerSession session : new ArrayList<>(sessions)) {
+			end(session, true);
+		}
+	}
+
+	/**
+	 * Cierra y borra el fichero temporal de una descarga que no se ha completado
+	 */
+	private void discard(Transfer transfer) {
+		if (transfer.channel != null) {
+			try {
+				transfer.channel.close();
+			} catch (IOException e) {
+			}
+			transfer.channel = null;
+		}
+		if (transfer.partFile != null) {
+			transfer.partFile.delete();
+			releasePartFile(transfer.partFile);
+			transfer.partFile = null;
+		}
+	}
+
+	/**
+	 * Espera a que haya una conexión libre en el límite global
+	 *
+	 * @return Falso si se ha pedido parar la descarga mientras tanto
+	 */
+	private boolean acquirePermit() throws InterruptedException {
+		if (connectionPermits == null) {
+			return true;
+		}
+		while (!isStopRequested()) {
+			if (connectionPermits.tryAcquire(NanoFiles.DEADLINE_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private synchronized boolean hasWork(InetSocketAddress peer) {
+		for (Entry entry : queues.get(peer)) {
+			if (!entry.taken && !entry.done) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Toma el siguiente fichero pendiente del servidor
+	 *
+	 * @return El fichero, o null si no le queda ninguno
+	 */
+	private synchronized Entry take(InetSocketAddress peer) {
+		if (isStopRequested()) {
+			return null;
+		}
+		ArrayDeque<Entry> queue = queues.get(peer);
+		Entry entry;
+		while ((entry = queue.pollFirst()) != null) {
+			if (!entry.taken && !entry.done) {
+				entry.taken = true;
+				inProgress++;
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Deja esperando una conexión sin ficheros mientras haya otros en curso, que
+	 * podrían pasarle si su servidor falla
+	 *
+	 * @return Falso si ya no le va a tocar ninguno
+	 */
+	private synchronized boolean park(PeerSession session) {
+		if (inProgress == 0 || isStopRequested()) {
+			return false;
+		}
+		parkedSessions.add(session);
+		return true;
+	}
+
+	private synchronized void unpark(PeerSession session) {
+		parkedSessions.remove(session);
+	}
+
+	/**
+	 * Tras terminar un fichero, las conexiones que esperaban vuelven a buscar
+	 * ficheros (o terminan si ya no hay ninguno en curso)
+	 */
+	private void wakeParkedSessions() {
+		List<PeerSession> woken;
+		synchronized (this) {
+			woken = new ArrayList<>(parkedSessions);
+			parkedSessions.clear();
+		}
+		for (PeerSession session : woken) {
+			fill(session);
+		}
+	}
+
+	/**
+	 * Anota el resultado de un fichero. Si el servidor no lo ha podido dar, pasa
+	 * al principio de la cola de los demás servidores que lo tienen.
+	 */
+	private synchronized void finished(Entry entry, InetSocketAddress peer, boolean downloaded) {
+		inProgress--;
+		entry.taken = false;
+		if (downloaded) {
+			entry.done = true;
+			completedFiles++;
+			completedBytes += entry.file.getFileSize();
+			filesByPeer.merge(peer, 1, Integer::sum);
+		} else {
+			entry.failedPeers.add(peer);
+			requeue(entry);
+		}
+	}
+
+	private synchronized void peerExited(InetSocketAddress peer) {
+		livePeers.remove(peer);
+	}
+
+	private void requeue(Entry entry) {
+		if (isStopRequested()) {
+			return;
+		}
+		boolean requeued = false;
+		for (InetSocketAddress server : entry.file.servers) {
+			if (livePeers.contains(server) && !entry.failedPeers.contains(server)) {
+				queues.get(server).addFirst(entry);
+				requeued = true;
+			}
+		}
+		if (!requeued) {
+			System.err.println("\t[-] No hosts left to download " + entry.file.getFileName());
+		}
+	}
+}
@@ -0,0 +1,375 @@
+package es.um.redes.nanoFiles.logic;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reparto dinámico de los chunks de una descarga entre los hosts que la sirven.
+ *
+ * Cada host (su DownloadWorker) empieza con un tramo contiguo del fichero (para
+ * que cada servidor lea de forma secuencial) y va reservando rangos de chunks
+ * de su tramo. Cuando termina el suyo, roba la mitad final del tramo con más
+ * chunks pendientes de otro host, de modo que los hosts rápidos no se quedan
+ * ociosos mientras uno lento termina su parte: el caudal total se aproxima a la
+ * suma del de todos los hosts.
+ *
+ * Los chunks que llegan corruptos vuelven a una cola de reintentos que tiene
+ * prioridad sobre los chunks nuevos, y que atiende el primer host que pida
+ * trabajo. Los chunks que ya estaban completos (al reanudar una descarga) no se
+ * reparten.
+ *
+ * Si se pierde la conexión con un host, los chunks que tenía pedidos vuelven a
+ * repartirse y su tramo pasa entero al primer host que robe. Un host sin
+ * trabajo queda a la espera (awaitWork) mientras otros sigan descargando, por si
+ * les pasa lo mismo; también se pueden añadir hosts nuevos en plena descarga.
+ * La espera no bloquea: se guarda una tarea que avisa al host cuando puede
+ * haber trabajo, de modo que todos los hosts los lleva un solo hilo
+ * (NFClientEventLoop).
+ *
+ * Al final de la descarga (endgame) los hosts sin trabajo vuelven a pedir los
+ * chunks que aún no han llegado, aunque ya los tenga pedidos otro host: el
+ * primero que llega se escribe y el resto se descarta, así un host lento no
+ * retrasa el final de la descarga.
+ *
+ * Los chunks que un host tarda demasiado en enviar (reissue) se vuelven a
+ * repartir entre los demás hosts, sin dar de baja al host que los tenía.
+ */
+class ChunkScheduler {
+
+	private final int maxRetries;
+
+	/**
+	 * Tramo de chunks todavía sin reservar de cada host: [spanNext, spanEnd)
+	 */
+	private int[] spanNext;
+	private int[] spanEnd;
+
+	/**
+	 * Hosts que han fallado, hosts que siguen descargando y, de estos, los que
+	 * esperan trabajo, con la tarea que los avisa
+	 */
+	private boolean[] dead;
+	private int liveWorkers;
+	private final Map<Integer, Runnable> waiting = new HashMap<>();
+	private boolean finished = false;
+
+	/**
+	 * Chunks que ya estaban completos al empezar, que se saltan al repartir
+	 */
+	private final BitSet alreadyCompleted;
+
+	private final ArrayDeque<Integer> retryChunks = new ArrayDeque<>();
+	// Rangos {primer chunk, chunk final} pedidos a hosts que han fallado
+	private final ArrayDeque<int[]> releasedRanges = new ArrayDeque<>();
+	// Rangos {primer chunk, chunk final, host} vencidos en un host lento, que no se le devuelven a él
+	private final ArrayDeque<int[]> reissuedRanges = new ArrayDeque<>();
+	// Rangos de chunks sin completar al entrar en endgame, que se piden otra vez
+	private final ArrayDeque<int[]> endgameRanges = new ArrayDeque<>();
+	private final int[] chunkRetries;
+
+	/**
+	 * @param totalChunks Número de chunks del fichero
+	 * @param numWorkers  Número de hosts que descargan
+	 * @param maxRetries  Número máximo de veces que se puede volver a pedir un
+	 *                    mismo chunk
+	 * @param completed   Chunks que ya están descargados
+	 */
+	ChunkScheduler(int totalChunks, int numWorkers, int maxRetries, BitSet completed) {
+		this.maxRetries = maxRetries;
+		this.alreadyCompleted = (BitSet) completed.clone();
+		spanNext = new int[numWorkers];
+		spanEnd = new int[numWorkers];
+		dead = new boolean[numWorkers];
+		liveWorkers = numWorkers;
+		for (int w = 0; w < numWorkers; w++) {
+			spanNext[w] = (int) ((long) w * totalChunks / numWorkers);
+			spanEnd[w] = (int) ((long) (w + 1) * totalChunks / numWorkers);
+		}
+		chunkRetries = new int[totalChunks];
+	}
+
+	/**
+	 * Reserva el siguiente rango de chunks consecutivos para un host: un chunk
+	 * que haya que volver a pedir, parte de un rango que tenía un host que ha
+	 * fallado o que ha vencido en un host lento, los siguientes de su tramo o, si
+	 * lo ha terminado, los de un tramo robado a otro host.
+	 *
+	 * @param worker    Índice del host
+	 * @param maxChunks Número máximo de chunks del rango
+	 * @return El rango {primer chunk, chunk final (excluido)}, o null si no queda
+	 *         trabajo por repartir
+	 */
+	synchronized int[] claim(int worker, int maxChunks) {
+		Integer retryChunk = retryChunks.poll();
+		if (retryChunk != null) {
+			return new int[] { retryChunk, retryChunk + 1 };
+		}
+		int[] released = takeRange(releasedRanges, maxChunks);
+		if (released != null) {
+			return released;
+		}
+		int[] reissued = takeReissued(worker, maxChunks);
+		if (reissued != null) {
+			return reissued;
+		}
+		while (true) {
+			if (spanNext[worker] >= spanEnd[worker] && !steal(worker)) {
+				return null;
+			}
+			int first = alreadyCompleted.nextClearBit(spanNext[worker]);
+			if (first >= spanEnd[worker]) {
+				spanNext[worker] = spanEnd[worker];
+				continue;
+			}
+			int nextCompleted = alreadyCompleted.nextSetBit(first);
+			int end = Math.min(first + maxChunks, spanEnd[worker]);
+			if (nextCompleted >= 0) {
+				end = Math.min(end, nextCompleted);
+			}
+			spanNext[worker] = end;
+			return new int[] { first, end };
+		}
+	}
+
+	/**
+	 * Como claim, pero si no hay nada que repartir y otros hosts siguen
+	 * descargando, que pueden devolver chunks (reintentos o fallo de su host), el
+	 * host queda a la espera sin bloquear: onWork se ejecuta cuando puede haber
+	 * trabajo, y entonces hay que volver a llamar a awaitWork. Debe llamarse sólo
+	 * cuando el host no tiene chunks pendientes.
+	 *
+	 * @param onWork Tarea que avisa al host, que se ejecuta una vez en el hilo que
+	 *               reparte el trabajo (fuera del cerrojo)
+	 * @return El rango reservado, o null si no hay ninguno: la descarga ha
+	 *         terminado (isFinished) o se avisará con onWork
+	 */
+	int[] awaitWork(int worker, int maxChunks, Runnable onWork) {
+		List<Runnable> wakeups;
+		synchronized (this) {
+			waiting.remove(worker);
+			int[] range = claim(worker, maxChunks);
+			if (range == null && !finished) {
+				range = takeRange(endgameRanges, maxChunks);
+			}
+			if (range != null) {
+				return range;
+			}
+			if (!finished && waiting.size() + 1 < liveWorkers) {
+				waiting.put(worker, onWork);
+				return null;
+			}
+			// Todos los hosts que quedan esperan trabajo: ya no puede aparecer ninguno
+			finished = true;
+			wakeups = takeWaiting();
+		}
+		runAll(wakeups);
+		return null;
+	}
+
+	/**
+	 * @return Verdadero si ya no queda trabajo que repartir
+	 */
+	synchronized boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Saca a todos los hosts de la espera (con el cerrojo tomado): sus tareas se
+	 * ejecutan después con runAll
+	 */
+	private List<Runnable> takeWaiting() {
+		List<Runnable> wakeups = new ArrayList<>(waiting.values());
+		waiting.clear();
+		return wakeups;
+	}
+
+	private static void runAll(List<Runnable> wakeups) {
+		for (Runnable wakeup : wakeups) {
+			wakeup.run();
+		}
+	}
+
+	/**
+	 * Toma hasta maxChunks chunks del primer rango de la cola
+	 */
+	private static int[] takeRange(ArrayDeque<int[]> ranges, int maxChunks) {
+		int[] range = ranges.peek();
+		if (range == null) {
+			return null;
+		}
+		int first = range[0];
+		range[0] = Math.min(first + maxChunks, range[1]);
+		if (range[0] == range[1]) {
+			ranges.poll();
+		}
+		return new int[] { first, range[0] };
+	}
+
+	/**
+	 * Toma hasta maxChunks chunks del primer rango vencido que no sea del propio
+	 * host
+	 */
+	private int[] takeReissued(int worker, int maxChunks) {
+		Iterator<int[]> it = reissuedRanges.iterator();
+		while (it.hasNext()) {
+			int[] range = it.next();
+			if (range[2] == worker) {
+				continue;
+			}
+			int first = range[0];
+			range[0] = Math.min(first + maxChunks, range[1]);
+			if (range[0] == range[1]) {
+				it.remove();
+			}
+			return new int[] { first, range[0] };
+		}
+		return null;
+	}
+
+	/**
+	 * Vuelve a repartir chunks que un host lento tiene pedidos y no ha enviado a
+	 * tiempo. Los reserva otro host; el host lento los sigue teniendo pedidos, y
+	 * se queda el primero que llega.
+	 *
+	 * @param worker Índice del host lento
+	 * @param ranges Rangos {primer chunk, chunk final} vencidos
+	 */
+	void reissue(int worker, Collection<int[]> ranges) {
+		List<Runnable> wakeups;
+		synchronized (this) {
+			if (finished) {
+				return;
+			}
+			for (int[] range : ranges) {
+				reissuedRanges.add(new int[] { range[0], range[1], worker });
+			}
+			wakeups = takeWaiting();
+		}
+		runAll(wakeups);
+	}
+
+	/**
+	 * Entra en endgame: los hosts que esperan trabajo piden otra vez los chunks
+	 * que faltan
+	 *
+	 * @param missingRanges Rangos {primer chunk, chunk final} sin completar
+	 */
+	void startEndgame(Collection<int[]> missingRanges) {
+		List<Runnable> wakeups;
+		synchronized (this) {
+			endgameRanges.addAll(missingRanges);
+			wakeups = takeWaiting();
+		}
+		runAll(wakeups);
+	}
+
+	/**
+	 * Termina el reparto tras un error que aborta la descarga, avisando a los
+	 * hosts que esperan trabajo
+	 */
+	void abort() {
+		List<Runnable> wakeups;
+		synchronized (this) {
+			finished = true;
+			retryChunks.clear();
+			releasedRanges.clear();
+			reissuedRanges.clear();
+			endgameRanges.clear();
+			wakeups = takeWaiting();
+		}
+		runAll(wakeups);
+	}
+
+	/**
+	 * Da de baja un host que ha fallado: los chunks que tenía pedidos y su tramo
+	 * sin pedir pasan a otros hosts
+	 *
+	 * @param pendingRanges Rangos {siguiente chunk, chunk final} pedidos y no
+	 *                      recibidos
+	 */
+	void release(int worker, Collection<int[]> pendingRanges) {
+		List<Runnable> wakeups;
+		synchronized (this) {
+			if (dead[worker]) {
+				return;
+			}
+			dead[worker] = true;
+			liveWorkers--;
+			waiting.remove(worker);
+			for (int[] range : pendingRanges) {
+				if (range[0] < range[1]) {
+					releasedRanges.add(new int[] { range[0], range[1] });
+				}
+			}
+			// Los que esperan se llevan sus chunks, o terminan si ya no queda nadie descargando
+			wakeups = takeWaiting();
+		}
+		runAll(wakeups);
+	}
+
+	/**
+	 * Añade un host nuevo, que empieza robando trabajo a los demás
+	 *
+	 * @return El índice del nuevo host
+	 */
+	synchronized int addWorker() {
+		int worker = spanNext.length;
+		spanNext = Arrays.copyOf(spanNext, worker + 1);
+		spanEnd = Arrays.copyOf(spanEnd, worker + 1);
+		dead = Arrays.copyOf(dead, worker + 1);
+		liveWorkers++;
+		return worker;
+	}
+
+	/**
+	 * Asigna al host worker la mitad final del tramo con más chunks pendientes, o
+	 * el tramo entero si es de un host que ha fallado
+	 *
+	 * @return Falso si no queda ningún chunk sin reservar
+	 */
+	private boolean steal(int worker) {
+		int victim = -1;
+		int victimRemaining = 0;
+		for (int w = 0; w < spanNext.length; w++) {
+			int remaining = spanEnd[w] - spanNext[w];
+			if (remaining > victimRemaining) {
+				victim = w;
+				victimRemaining = remaining;
+			}
+		}
+		if (victim < 0) {
+			return false;
+		}
+		int split = dead[victim] ? spanNext[victim] : spanEnd[victim] - (victimRemaining + 1) / 2;
+		spanNext[worker] = split;
+		spanEnd[worker] = spanEnd[victim];
+		spanEnd[victim] = split;
+		return true;
+	}
+
+	/**
+	 * Devuelve a la cola un chunk que ha llegado corrupto, para que lo pida el
+	 * primer host que tenga hueco
+	 *
+	 * @return Falso si el chunk ya se ha pedido el número máximo de veces
+	 */
+	boolean retry(int chunk) {
+		List<Runnable> wakeups;
+		synchronized (this) {
+			if (++chunkRetries[chunk] > maxRetries) {
+				return false;
+			}
+			retryChunks.add(chunk);
+			wakeups = takeWaiting();
+		}
+		runAll(wakeups);
+		return true;
+	}
+}
@@ -0,0 +1,178 @@
+package es.um.redes.nanoFiles.logic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import es.um.redes.nanoFiles.util.ByteBufferPool;
+
+/**
+ * Escritor asíncrono de los chunks de una descarga. Los DownloadWorker copian
+ * cada chunk recibido a un buffer del pool y lo encolan, y un único hilo lo
+ * escribe en el fichero local y verifica las piezas que completa, de modo que
+ * el bucle de eventos que recibe los chunks no espera al disco.
+ *
+ * Encolar nunca bloquea al bucle: si el disco no da abasto y la cola llega a su
+ * capacidad, el DownloadWorker deja de leer de su conexión
+ * (NFAsyncConnector.pauseReading) hasta que baja, y el servidor deja de enviar
+ * (contrapresión), en vez de acumular datos en memoria.
+ */
+class ChunkWriter implements Runnable {
+
+	private static final class PendingWrite {
+		final int chunk;
+		final ByteBuffer data;
+		final int host;
+
+		PendingWrite(int chunk, ByteBuffer data, int host) {
+			this.chunk = chunk;
+			this.data = data;
+			this.host = host;
+		}
+	}
+
+	// Marca de fin de la cola
+	private static final PendingWrite STOP = new PendingWrite(-1, null, -1);
+
+	private final FileDownload download;
+	private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+	private final int queueCapacity;
+	private final ByteBufferPool bufferPool;
+	private final Thread thread;
+
+	/**
+	 * Chunks encolados que aún no se han escrito (y verificado)
+	 */
+	private int inFlight = 0;
+	/**
+	 * Tareas que esperan a que haya hueco en la cola y a que se vacíe
+	 */
+	private List<Runnable> belowCapacityTasks = new ArrayList<>();
+	private List<Runnable> drainedTasks = new ArrayList<>();
+
+	/**
+	 * @param queueCapacity Número de chunks encolados a partir del cual se deja
+	 *                      de recibir
+	 * @param chunkSize     Tamaño máximo de un chunk
+	 */
+	ChunkWriter(FileDownload download, int queueCapacity, int chunkSize) {
+		this.download = download;
+		this.queueCapacity = queueCapacity;
+		this.bufferPool = new ByteBufferPool(chunkSize, queueCapacity);
+		this.thread = new Thread(this, "ChunkWriter");
+	}
+
+	void start() {
+		thread.start();
+	}
+
+	/**
+	 * Encola un chunk para escribirlo. Los datos se copian, así que el buffer se
+	 * puede reutilizar en cuanto vuelve. No espera aunque la cola esté llena.
+	 *
+	 * @param onBelowCapacity Tarea que se ejecuta en el hilo escritor cuando la
+	 *                        cola vuelve a tener hueco, si con este chunk ha
+	 *                        llegado a su capacidad
+	 * @return Falso si la cola ha llegado a su capacidad: hay que dejar de
+	 *         recibir hasta que se ejecute onBelowCapacity
+	 * @throws DownloadException Si la descarga ha fallado
+	 */
+	boolean submit(int chunk, ByteBuffer data, int host, Runnable onBelowCapacity) throws DownloadException {
+		if (download.isFailed()) {
+			throw new DownloadException();
+		}
+		ByteBuffer copy = bufferPool.acquire();
+		copy.put(data).flip();
+		boolean belowCapacity;
+		synchronized (this) {
+			belowCapacity = ++inFlight < queueCapacity;
+			if (!belowCapacity) {
+				belowCapacityTasks.add(onBelowCapacity);
+			}
+		}
+		queue.add(new PendingWrite(chunk, copy, host));
+		return belowCapacity;
+	}
+
+	/**
+	 * Ejecuta una tarea (en el hilo escritor) cuando se hayan escrito todos los
+	 * chunks encolados. Una pieza corrupta vuelve a encolar sus chunks en el
+	 * ChunkScheduler al verificarse, así que un host sin trabajo debe esperar a
+	 * que se vacíe la cola antes de terminar.
+	 *
+	 * @return Verdadero si la cola ya estaba vacía, y la tarea no se ejecuta
+	 */
+	synchronized boolean whenDrained(Runnable task) {
+		if (inFlight == 0) {
+			return true;
+		}
+		drainedTasks.add(task);
+		return false;
+	}
+
+	/**
+	 * Termina de escribir lo encolado y para el hilo escritor
+	 */
+	void close() {
+		queue.add(STOP);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		ByteBuffer verifyBuffer = download.hasPieceTree() ? ByteBuffer.allocateDirect(64 * 1024) : null;
+		while (true) {
+			PendingWrite write;
+			try {
+				write = queue.take();
+			} catch (InterruptedException e) {
+				download.fail();
+				return;
+			}
+			if (write == STOP) {
+				return;
+			}
+			try {
+				// Tras un fallo se vacía la cola sin escribir
+				if (!download.isFailed()) {
+					if (download.writeChunk(write.chunk, write.data, write.host)) {
+						download.verifyPieces(write.chunk, verifyBuffer);
+					}
+				}
+			} catch (DownloadException e) {
+				download.fail();
+			} catch (IOException e) {
+				System.err.println("[-] Error writing to local file: " + e.getMessage());
+				download.fail();
+			} finally {
+				writeDone(write.data);
+			}
+		}
+	}
+
+	private void writeDone(ByteBuffer data) {
+		bufferPool.release(data);
+		List<Runnable> tasks = new ArrayList<>();
+		synchronized (this) {
+			inFlight--;
+			if (inFlight < queueCapacity && !belowCapacityTasks.isEmpty()) {
+				tasks.addAll(belowCapacityTasks);
+				belowCapacityTasks = new ArrayList<>();
+			}
+			if (inFlight == 0 && !drainedTasks.isEmpty()) {
+				tasks.addAll(drainedTasks);
+				drainedTasks = new ArrayList<>();
+			}
+		}
+		for (Runnable task : tasks) {
+			task.run();
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package es.um.redes.nanoFiles.logic;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decide cuándo abrir más conexiones con un mismo host durante una descarga.
+ *
+ * Cada conexión tiene como mucho PIPELINE_WINDOW chunks en vuelo, así que no
+ * puede pasar de una ventana por RTT. Si el RTT mínimo medido con un host es
+ * parecido a lo que se tarda en recibir una ventana completa, la conexión está
+ * limitada por la ventana y no por el enlace o el servidor: otra conexión con
+ * el mismo host (que comparte el ChunkScheduler con el resto) aumenta el
+ * caudal. Si el enlace ya está lleno, el tiempo entre chunks de cada conexión
+ * crece y deja de abrir más.
+ *
+ * Sólo se abre una conexión más por host a la vez: hasta que todas sus
+ * conexiones tienen medidas (y la ventana entera) no se vuelve a evaluar, y si
+ * la conexión nueva no ha aumentado el caudal total con el host (el RTT medido
+ * no era el del camino, o el cuello de botella es otro) no se abren más.
+ *
+ * Sólo lo usa el hilo que controla la descarga.
+ */
+class ConnectionScaler {
+
+	/**
+	 * Fracción de la ventana que tiene que cubrir el RTT para considerar que una
+	 * conexión está limitada por la ventana
+	 */
+	private static final double WINDOW_LIMITED_RATIO = 0.75;
+	/**
+	 * RTT (ms) por debajo del cual no se abren más conexiones: la medida depende
+	 * más del tiempo de proceso de las peticiones que del camino (red local)
+	 */
+	private static final double MIN_RTT_MS = 1.0;
+	// Aumento mínimo del caudal con un host tras abrir otra conexión para seguir abriendo
+	private static final double MIN_GAIN = 1.2;
+
+	private final FileDownload download;
+	private final int maxConnectionsPerHost;
+	private final int pipelineWindow;
+
+	// Conexiones abiertas con cada host
+	private final Map<InetSocketAddress, List<DownloadWorker>> hosts = new LinkedHashMap<>();
+	// Hosts con los que no se ha podido abrir otra conexión o no ha servido de nada
+	private final Set<InetSocketAddress> refused = new HashSet<>();
+	// Hosts con una conexión adicional en negociación
+	private final Set<InetSocketAddress> expanding = new HashSet<>();
+	// Caudal total (chunks/ms) con cada host al abrir su última conexión
+	private final Map<InetSocketAddress, Double> throughputAtExpansion = new HashMap<>();
+
+	/**
+	 * @param maxConnectionsPerHost Número máximo de conexiones con un host
+	 * @param pipelineWindow        Chunks en vuelo por conexión
+	 */
+	ConnectionScaler(FileDownload download, int maxConnectionsPerHost, int pipelineWindow) {
+		this.download = download;
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.pipelineWindow = pipelineWindow;
+	}
+
+	void addWorker(DownloadWorker worker) {
+		expanding.remove(worker.getServerAddr());
+		hosts.computeIfAbsent(worker.getServerAddr(), addr -> new ArrayList<>()).add(worker);
+	}
+
+	/**
+	 * @return Hosts con los que conviene abrir una conexión más, que quedan a la
+	 *         espera de que se añada (addWorker) o falle (expansionFailed)
+	 */
+	List<InetSocketAddress> hostsToExpand() {
+		List<InetSocketAddress> expand = new ArrayList<>();
+		if (download.isFailed() || download.isEndgame()) {
+			return expand;
+		}
+		for (Map.Entry<InetSocketAddress, List<DownloadWorker>> host : hosts.entrySet()) {
+			if (refused.contains(host.getKey()) || expanding.contains(host.getKey())) {
+				continue;
+			}
+			// El RTT del camino es el mínimo medido en cualquiera de las conexiones con el host
+			int connections = 0;
+			double intervalSum = 0;
+			double throughput = 0;
+			double minRtt = -1;
+			boolean measured = true;
+			for (DownloadWorker worker : host.getValue()) {
+				if (download.isHostFailed(worker.getHostIndex()) || worker.hasExited()) {
+					continue; // Conexión caída o que ya ha terminado
+				}
+				connections++;
+				double interval = worker.getChunkIntervalMs();
+				double rtt = worker.getMinRttMs();
+				if (interval <= 0 || rtt < 0 || worker.getWindow() < pipelineWindow) {
+					measured = false;
+					break;
+				}
+				intervalSum += interval;
+				throughput += 1 / interval;
+				minRtt = (minRtt < 0) ? rtt : Math.min(minRtt, rtt);
+			}
+			if (!measured || connections == 0) {
+				continue;
+			}
+			Double previous = throughputAtExpansion.get(host.getKey());
+			if (previous != null && throughput < previous * MIN_GAIN) {
+				refused.add(host.getKey());
+				continue;
+			}
+			// Parte de la ventana que se consume mientras llega la respuesta a una petición
+			if (connections < maxConnectionsPerHost && minRtt >= MIN_RTT_MS
+					&& minRtt / (intervalSum / connections * pipelineWindow) >= WINDOW_LIMITED_RATIO) {
+				throughputAtExpansion.put(host.getKey(), throughput);
+				expanding.add(host.getKey());
+				expand.add(host.getKey());
+			}
+		}
+		return expand;
+	}
+
+	/**
+	 * Anota que no se ha podido abrir otra conexión con un host
+	 */
+	void expansionFailed(InetSocketAddress host) {
+		expanding.remove(host);
+		refused.add(host);
+	}
+}
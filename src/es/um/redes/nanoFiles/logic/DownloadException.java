@@ -0,0 +1,9 @@
+package es.um.redes.nanoFiles.logic;
+
+/*
+ * Clase auxiliar para poder controlar la descarga concurrente
+ * 
+ * Cuando uno de los hilos durante la descarga tiene algun problema este lanza una DownloadException para poder aborar la descarga y comunicarlo
+ * al resto de hilos
+ */
+class DownloadException extends Exception {}
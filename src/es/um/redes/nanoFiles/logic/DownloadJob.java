@@ -0,0 +1,113 @@
+package es.um.redes.nanoFiles.logic;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * Una descarga encolada en el DownloadManager: el fichero que se pide, su
+ * prioridad y en qué estado está. Mientras se descarga, el hilo de la descarga
+ * comprueba si se ha pedido pararla (pausa o cancelación) y expone su
+ * progreso.
+ */
+class DownloadJob {
+
+	enum State {
+		QUEUED, RUNNING, PAUSED, COMPLETED, FAILED, CANCELLED
+	}
+
+	private final int id;
+	private final String targetFileNameSubstring;
+	// Nombre local (null en las descargas de todos los ficheros que coinciden)
+	private final String localFileName;
+	// Descarga de todos los ficheros que coinciden con targetFileNameSubstring (download-all)
+	private final boolean bulk;
+	// Orden de llegada, para desempatar entre descargas con la misma prioridad
+	private final long sequence;
+
+	// Estado y prioridad, que sólo cambia el DownloadManager
+	private volatile State state = State.QUEUED;
+	private volatile int priority;
+	// Estado al que pasa la descarga en curso cuando termine de pararse (null si no se ha pedido)
+	private volatile State stopState = null;
+	// Porcentaje descargado de la descarga en curso (null si no hay)
+	private volatile DoubleSupplier progressSource = null;
+
+	DownloadJob(int id, String targetFileNameSubstring, String localFileName, boolean bulk, int priority,
+			long sequence) {
+		this.id = id;
+		this.targetFileNameSubstring = targetFileNameSubstring;
+		this.localFileName = localFileName;
+		this.bulk = bulk;
+		this.priority = priority;
+		this.sequence = sequence;
+	}
+
+	int getId() {
+		return id;
+	}
+
+	String getTargetFileNameSubstring() {
+		return targetFileNameSubstring;
+	}
+
+	String getLocalFileName() {
+		return localFileName;
+	}
+
+	boolean isBulk() {
+		return bulk;
+	}
+
+	long getSequence() {
+		return sequence;
+	}
+
+	State getState() {
+		return state;
+	}
+
+	void setState(State state) {
+		this.state = state;
+	}
+
+	int getPriority() {
+		return priority;
+	}
+
+	void setPriority(int priority) {
+		this.priority = priority;
+	}
+
+	/**
+	 * Pide parar la descarga en curso, que pasará a stopState al terminar
+	 */
+	void requestStop(State stopState) {
+		this.stopState = stopState;
+	}
+
+	State getStopState() {
+		return stopState;
+	}
+
+	/**
+	 * @return Verdadero si se ha pedido parar la descarga (lo consulta el hilo
+	 *         que la controla)
+	 */
+	boolean isStopRequested() {
+		return stopState != null;
+	}
+
+	/**
+	 * Anota de dónde sale el progreso de la descarga en curso (null al terminar)
+	 */
+	void setProgressSource(DoubleSupplier progressSource) {
+		this.progressSource = progressSource;
+	}
+
+	/**
+	 * @return Porcentaje descargado, o -1 si no hay descarga en curso
+	 */
+	double getProgress() {
+		DoubleSupplier current = progressSource;
+		return (current != null) ? current.getAsDouble() : -1;
+	}
+}
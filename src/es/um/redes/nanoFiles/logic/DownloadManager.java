@@ -0,0 +1,333 @@
+package es.um.redes.nanoFiles.logic;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import es.um.redes.nanoFiles.application.NanoFiles;
+import es.um.redes.nanoFiles.util.RemoteFile;
+
+/**
+ * Cola de descargas que se ejecutan en segundo plano, para que el shell no se
+ * quede bloqueado mientras se descarga un fichero y se puedan descargar varios
+ * a la vez.
+ *
+ * Como mucho se ejecutan MAX_CONCURRENT_DOWNLOADS descargas a la vez, cada una
+ * en su propio hilo; el resto esperan en la cola y se empieza siempre por la de
+ * más prioridad (y, a igual prioridad, por la más antigua). Las conexiones y el
+ * caudal de todas ellas están limitados globalmente por NFControllerLogicP2P.
+ *
+ * Pausar una descarga en curso la para conservando lo descargado (como si se
+ * hubiera interrumpido), y al reanudarla vuelve a la cola y sólo pide los
+ * chunks que faltan. Cancelarla borra además el fichero parcial.
+ */
+class DownloadManager {
+
+	private final NFControllerLogicDir controllerDir;
+	private final NFControllerLogicP2P controllerPeer;
+	private final int maxConcurrentDownloads;
+
+	// Todos los trabajos por identificador, en orden de llegada
+	private final Map<Integer, DownloadJob> jobs = new LinkedHashMap<>();
+	private final List<Thread> runningThreads = new ArrayList<>();
+	private int nextJobId = 1;
+	private long nextSequence = 0;
+	private int running = 0;
+	private boolean shutdown = false;
+
+	DownloadManager(NFControllerLogicDir controllerDir, NFControllerLogicP2P controllerPeer,
+			int maxConcurrentDownloads) {
+		this.controllerDir = controllerDir;
+		this.controllerPeer = controllerPeer;
+		this.maxConcurrentDownloads = maxConcurrentDownloads;
+	}
+
+	/**
+	 * Encola la descarga de un fichero
+	 *
+	 * @return El trabajo creado, o null si ya hay una descarga activa con el
+	 *         mismo nombre local
+	 */
+	synchronized DownloadJob submit(String targetFileNameSubstring, String localFileName, int priority) {
+		if (shutdown) {
+			return null;
+		}
+		for (DownloadJob job : jobs.values()) {
+			if (localFileName.equals(job.getLocalFileName()) && isActive(job)) {
+				System.err.println("[-] Error: Download #" + job.getId() + " is already saving to \"" + localFileName + "\"");
+				return null;
+			}
+		}
+		return enqueue(new DownloadJob(nextJobId++, targetFileNameSubstring, localFileName, false, priority,
+				nextSequence++));
+	}
+
+	/**
+	 * Encola la descarga de todos los ficheros que coinciden con una subcadena
+	 * (download-all), que se guardan con su nombre
+	 *
+	 * @return El trabajo creado, o null si ya hay otro activo con la misma
+	 *         subcadena
+	 */
+	synchronized DownloadJob submitAll(String targetFileNameSubstring, int priority) {
+		if (shutdown) {
+			return null;
+		}
+		for (DownloadJob job : jobs.values()) {
+			if (job.isBulk() && job.getTargetFileNameSubstring().equals(targetFileNameSubstring) && isActive(job)) {
+				System.err.println("[-] Error: Download #" + job.getId() + " is already downloading files matching \""
+						+ targetFileNameSubstring + "\"");
+				return null;
+			}
+		}
+		return enqueue(new DownloadJob(nextJobId++, targetFileNameSubstring, null, true, priority, nextSequence++));
+	}
+
+	private DownloadJob enqueue(DownloadJob job) {
+		jobs.put(job.getId(), job);
+		dispatch();
+		return job;
+	}
+
+	/**
+	 * Pausa una descarga: si está en curso se para conservando lo descargado
+	 */
+	synchronized boolean pause(int id) {
+		DownloadJob job = findJob(id);
+		if (job == null) {
+			return false;
+		}
+		switch (job.getState()) {
+		case QUEUED:
+			job.setState(DownloadJob.State.PAUSED);
+			return true;
+		case RUNNING:
+			job.requestStop(DownloadJob.State.PAUSED);
+			return true;
+		default:
+			System.err.println("[-] Download #" + id + " is " + stateName(job) + ", cannot pause it");
+			return false;
+		}
+	}
+
+	/**
+	 * Vuelve a encolar una descarga pausada (o fallida), que continúa donde se
+	 * quedó
+	 */
+	synchronized boolean resume(int id) {
+		DownloadJob job = findJob(id);
+		if (job == null) {
+			return false;
+		}
+		if (job.getState() != DownloadJob.State.PAUSED && job.getState() != DownloadJob.State.FAILED) {
+			System.err.println("[-] Download #" + id + " is " + stateName(job) + ", cannot resume it");
+			return false;
+		}
+		job.setState(DownloadJob.State.QUEUED);
+		dispatch();
+		return true;
+	}
+
+	/**
+	 * Cancela una descarga y borra lo descargado
+	 */
+	synchronized boolean cancel(int id) {
+		DownloadJob job = findJob(id);
+		if (job == null) {
+			return false;
+		}
+		switch (job.getState()) {
+		case QUEUED:
+			job.setState(DownloadJob.State.CANCELLED);
+			return true;
+		case PAUSED:
+		case FAILED:
+			job.setState(DownloadJob.State.CANCELLED);
+			discardPartialFile(job);
+			return true;
+		case RUNNING:
+			job.requestStop(DownloadJob.State.CANCELLED);
+			return true;
+		default:
+			System.err.println("[-] Download #" + id + " is " + stateName(job) + ", cannot cancel it");
+			return false;
+		}
+	}
+
+	/**
+	 * Cambia la prioridad de una descarga. Sólo afecta a las que aún no han
+	 * empezado: las de más prioridad empiezan antes
+	 */
+	synchronized boolean setPriority(int id, int priority) {
+		DownloadJob job = findJob(id);
+		if (job == null) {
+			return false;
+		}
+		job.setPriority(priority);
+		return true;
+	}
+
+	/**
+	 * Imprime la lista de descargas y su estado
+	 */
+	synchronized void printJobs() {
+		if (jobs.isEmpty()) {
+			System.out.println("No downloads");
+			return;
+		}
+		System.out.println(String.format("%5s %-10s %8s %9s  %s", "ID", "STATE", "PRIORITY", "PROGRESS", "FILE"));
+		for (DownloadJob job : jobs.values()) {
+			double progress = job.getProgress();
+			System.out.println(String.format("%5d %-10s %8d %9s  %s -> %s", job.getId(), stateName(job),
+					job.getPriority(), (progress >= 0) ? String.format("%.1f%%", progress) : "-",
+					job.getTargetFileNameSubstring(), destination(job)));
+		}
+	}
+
+	/**
+	 * @return Verdadero si hay alguna descarga en curso o en cola
+	 */
+	synchronized boolean hasActiveJobs() {
+		for (DownloadJob job : jobs.values()) {
+			if (job.getState() == DownloadJob.State.QUEUED || job.getState() == DownloadJob.State.RUNNING) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Pausa las descargas en curso (conservando lo descargado) y espera a que
+	 * terminen de pararse. Las que están en cola no empiezan.
+	 */
+	void shutdown() {
+		List<Thread> threads;
+		synchronized (this) {
+			shutdown = true;
+			for (DownloadJob job : jobs.values()) {
+				if (job.getState() == DownloadJob.State.RUNNING) {
+					job.requestStop(DownloadJob.State.PAUSED);
+				}
+			}
+			threads = new ArrayList<>(runningThreads);
+		}
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Empieza las descargas en cola de más prioridad mientras haya hueco
+	 */
+	private void dispatch() {
+		while (!shutdown && running < maxConcurrentDownloads) {
+			DownloadJob next = null;
+			for (DownloadJob job : jobs.values()) {
+				if (job.getState() == DownloadJob.State.QUEUED && (next == null || job.getPriority() > next.getPriority()
+						|| (job.getPriority() == next.getPriority() && job.getSequence() < next.getSequence()))) {
+					next = job;
+				}
+			}
+			if (next == null) {
+				return;
+			}
+			DownloadJob job = next;
+			job.setState(DownloadJob.State.RUNNING);
+			job.requestStop(null);
+			running++;
+			Thread thread = new Thread(() -> run(job), "Download-" + job.getId());
+			runningThreads.add(thread);
+			thread.start();
+		}
+	}
+
+	private void run(DownloadJob job) {
+		boolean downloaded = false;
+		try {
+			System.out.println("[*] Starting download #" + job.getId() + " (" + job.getTargetFileNameSubstring() + ")");
+			if (job.isBulk()) {
+				// Una sola consulta al directorio con todos los ficheros y sus servidores
+				RemoteFile[] matchingFiles = controllerDir.getMatchingFiles(job.getTargetFileNameSubstring());
+				if (!job.isStopRequested()) {
+					downloaded = controllerPeer.downloadAllFromServers(matchingFiles, job.getTargetFileNameSubstring(),
+							job);
+				}
+				return;
+			}
+			InetSocketAddress[] serverAddressList = controllerDir
+					.getServerAddressesSharingThisFile(job.getTargetFileNameSubstring());
+			if (!job.isStopRequested()) {
+				// Si algun servidor falla durante la descarga se vuelve a consultar al directorio
+				downloaded = controllerPeer.downloadFileFromServers(serverAddressList, job.getTargetFileNameSubstring(),
+						job.getLocalFileName(),
+						() -> controllerDir.getServerAddressesSharingThisFile(job.getTargetFileNameSubstring()), job);
+			}
+		} finally {
+			finished(job, downloaded);
+		}
+	}
+
+	private synchronized void finished(DownloadJob job, boolean downloaded) {
+		running--;
+		runningThreads.remove(Thread.currentThread());
+		job.setProgressSource(null);
+		if (downloaded) {
+			job.setState(DownloadJob.State.COMPLETED);
+		} else if (job.getStopState() == DownloadJob.State.CANCELLED) {
+			job.setState(DownloadJob.State.CANCELLED);
+			discardPartialFile(job);
+		} else if (job.getStopState() == DownloadJob.State.PAUSED) {
+			job.setState(DownloadJob.State.PAUSED);
+		} else {
+			job.setState(DownloadJob.State.FAILED);
+		}
+		System.out.println("[*] Download #" + job.getId() + " (" + destination(job) + ") " + stateName(job));
+		dispatch();
+	}
+
+	/**
+	 * Borra el fichero parcial de una descarga y su progreso, si los hay. En
+	 * download-all no hay nada que borrar: los ficheros a medias se borran al
+	 * pararla y los completos se conservan
+	 */
+	private void discardPartialFile(DownloadJob job) {
+		if (job.isBulk()) {
+			return;
+		}
+		File localFile = new File(NanoFiles.DEFAULT_DOWNLOADS_DIRNAME, job.getLocalFileName());
+		ResumeState resumeState = ResumeState.load(localFile);
+		if (resumeState != null) {
+			resumeState.delete();
+			localFile.delete();
+		}
+	}
+
+	private DownloadJob findJob(int id) {
+		DownloadJob job = jobs.get(id);
+		if (job == null) {
+			System.err.println("[-] Error: There is no download #" + id);
+		}
+		return job;
+	}
+
+	private static boolean isActive(DownloadJob job) {
+		return job.getState() == DownloadJob.State.QUEUED || job.getState() == DownloadJob.State.RUNNING
+				|| job.getState() == DownloadJob.State.PAUSED;
+	}
+
+	private static String destination(DownloadJob job) {
+		return job.isBulk() ? "all matching files" : job.getLocalFileName();
+	}
+
+	private static String stateName(DownloadJob job) {
+		return job.getState().name().toLowerCase();
+	}
+}
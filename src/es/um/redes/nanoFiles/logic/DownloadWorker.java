@@ -0,0 +1,439 @@
+package es.um.redes.nanoFiles.logic;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import es.um.redes.nanoFiles.application.NanoFiles;
+import es.um.redes.nanoFiles.tcp.client.NFAsyncConnector;
+import es.um.redes.nanoFiles.tcp.client.NFClientEventLoop;
+import es.um.redes.nanoFiles.tcp.message.PeerMessage;
+import es.um.redes.nanoFiles.tcp.message.PeerMessageOps;
+import es.um.redes.nanoFiles.util.BandwidthLimiter;
+
+/**
+ * Descarga chunks de un fichero desde uno de los hosts que lo sirven. Pide al
+ * ChunkScheduler rangos de chunks mientras quede trabajo, manteniendo hasta
+ * PIPELINE_WINDOW chunks en vuelo en la conexión, y escribe cada chunk recibido
+ * en el fichero local, directamente o a través del ChunkWriter. Si el host
+ * falla, devuelve sus chunks pendientes y termina sin abortar la descarga. En
+ * endgame, los rangos que otro host ya ha completado se anulan con CANCEL.
+ *
+ * Mide además el caudal (tiempo medio entre chunks) y el RTT del host, con los
+ * que el StragglerMonitor calcula el plazo de cada chunk pedido. Si el host se
+ * retrasa, sus chunks vencidos se piden a otros hosts y su ventana se reduce a
+ * la mitad; cada chunk recibido la vuelve a ampliar en uno.
+ *
+ * No tiene hilo propio: la conexión es un NFAsyncConnector y todo se ejecuta en
+ * el hilo del NFClientEventLoop de la descarga, al llegar cada chunk. Nunca se
+ * bloquea; para esperar (al límite de caudal, al ChunkWriter o a que haya
+ * trabajo) deja de leer de la conexión o deja una tarea que lo avisa.
+ */
+class DownloadWorker {
+
+	private final FileDownload download;
+	private final NFAsyncConnector connector;
+	private final NFClientEventLoop loop;
+	private final int hostIndex;
+	// Escritor asincrono compartido, o null si los chunks se escriben en el bucle de eventos
+	private final ChunkWriter writer;
+	// Limite de caudal compartido por todas las descargas, o null si no hay
+	private final BandwidthLimiter limiter;
+	// Buffer para verificar las piezas si no hay escritor, o null
+	private final ByteBuffer verifyBuffer;
+
+	/**
+	 * Rangos solicitados de los que aún faltan chunks, en orden de petición:
+	 * identificador -> {siguiente chunk, chunk final}. El StragglerMonitor los
+	 * lee desde otro hilo, por eso los arrays no se modifican una vez en el mapa:
+	 * al recibir un chunk se sustituye el rango por otro.
+	 */
+	private final ConcurrentSkipListMap<Integer, int[]> pendingRanges = new ConcurrentSkipListMap<>();
+	/**
+	 * Petición de cada rango pendiente: {momento (System.nanoTime), chunks pedidos
+	 * antes y todavía pendientes, primer chunk del rango}
+	 */
+	private final Map<Integer, long[]> requestTimes = new ConcurrentHashMap<>();
+	private int pendingChunks = 0;
+	private int nextRequestId = 0;
+	// Rangos anulados con CANCEL, de los que se espera la confirmacion del servidor
+	private final Set<Integer> cancelledRanges = new HashSet<>();
+
+	// Peso de cada muestra nueva en las medias móviles (EWMA) del caudal y del RTT
+	private static final double EWMA_WEIGHT = 0.125;
+	/**
+	 * Último chunk recibido (o última petición con la conexión vacía), media del
+	 * tiempo entre chunks, y RTT medio y mínimo en ms (-1 sin muestras)
+	 */
+	private volatile long lastProgressNanos = System.nanoTime();
+	private volatile double chunkIntervalMs = -1;
+	private volatile double rttMs = -1;
+	private volatile double minRttMs;
+	// Chunks que se pueden tener en vuelo, que se reduce si el host se retrasa
+	private volatile int window = NanoFiles.PIPELINE_WINDOW;
+	// Otros hosts han vuelto a pedir chunks de este: hay que anular los que ya lleguen
+	private volatile boolean reissued = false;
+	private volatile boolean exited = false;
+
+	DownloadWorker(FileDownload download, NFAsyncConnector connector, NFClientEventLoop loop, int hostIndex,
+			ChunkWriter writer, BandwidthLimiter limiter) {
+		this.download = download;
+		this.connector = connector;
+		this.loop = loop;
+		this.hostIndex = hostIndex;
+		this.writer = writer;
+		this.limiter = limiter;
+		this.verifyBuffer = (download.hasPieceTree() && writer == null) ? ByteBuffer.allocateDirect(64 * 1024) : null;
+		// La negociacion de la descarga da la primera medida del RTT, sin colas
+		this.minRttMs = connector.getMinRoundTripMs();
+	}
+
+	/**
+	 * Empieza a descargar: desde aquí todo se hace en el hilo del bucle de
+	 * eventos, al recibir cada mensaje del host o cuando hay trabajo nuevo
+	 */
+	void start() {
+		connector.setMessageHandler(this::handleMessage);
+		// Si hay un corte en la conexion, se descarta el host y el resto sigue
+		connector.whenClosed().whenComplete((result, error) -> loop.execute(() -> {
+			if (!exited) {
+				dropHost("[-] The conexion with host " + connector.getServerAddr() + " has been closed or the host have not replied");
+			}
+		}));
+		loop.execute(this::requestChunks);
+	}
+
+	/**
+	 * Procesa un mensaje del host: un chunk de un rango pedido o la confirmacion
+	 * de un CANCEL
+	 */
+	private void handleMessage(PeerMessage message) {
+		if (exited) {
+			return;
+		}
+		try {
+			// Comprobar que no ha habido ningun error durante la descarga en otro host
+			if (download.isFailed()) {
+				throw new DownloadException();
+			}
+
+			// Confirmacion de un CANCEL: no llegan mas chunks del rango
+			if (message.getOpcode() == PeerMessageOps.OPCODE_CANCEL) {
+				int[] cancelled = pendingRanges.remove(message.getRequestId());
+				requestTimes.remove(message.getRequestId());
+				if (cancelled != null) {
+					pendingChunks -= cancelled[1] - cancelled[0];
+				}
+				cancelledRanges.remove(message.getRequestId());
+				requestChunks();
+				return;
+			}
+
+			// Los chunks de un rango llegan en orden, cada uno es el siguiente que falta del rango
+			int[] range = (message.getOpcode() == PeerMessageOps.OPCODE_SEND_TAGGED_CHUNK)
+					? pendingRanges.get(message.getRequestId())
+					: null;
+			int chunkIndex = (range != null) ? range[0] : -1;
+			if (range == null || message.getChunckSize() != download.chunkLength(chunkIndex)) {
+				dropHost("[-] Failed to download chunk " + chunkIndex + " from host " + connector.getServerAddr());
+				return;
+			}
+			chunkReceived(requestTimes.get(message.getRequestId()), chunkIndex);
+			if (chunkIndex + 1 == range[1]) {
+				pendingRanges.remove(message.getRequestId());
+				requestTimes.remove(message.getRequestId());
+			} else {
+				pendingRanges.put(message.getRequestId(), new int[] { chunkIndex + 1, range[1] });
+			}
+			pendingChunks--;
+			// En vez de esperar, se deja de leer del socket: el control de flujo de TCP frena al servidor
+			if (limiter != null) {
+				long waitNanos = limiter.reserve(message.getChunckSize());
+				if (waitNanos > 0) {
+					connector.pauseReading(waitNanos, TimeUnit.NANOSECONDS);
+				}
+			}
+
+			// Un chunk corrupto se descarta y se vuelve a pedir, sin esperar al hash del fichero completo
+			if (!message.isChunkIntact()) {
+				System.err.println("\t[-] Chunk " + chunkIndex + " from host " + connector.getServerAddr() + " is corrupt (CRC32C mismatch), requesting it again");
+				download.requeueChunk(chunkIndex);
+				requestChunks();
+				return;
+			}
+			if (writer != null) {
+				// Si el disco no da abasto se deja de leer hasta que el escritor tenga hueco
+				if (!writer.submit(chunkIndex, message.getChunkBuffer(), hostIndex, connector::resumeReading)) {
+					connector.pauseReading();
+				}
+			} else if (download.writeChunk(chunkIndex, message.getChunkBuffer(), hostIndex)) {
+				download.verifyPieces(chunkIndex, verifyBuffer);
+			}
+
+			if (download.isEndgame() || reissued) {
+				cancelCompletedRanges();
+			}
+			requestChunks();
+		} catch (DownloadException e) {
+			// Si algun host falla durante la descarga debe informar a los otros que no sigan
+			download.fail();
+			exit();
+		} catch (IOException e) {
+			System.err.println("[-] Error writing to local file: " + e.getMessage());
+			download.fail();
+			exit();
+		}
+	}
+
+	/**
+	 * Pide chunks hasta llenar la ventana y, si no queda ninguno pendiente, busca
+	 * mas trabajo
+	 */
+	private void requestChunks() {
+		if (exited) {
+			return;
+		}
+		if (download.isFailed()) {
+			exit();
+			return;
+		}
+		requestMoreChunks();
+		if (pendingRanges.isEmpty()) {
+			awaitWork();
+		}
+	}
+
+	/**
+	 * Sin chunks pendientes: pide un rango de los que devuelven otros hosts o, si
+	 * no hay, queda a la espera sin bloquear el bucle (por si otro host falla y
+	 * deja chunks sin descargar), o termina si ya no queda trabajo
+	 */
+	private void awaitWork() {
+		// Las piezas que aun se estan verificando pueden devolver chunks al ChunkScheduler
+		if (writer != null && !writer.whenDrained(() -> loop.execute(this::requestChunks))) {
+			return;
+		}
+		ChunkScheduler scheduler = download.getScheduler();
+		while (true) {
+			int[] range = scheduler.awaitWork(hostIndex, Math.min(NanoFiles.RANGE_CHUNKS, window),
+					() -> loop.execute(this::requestChunks));
+			if (range == null) {
+				if (scheduler.isFinished()) {
+					exit();
+				}
+				return;
+			}
+			if (download.isRangeDone(range[0], range[1])) {
+				continue;	// Chunks de endgame que ya han llegado de otro host
+			}
+			requestRange(range);
+			return;
+		}
+	}
+
+	private void exit() {
+		if (!exited) {
+			exited = true;
+			download.workerExited();
+		}
+	}
+
+	/**
+	 * Actualiza las medias del host con un chunk recibido. El primer chunk de
+	 * cada rango mide el RTT: el tiempo desde la petición, menos lo que se tarda
+	 * en recibir los chunks que había pedidos antes (el RTT mínimo sólo se toma
+	 * de los rangos pedidos con la conexión vacía, que no tienen esa
+	 * estimación). El resto mide el tiempo entre chunks, salvo el primero tras
+	 * una petición con la conexión vacía.
+	 *
+	 * @param request La petición del rango al que pertenece el chunk
+	 */
+	private void chunkReceived(long[] request, int chunkIndex) {
+		long now = System.nanoTime();
+		boolean firstOfRange = request != null && request[2] == chunkIndex;
+		if (firstOfRange) {
+			double sample = (now - request[0]) / 1e6;
+			if (request[1] > 0) {
+				sample = (chunkIntervalMs >= 0) ? sample - request[1] * chunkIntervalMs : -1;
+			}
+			if (sample > 0) {
+				rttMs = ewma(rttMs, sample);
+			}
+			if (request[1] == 0) {
+				minRttMs = (minRttMs < 0) ? sample : Math.min(minRttMs, sample);
+			}
+		}
+		if (!firstOfRange || request[1] > 0) {
+			chunkIntervalMs = ewma(chunkIntervalMs, (now - lastProgressNanos) / 1e6);
+		}
+		lastProgressNanos = now;
+		if (window < NanoFiles.PIPELINE_WINDOW) {
+			window++;
+		}
+	}
+
+	private static double ewma(double average, double sample) {
+		return (average < 0) ? sample : average + EWMA_WEIGHT * (sample - average);
+	}
+
+	/**
+	 * En endgame (o si se han vuelto a pedir chunks de este host), anula los rangos pedidos a este host cuyos chunks ya han llegado
+	 * de otros hosts
+	 */
+	private void cancelCompletedRanges() {
+		for (Map.Entry<Integer, int[]> entry : pendingRanges.entrySet()) {
+			int[] range = entry.getValue();
+			if (!cancelledRanges.contains(entry.getKey()) && download.isRangeDone(range[0], range[1])) {
+				connector.send(PeerMessage.PeerMessageCancel(entry.getKey()));
+				cancelledRanges.add(entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Descarta el host tras un error de comunicacion: los chunks que tenia
+	 * pedidos vuelven al ChunkScheduler para que los descarguen los demas
+	 */
+	private void dropHost(String reason) {
+		System.err.println(reason + ". Removing from hosts list and reassigning its chunks");
+		download.hostFailed(hostIndex, pendingRanges.values());
+		pendingRanges.clear();
+		requestTimes.clear();
+		cancelledRanges.clear();
+		pendingChunks = 0;
+		exit();
+		connector.close();
+	}
+
+	/**
+	 * Llena la ventana de chunks en vuelo sin esperar a las respuestas
+	 */
+	private void requestMoreChunks() {
+		while (pendingChunks < window) {
+			int[] range = download.getScheduler().claim(hostIndex, Math.min(NanoFiles.RANGE_CHUNKS, window - pendingChunks));
+			if (range == null) {
+				break;
+			}
+			if (download.isRangeDone(range[0], range[1])) {
+				continue;	// Chunks vencidos en otro host que ya han llegado
+			}
+			requestRange(range);
+		}
+	}
+
+	/**
+	 * Envia la peticion GET_RANGE de un rango de chunks, que queda pendiente
+	 * aunque falle el envio (para devolverlo al ChunkScheduler)
+	 */
+	private void requestRange(int[] range) {
+		long fileOffset = download.chunkOffset(range[0]);
+		long rangeLength = download.chunkOffset(range[1] - 1) + download.chunkLength(range[1] - 1) - fileOffset;
+		int requestId = nextRequestId++;
+		long now = System.nanoTime();
+		if (pendingRanges.isEmpty()) {
+			// El plazo del primer chunk cuenta desde la peticion
+			lastProgressNanos = now;
+		}
+		requestTimes.put(requestId, new long[] { now, pendingChunks, range[0] });
+		pendingRanges.put(requestId, new int[] { range[0], range[1] });
+		pendingChunks += range[1] - range[0];
+		PeerMessage msgGetRange = PeerMessage.PeerMessageGetRange(requestId, fileOffset, rangeLength);
+		connector.send(msgGetRange);
+	}
+
+	int getHostIndex() {
+		return hostIndex;
+	}
+
+	InetSocketAddress getServerAddr() {
+		return connector.getServerAddr();
+	}
+
+	boolean hasExited() {
+		return exited;
+	}
+
+	/**
+	 * @return Verdadero si el host sigue descargando y tiene chunks pedidos
+	 */
+	boolean hasPendingChunks() {
+		return !exited && !pendingRanges.isEmpty();
+	}
+
+	long getLastProgressNanos() {
+		return lastProgressNanos;
+	}
+
+	/**
+	 * @return Tiempo medio (ms) entre dos chunks del host, o -1 sin muestras
+	 */
+	double getChunkIntervalMs() {
+		return exited ? -1 : chunkIntervalMs;
+	}
+
+	/**
+	 * @return RTT medio (ms) con el host, o -1 sin muestras
+	 */
+	double getRttMs() {
+		return rttMs;
+	}
+
+	/**
+	 * @return RTT mínimo (ms) medido con el host, o -1 sin muestras
+	 */
+	double getMinRttMs() {
+		return minRttMs;
+	}
+
+	/**
+	 * Copia de los rangos pedidos y no recibidos, en el orden en que el host los
+	 * va a enviar
+	 *
+	 * @return Rangos {siguiente chunk, chunk final, momento de la petición en
+	 *         System.nanoTime}
+	 */
+	List<long[]> getPendingRanges() {
+		List<long[]> ranges = new ArrayList<>();
+		for (Map.Entry<Integer, int[]> entry : pendingRanges.entrySet()) {
+			int[] range = entry.getValue();
+			int first = range[0];
+			long[] request = requestTimes.get(entry.getKey());
+			if (first < range[1] && request != null) {
+				ranges.add(new long[] { first, range[1], request[0] });
+			}
+		}
+		return ranges;
+	}
+
+	/**
+	 * @return Chunks que se pueden tener en vuelo con el host
+	 */
+	int getWindow() {
+		return window;
+	}
+
+	/**
+	 * Reduce a la mitad los chunks en vuelo de un host retrasado, cuyos chunks se
+	 * han pedido a otros hosts
+	 */
+	void demote() {
+		window = Math.max(1, window / 2);
+		reissued = true;
+	}
+
+	/**
+	 * Cierra la conexión con un host que no envía nada: se descarta el host y sus
+	 * chunks pasan a los demás
+	 */
+	void abort() {
+		connector.close();
+	}
+}
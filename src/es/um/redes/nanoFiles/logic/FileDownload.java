@@ -0,0 +1,436 @@
+package es.um.redes.nanoFiles.logic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import es.um.redes.nanoFiles.util.MerkleTree;
+
+/**
+ * Estado compartido por los DownloadWorker (uno por conexión) que descargan un
+ * mismo fichero: el fichero local, el reparto de chunks (ChunkScheduler), la
+ * verificación de piezas con el árbol de Merkle, el progreso que se guarda para
+ * poder reanudar la descarga (ResumeState) y los contadores del resumen.
+ */
+class FileDownload {
+
+	private final FileChannel localChannel;
+	private final long fileSize;
+	private final int chunkSize;
+	private final int totalChunks;
+	private final ChunkScheduler scheduler;
+
+	/**
+	 * Árbol de piezas del fichero (null si ningún servidor lo ofrece) y número de
+	 * chunks de cada pieza que faltan por escribir; al llegar a 0 la pieza se
+	 * verifica
+	 */
+	private final MerkleTree pieceTree;
+	private final int pieceSize;
+	private final int[] pieceChunksLeft;
+	private int verifiedPieces = 0;
+
+	/**
+	 * Chunks escritos en el fichero local (incluidos los de una descarga anterior
+	 * que se reanuda), y progreso guardado en disco cada RESUME_SAVE_INTERVAL_MS
+	 */
+	private final BitSet completed;
+	// Chunks que algún hilo está escribiendo, para descartar las copias duplicadas
+	private final BitSet writing = new BitSet();
+	private int duplicateChunks = 0;
+	private final int resumedChunks;
+	private final ResumeState resumeState;
+	private final long saveIntervalMs;
+	private volatile long lastSaveTime = System.currentTimeMillis();
+	private final AtomicBoolean saving = new AtomicBoolean(false);
+
+	/**
+	 * Hash del fichero calculado según llegan los chunks (null si no se calcula)
+	 */
+	private final InOrderHasher hasher;
+
+	/**
+	 * Número de chunks sin completar por debajo del cual empieza el endgame (0
+	 * para no hacerlo), y si ya ha empezado
+	 */
+	private final int endgameChunks;
+	private volatile boolean endgame = false;
+
+	/**
+	 * Chunks descargados por cada host, hosts que han fallado durante la descarga
+	 * y DownloadWorker que siguen en marcha
+	 */
+	private int[] hostChunkCount;
+	private final BitSet failedHosts = new BitSet();
+	private int runningWorkers;
+
+	/**
+	 * Se activa cuando uno de los DownloadWorker falla, para que el resto no sigan
+	 */
+	private volatile boolean failed = false;
+
+	/**
+	 * @param resumeState    Progreso guardado de la descarga (null si no se
+	 *                       guarda), del que se toman los chunks ya completos
+	 * @param saveIntervalMs Tiempo mínimo entre dos guardados del progreso
+	 * @param hashReorder    Número máximo de chunks adelantados que se guardan en
+	 *                       memoria para calcular el hash en orden (0 para
+	 *                       calcularlo al final leyendo el fichero)
+	 * @param endgameChunks  Número de chunks sin completar a partir del cual los
+	 *                       que faltan se piden a varios hosts (0 para no hacerlo)
+	 */
+	FileDownload(FileChannel localChannel, long fileSize, int chunkSize, MerkleTree pieceTree, int numHosts,
+			int maxRetries, ResumeState resumeState, long saveIntervalMs, int hashReorder, int endgameChunks) {
+		this.localChannel = localChannel;
+		this.fileSize = fileSize;
+		this.chunkSize = chunkSize;
+		this.totalChunks = (int) ((fileSize + chunkSize - 1) / chunkSize);
+		this.resumeState = resumeState;
+		this.saveIntervalMs = saveIntervalMs;
+		this.endgameChunks = endgameChunks;
+		this.completed = (resumeState != null) ? resumeState.getCompleted() : new BitSet(totalChunks);
+		this.completed.clear(totalChunks, Math.max(totalChunks, completed.length()));
+		this.resumedChunks = completed.cardinality();
+		this.scheduler = new ChunkScheduler(totalChunks, numHosts, maxRetries, completed);
+		this.pieceTree = pieceTree;
+		this.hostChunkCount = new int[numHosts];
+		this.runningWorkers = numHosts;
+		if (pieceTree != null) {
+			pieceSize = pieceTree.getPieceSize();
+			pieceChunksLeft = new int[pieceTree.getNumPieces()];
+			for (int c = completed.nextClearBit(0); c < totalChunks; c = completed.nextClearBit(c + 1)) {
+				addPendingChunk(c);
+			}
+		} else {
+			pieceSize = 0;
+			pieceChunksLeft = null;
+		}
+		InOrderHasher inOrderHasher = null;
+		if (hashReorder > 0) {
+			try {
+				inOrderHasher = new InOrderHasher(localChannel, this, completed, hashReorder, chunkSize);
+			} catch (NoSuchAlgorithmException e) {
+				System.err.println("[-] Cannot hash the file while downloading: " + e.getMessage());
+			}
+		}
+		hasher = inOrderHasher;
+	}
+
+	ChunkScheduler getScheduler() {
+		return scheduler;
+	}
+
+	int getTotalChunks() {
+		return totalChunks;
+	}
+
+	long chunkOffset(int chunk) {
+		return (long) chunk * chunkSize;
+	}
+
+	/**
+	 * Tamaño de un chunk, menor que el tamaño por defecto si es el último
+	 */
+	int chunkLength(int chunk) {
+		return (int) Math.min(chunkSize, fileSize - chunkOffset(chunk));
+	}
+
+	/**
+	 * Escribe un chunk recibido en el fichero local. Las escrituras posicionales de
+	 * FileChannel no comparten posición, así que los hilos escriben a la vez sin
+	 * cerrojo (cada chunk ocupa una zona distinta del fichero).
+	 *
+	 * @param chunk El índice del chunk
+	 * @param data  Los datos del chunk
+	 * @param host  El índice del host del que se ha recibido
+	 * @return Falso si el chunk ya se había recibido de otro host (endgame) y se ha
+	 *         descartado; en ese caso no hay que verificar sus piezas
+	 */
+	boolean writeChunk(int chunk, ByteBuffer data, int host) throws IOException {
+		synchronized (this) {
+			if (completed.get(chunk) || writing.get(chunk)) {
+				duplicateChunks++;
+				return false;
+			}
+			writing.set(chunk);
+		}
+		ByteBuffer hashData = (hasher != null) ? data.duplicate() : null;
+		try {
+			// Escritura posicional, sin copiar los datos
+			long writeOffset = chunkOffset(chunk);
+			while (data.hasRemaining()) {
+				writeOffset += localChannel.write(data, writeOffset);
+			}
+		} finally {
+			synchronized (this) {
+				writing.clear(chunk);
+			}
+		}
+		ArrayList<int[]> missingRanges = null;
+		synchronized (this) {
+			hostChunkCount[host]++;
+			completed.set(chunk);
+			if (!endgame && endgameChunks > 0 && totalChunks - completed.cardinality() <= endgameChunks) {
+				endgame = true;
+				missingRanges = new ArrayList<>();
+				int c = completed.nextClearBit(0);
+				while (c < totalChunks) {
+					int end = completed.nextSetBit(c);
+					if (end < 0 || end > totalChunks) {
+						end = totalChunks;
+					}
+					missingRanges.add(new int[] { c, end });
+					c = completed.nextClearBit(end);
+				}
+			}
+		}
+		if (missingRanges != null) {
+			scheduler.startEndgame(missingRanges);
+		}
+		if (hasher != null) {
+			hasher.chunkWritten(chunk, hashData);
+		}
+		if (resumeState != null && System.currentTimeMillis() - lastSaveTime >= saveIntervalMs) {
+			saveProgress();
+		}
+		return true;
+	}
+
+	/**
+	 * Guarda en disco qué chunks están completos, tras sincronizar el fichero de
+	 * datos para que el mapa de bits no marque chunks que no han llegado al disco.
+	 * Si otro hilo ya está guardando, no se hace nada.
+	 */
+	void saveProgress() throws IOException {
+		if (resumeState == null || !saving.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			BitSet snapshot;
+			synchronized (this) {
+				snapshot = (BitSet) completed.clone();
+			}
+			localChannel.force(false);
+			resumeState.save(snapshot);
+			lastSaveTime = System.currentTimeMillis();
+		} finally {
+			saving.set(false);
+		}
+	}
+
+	/**
+	 * Verifica las piezas que el chunk (recién escrito) completa. Los chunks de una
+	 * pieza corrupta se devuelven al ChunkScheduler para volver a pedirlos.
+	 *
+	 * @param chunk        El índice del chunk
+	 * @param verifyBuffer Buffer donde leer las piezas del fichero local
+	 * @throws DownloadException Si algún chunk se ha pedido demasiadas veces
+	 */
+	void verifyPieces(int chunk, ByteBuffer verifyBuffer) throws IOException, DownloadException {
+		if (pieceTree == null) {
+			return;
+		}
+		long chunkStart = chunkOffset(chunk);
+		long chunkEnd = chunkStart + chunkLength(chunk);
+		for (int p = (int) (chunkStart / pieceSize); p <= (chunkEnd - 1) / pieceSize; p++) {
+			synchronized (this) {
+				if (--pieceChunksLeft[p] != 0) {
+					continue;
+				}
+			}
+			if (pieceTree.verifyPiece(p, localChannel, verifyBuffer)) {
+				synchronized (this) {
+					verifiedPieces++;
+				}
+				continue;
+			}
+			// Pieza corrupta: se vuelven a pedir todos sus chunks
+			System.err.println("\t[-] Piece " + p + " does not match its hash in the Merkle tree, requesting it again");
+			long pieceStart = (long) p * pieceSize;
+			long pieceEnd = Math.min(pieceStart + pieceSize, fileSize);
+			for (int c = (int) (pieceStart / chunkSize); c <= (pieceEnd - 1) / chunkSize; c++) {
+				synchronized (this) {
+					addPendingChunk(c);
+					completed.clear(c);
+				}
+				if (hasher != null) {
+					hasher.chunkDiscarded(c);
+				}
+				requeueChunk(c);
+			}
+		}
+	}
+
+	/**
+	 * Cuenta el chunk como pendiente en todas las piezas que solapa
+	 */
+	private void addPendingChunk(int chunk) {
+		long chunkStart = chunkOffset(chunk);
+		long chunkEnd = chunkStart + chunkLength(chunk);
+		for (int p = (int) (chunkStart / pieceSize); p <= (chunkEnd - 1) / pieceSize; p++) {
+			pieceChunksLeft[p]++;
+		}
+	}
+
+	/**
+	 * Vuelve a encolar un chunk que ha llegado corrupto
+	 *
+	 * @throws DownloadException Si el chunk se ha pedido demasiadas veces
+	 */
+	void requeueChunk(int chunk) throws DownloadException {
+		if (!scheduler.retry(chunk)) {
+			System.err.println("[-] Chunk " + chunk + " arrived corrupt too many times. Aborting download....");
+			throw new DownloadException();
+		}
+	}
+
+	/**
+	 * Añade un host a la descarga en curso
+	 *
+	 * @return El índice del host, con el que se crea su DownloadWorker
+	 */
+	int addHost() {
+		int host = scheduler.addWorker();
+		synchronized (this) {
+			hostChunkCount = Arrays.copyOf(hostChunkCount, host + 1);
+			runningWorkers++;
+		}
+		return host;
+	}
+
+	/**
+	 * Descarta un host que ha fallado. Los chunks que tenía pedidos se reparten
+	 * entre el resto y la descarga sigue.
+	 *
+	 * @param pendingRanges Rangos {siguiente chunk, chunk final} pedidos al host
+	 *                      y no recibidos
+	 */
+	void hostFailed(int host, Collection<int[]> pendingRanges) {
+		scheduler.release(host, pendingRanges);
+		synchronized (this) {
+			failedHosts.set(host);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Vuelve a repartir entre los demás hosts chunks que un host lento no ha
+	 * enviado a tiempo, sin darlo de baja
+	 *
+	 * @param ranges Rangos {primer chunk, chunk final} vencidos
+	 */
+	void reissueChunks(int host, Collection<int[]> ranges) {
+		scheduler.reissue(host, ranges);
+	}
+
+	synchronized void workerExited() {
+		runningWorkers--;
+		notifyAll();
+	}
+
+	/**
+	 * Espera a que terminen todos los DownloadWorker
+	 */
+	synchronized void awaitWorkers() throws InterruptedException {
+		while (runningWorkers > 0) {
+			wait();
+		}
+	}
+
+	/**
+	 * Espera a que falle algún host más, a que terminen todos los DownloadWorker o
+	 * a que pase el tiempo indicado
+	 *
+	 * @param handledFailures Número de hosts caídos ya tratados
+	 * @param timeoutMs       Tiempo máximo de espera
+	 * @return Verdadero si ha fallado algún host más
+	 */
+	synchronized boolean awaitHostFailure(int handledFailures, long timeoutMs) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		long remaining = timeoutMs;
+		while (runningWorkers > 0 && failedHosts.cardinality() <= handledFailures && remaining > 0) {
+			wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+		return failedHosts.cardinality() > handledFailures;
+	}
+
+	synchronized boolean hasRunningWorkers() {
+		return runningWorkers > 0;
+	}
+
+	synchronized int getFailedHosts() {
+		return failedHosts.cardinality();
+	}
+
+	synchronized boolean isHostFailed(int host) {
+		return failedHosts.get(host);
+	}
+
+	boolean isEndgame() {
+		return endgame;
+	}
+
+	/**
+	 * Comprueba si ya se han completado todos los chunks de [first, end)
+	 */
+	synchronized boolean isRangeDone(int first, int end) {
+		return completed.nextClearBit(first) >= end;
+	}
+
+	synchronized int getDuplicateChunks() {
+		return duplicateChunks;
+	}
+
+	synchronized boolean isComplete() {
+		return completed.cardinality() == totalChunks;
+	}
+
+	boolean isFailed() {
+		return failed;
+	}
+
+	void fail() {
+		failed = true;
+		scheduler.abort();
+	}
+
+	boolean hasPieceTree() {
+		return pieceTree != null;
+	}
+
+	int getPieceSize() {
+		return pieceSize;
+	}
+
+	/**
+	 * Hash del fichero calculado durante la descarga
+	 *
+	 * @return El hash, o null si hay que calcularlo leyendo el fichero
+	 */
+	String getFileHash() {
+		return (hasher != null) ? hasher.getFileHash() : null;
+	}
+
+	int getResumedChunks() {
+		return resumedChunks;
+	}
+
+	synchronized int getCompletedChunks() {
+		return completed.cardinality();
+	}
+
+	synchronized int getVerifiedPieces() {
+		return verifiedPieces;
+	}
+
+	synchronized int getHostChunkCount(int host) {
+		return hostChunkCount[host];
+	}
+}
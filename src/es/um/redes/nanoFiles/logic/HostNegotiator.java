@@ -0,0 +1,541 @@
+package es.um.redes.nanoFiles.logic;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import es.um.redes.nanoFiles.application.NanoFiles;
+import es.um.redes.nanoFiles.tcp.client.NFAsyncConnector;
+import es.um.redes.nanoFiles.tcp.client.NFClientEventLoop;
+import es.um.redes.nanoFiles.tcp.client.NFConnectorPool;
+import es.um.redes.nanoFiles.tcp.message.PeerMessage;
+import es.um.redes.nanoFiles.tcp.message.PeerMessageOps;
+import es.um.redes.nanoFiles.util.MerkleTree;
+
+/**
+ * Conecta con los servidores de una descarga y les pide el fichero
+ * (DOWNLOAD_FILE) en paralelo, para que un host que no responde no retrase al
+ * resto. Cada negociación tiene un plazo (conexión y respuesta): si vence, se
+ * corta su conexión y se da por fallida. Si el fichero tiene árbol de Merkle, el
+ * primer host que lo aprueba envía también los hashes de las piezas, con otro
+ * plazo igual.
+ *
+ * Los resultados se recogen en el orden en que terminan: la descarga empieza con
+ * el primer host que la aprueba, y los demás se van sumando a la descarga en
+ * curso según llegan. También se usa durante la descarga para conectar con
+ * sustitutos de hosts caídos y abrir conexiones adicionales con un host, sin
+ * bloquear al hilo que controla la descarga.
+ *
+ * Las conexiones pasan al NFClientEventLoop de la descarga en cuanto se
+ * establecen, y la negociación sigue en su hilo con las respuestas del
+ * servidor (NFAsyncConnector.request), que también vence los plazos. Sólo
+ * establecer la conexión bloquea, y se hace en los hilos del negociador.
+ *
+ * Cada conexión ocupa un permiso del límite global de conexiones (compartido
+ * por todas las descargas en curso), que se devuelve al cerrar el negociador.
+ * Las conexiones se toman del NFConnectorPool, que reutiliza las que han dejado
+ * descargas anteriores con el mismo servidor, y las que no se llegan a usar se
+ * le devuelven.
+ */
+class HostNegotiator {
+
+	/**
+	 * Resultado de la negociación con un servidor
+	 */
+	static final class Negotiation {
+		final InetSocketAddress address;
+		// Conexiones con la descarga aprobada (vacía si ha fallado)
+		final List<NFAsyncConnector> connectors;
+		// Respuesta DOWNLOAD_APROVE, o null si ha fallado
+		final PeerMessage approval;
+		// Árbol de piezas comprobado contra la raíz de la aprobación (null si no se ha pedido)
+		final MerkleTree pieceTree;
+		// Motivo del fallo
+		final String error;
+		// Conexión adicional con un host que ya participa en la descarga
+		final boolean extra;
+
+		private Negotiation(InetSocketAddress address, List<NFAsyncConnector> connectors, PeerMessage approval,
+				MerkleTree pieceTree, String error, boolean extra) {
+			this.address = address;
+			this.connectors = connectors;
+			this.approval = approval;
+			this.pieceTree = pieceTree;
+			this.error = error;
+			this.extra = extra;
+		}
+
+		boolean isApproved() {
+			return approval != null;
+		}
+	}
+
+	private final String targetFileNameSubstring;
+	private final int connectTimeoutMs;
+	private final long negotiationTimeoutMs;
+	private final NFClientEventLoop loop;
+	private final ExecutorService pool;
+	private final LinkedBlockingQueue<Negotiation> results = new LinkedBlockingQueue<>();
+	// Límite global de conexiones, o null si no hay
+	private final Semaphore connectionPermits;
+	private final NFConnectorPool connectorPool;
+	// Permisos tomados por las conexiones abiertas
+	private final AtomicInteger permitsHeld = new AtomicInteger();
+
+	/**
+	 * Conexiones en negociación, que se cortan al cerrar el negociador
+	 */
+	private final Set<NFAsyncConnector> negotiating = ConcurrentHashMap.newKeySet();
+	/**
+	 * Último árbol de piezas obtenido, que no se vuelve a pedir a los hosts que
+	 * anuncian la misma raíz
+	 */
+	private final AtomicReference<MerkleTree> knownTree = new AtomicReference<>();
+	private int submitted = 0;
+	private int collected = 0;
+	// Negociaciones que aún no han dejado su resultado (con el cerrojo del negociador)
+	private int running = 0;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param maxParallel          Número máximo de conexiones que se abren a la
+	 *                             vez
+	 * @param connectTimeoutMs     Plazo para establecer cada conexión
+	 * @param negotiationTimeoutMs Plazo para recibir la respuesta a DOWNLOAD_FILE
+	 * @param connectionPermits    Límite global de conexiones (null sin límite)
+	 * @param connectorPool        Pool del que se toman las conexiones
+	 * @param loop                 Bucle de eventos de la descarga, al que pasan
+	 *                             las conexiones
+	 */
+	HostNegotiator(String targetFileNameSubstring, int maxParallel, int connectTimeoutMs, long negotiationTimeoutMs,
+			Semaphore connectionPermits, NFConnectorPool connectorPool, NFClientEventLoop loop) {
+		this.targetFileNameSubstring = targetFileNameSubstring;
+		this.connectionPermits = connectionPermits;
+		this.connectorPool = connectorPool;
+		this.connectTimeoutMs = connectTimeoutMs;
+		this.negotiationTimeoutMs = negotiationTimeoutMs;
+		this.loop = loop;
+		this.pool = Executors.newFixedThreadPool(maxParallel, task -> {
+			Thread thread = new Thread(task, "HostNegotiator");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Empieza a negociar con un servidor
+	 *
+	 * @param connections Número de conexiones que se abren con él
+	 * @param reference   Aprobación con la que deben coincidir las del servidor
+	 *                    (null si aún no hay ninguna)
+	 * @param extra       Verdadero si el servidor ya participa en la descarga
+	 */
+	void submit(InetSocketAddress address, int connections, PeerMessage reference, boolean extra) {
+		submitted++;
+		Attempt attempt = new Attempt(address, connections, reference, extra);
+		synchronized (this) {
+			running++;
+		}
+		try {
+			pool.execute(attempt);
+		} catch (RejectedExecutionException e) {
+			attempt.finish("negotiation cancelled");
+		}
+	}
+
+	/**
+	 * @return Verdadero si queda alguna negociación sin recoger
+	 */
+	boolean hasPending() {
+		return collected < submitted;
+	}
+
+	/**
+	 * Espera el resultado de la siguiente negociación que termine
+	 *
+	 * @return El resultado, o null si no termina ninguna en timeoutMs
+	 */
+	Negotiation next(long timeoutMs) throws InterruptedException {
+		Negotiation result = results.poll(timeoutMs, TimeUnit.MILLISECONDS);
+		if (result != null) {
+			collected++;
+		}
+		return result;
+	}
+
+	/**
+	 * @return El resultado de una negociación ya terminada, o null si no hay
+	 */
+	Negotiation poll() {
+		Negotiation result = results.poll();
+		if (result != null) {
+			collected++;
+		}
+		return result;
+	}
+
+	/**
+	 * Cancela las negociaciones en curso, devuelve al pool las conexiones de las
+	 * que no se han recogido y devuelve los permisos de todas las conexiones (las recogidas
+	 * ya no se deben usar)
+	 */
+	void close() {
+		closed = true;
+		// Las negociaciones que esperan para conectar terminan sin hacerlo
+		for (Runnable task : pool.shutdownNow()) {
+			((Attempt) task).finish("negotiation cancelled");
+		}
+		for (NFAsyncConnector connector : negotiating) {
+			connector.close();
+		}
+		// Al cortar sus conexiones las negociaciones terminan en el hilo del bucle
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(negotiationTimeoutMs);
+		synchronized (this) {
+			try {
+				long remaining;
+				while (running > 0 && (remaining = deadline - System.nanoTime()) > 0) {
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		Negotiation result;
+		while ((result = results.poll()) != null) {
+			releaseAll(result.connectors);
+		}
+		if (connectionPermits != null) {
+			connectionPermits.release(permitsHeld.getAndSet(0));
+		}
+	}
+
+	/**
+	 * Deja el resultado de una negociación, o devuelve sus conexiones al pool si
+	 * el negociador ya está cerrado
+	 */
+	private void deliver(Negotiation result) {
+		if (!closed) {
+			results.add(result);
+		} else {
+			releaseAll(result.connectors);
+		}
+		synchronized (this) {
+			running--;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Saca las conexiones del bucle de eventos y las devuelve al pool
+	 */
+	private void releaseAll(List<NFAsyncConnector> connectors) {
+		for (NFAsyncConnector connector : connectors) {
+			connector.detach().whenComplete((released, error) -> {
+				if (released != null) {
+					connectorPool.release(released);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Toma un permiso del límite global de conexiones. La primera conexión con
+	 * un host espera a que alguna descarga libere el suyo; las adicionales sólo
+	 * se abren si hay permisos libres.
+	 */
+	private boolean acquirePermit(boolean wait) {
+		if (connectionPermits == null) {
+			return true;
+		}
+		try {
+			boolean acquired = wait ? connectionPermits.tryAcquire(negotiationTimeoutMs, TimeUnit.MILLISECONDS)
+					: connectionPermits.tryAcquire();
+			if (acquired) {
+				permitsHeld.incrementAndGet();
+			}
+			return acquired;
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+
+	private void releasePermit() {
+		if (connectionPermits != null) {
+			permitsHeld.decrementAndGet();
+			connectionPermits.release();
+		}
+	}
+
+	/**
+	 * Negociación con un servidor: abre sus conexiones de una en una y pide el
+	 * fichero por cada una. Sólo se ocupa un hilo del negociador para tomar la
+	 * conexión del pool (que puede tener que establecerla); el resto se hace en
+	 * el hilo del bucle de eventos, al llegar las respuestas del servidor, cuyo
+	 * plazo vence el propio bucle.
+	 */
+	private final class Attempt implements Runnable {
+		final InetSocketAddress address;
+		final int connections;
+		final PeerMessage reference;
+		final boolean extra;
+		// Conexiones con la descarga aprobada
+		final List<NFAsyncConnector> connectors = new ArrayList<>();
+		PeerMessage approval = null;
+		MerkleTree pieceTree = null;
+		// Conexión en negociación y si tiene un permiso que aún no está en connectors
+		NFAsyncConnector connector = null;
+		boolean holdsPermit = false;
+		boolean finished = false;
+
+		Attempt(InetSocketAddress address, int connections, PeerMessage reference, boolean extra) {
+			this.address = address;
+			this.connections = connections;
+			this.reference = reference;
+			this.extra = extra;
+		}
+
+		/**
+		 * Abre la siguiente conexión (en un hilo del negociador) y le pide el
+		 * fichero
+		 */
+		@Override
+		public void run() {
+			guarded(() -> {
+				if (closed || !acquirePermit(connectors.isEmpty() && !extra)) {
+					finish("cannot connect (connection limit reached)");
+					return;
+				}
+				holdsPermit = true;
+				try {
+					connector = loop.attach(connectorPool.lease(address, connectTimeoutMs));
+				} catch (IOException | IllegalArgumentException e) {
+					finish("cannot connect (" + e.getMessage() + ")");
+					return;
+				}
+				negotiating.add(connector);
+				if (closed) {
+					connector.close();	// El negociador se ha cerrado sin verla
+				}
+				connector.request(PeerMessage.PeerMessageDownloadFile(targetFileNameSubstring), negotiationTimeoutMs)
+						.whenComplete((response, error) -> guarded(() -> approved((error == null) ? response : null)));
+			});
+		}
+
+		/**
+		 * Procesa la respuesta a DOWNLOAD_FILE (null si no ha llegado en el plazo)
+		 */
+		private void approved(PeerMessage response) {
+			String error = checkApproval(response, (approval != null) ? approval : reference);
+			if (error != null) {
+				// Si ha respondido, la conexión sigue sirviendo para otras descargas
+				if (response != null) {
+					negotiating.remove(connector);
+					releaseAll(List.of(connector));
+					connector = null;
+				}
+				finish(error);
+				return;
+			}
+			// Con una referencia el controlador ya tiene el árbol de piezas
+			if (connectors.isEmpty() && reference == null && response.getPieceSize() > 0) {
+				fetchPieceTree(connector, response).whenComplete((tree, e) -> guarded(() -> {
+					if (tree == null) {
+						finish("sent piece hashes that do not match the Merkle root");
+						return;
+					}
+					pieceTree = tree;
+					accepted(response);
+				}));
+				return;
+			}
+			accepted(response);
+		}
+
+		/**
+		 * La conexión en negociación aprueba la descarga: se abre la siguiente o
+		 * termina la negociación
+		 */
+		private void accepted(PeerMessage response) {
+			negotiating.remove(connector);
+			approval = response;
+			connectors.add(connector);
+			connector = null;
+			holdsPermit = false;
+			if (connectors.size() == connections) {
+				finish(null);
+				return;
+			}
+			try {
+				pool.execute(this);
+			} catch (RejectedExecutionException e) {
+				finish("negotiation cancelled");
+			}
+		}
+
+		/**
+		 * Ejecuta un paso de la negociación. Si algo falla a mitad (p.ej. una
+		 * RuntimeException por una respuesta inesperada), se cierran las conexiones
+		 * ya abiertas y se devuelven sus permisos: sin resultado, la descarga
+		 * esperaría a esta negociación hasta cerrarse.
+		 */
+		private void guarded(Runnable step) {
+			try {
+				step.run();
+			} catch (RuntimeException e) {
+				for (NFAsyncConnector opened : connectors) {
+					opened.close();
+					releasePermit();
+				}
+				connectors.clear();
+				finish("failed during negotiation (" + e + ")");
+			}
+		}
+
+		/**
+		 * Termina la negociación: cierra la conexión que estaba negociando y deja
+		 * el resultado
+		 *
+		 * @param error Motivo por el que no se ha abierto la siguiente conexión
+		 */
+		void finish(String error) {
+			if (finished) {
+				return;
+			}
+			finished = true;
+			if (connector != null) {
+				negotiating.remove(connector);
+				connector.close();
+				connector = null;
+			}
+			if (holdsPermit) {
+				releasePermit();
+				holdsPermit = false;
+			}
+			if (connectors.isEmpty()) {
+				deliver(new Negotiation(address, connectors, null, null, error, extra));
+			} else {
+				// Las conexiones adicionales que no se han podido abrir no impiden usar las demás
+				deliver(new Negotiation(address, connectors, approval, pieceTree, null, extra));
+			}
+		}
+	}
+
+	/**
+	 * Obtiene de un servidor los hashes de todas las piezas del fichero y
+	 * comprueba que corresponden con la raiz del arbol de Merkle anunciada. Las
+	 * peticiones se envían todas seguidas, cada una con el plazo de la
+	 * negociación; si alguna vence se corta la conexión.
+	 *
+	 * @return El arbol de piezas, o null si el servidor no lo ha enviado o no
+	 *         corresponde con la raiz
+	 */
+	private CompletableFuture<MerkleTree> fetchPieceTree(NFAsyncConnector connector, PeerMessage approval) {
+		MerkleTree known = knownTree.get();
+		if (known != null && Arrays.equals(known.getRoot(), approval.getMerkleRoot())) {
+			return CompletableFuture.completedFuture(known);
+		}
+		int pieceSize = approval.getPieceSize();
+		long fileSize = (long) approval.getFileSize();
+		int numPieces = MerkleTree.numPieces(fileSize, pieceSize);
+		List<CompletableFuture<PeerMessage>> requests = new ArrayList<>();
+		for (int first = 0; first < numPieces; first += PeerMessage.MAX_PIECE_HASHES) {
+			int count = Math.min(PeerMessage.MAX_PIECE_HASHES, numPieces - first);
+			requests.add(connector.request(PeerMessage.PeerMessageGetPieceHashes(first, count), negotiationTimeoutMs));
+		}
+		return CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0])).handle((ignored, error) -> {
+			if (error != null) {
+				return null;
+			}
+			byte[] leaves = new byte[numPieces * MerkleTree.HASH_LENGTH];
+			for (int i = 0; i < requests.size(); i++) {
+				int first = i * PeerMessage.MAX_PIECE_HASHES;
+				int count = Math.min(PeerMessage.MAX_PIECE_HASHES, numPieces - first);
+				PeerMessage response = requests.get(i).join();
+				if (response.getOpcode() != PeerMessageOps.OPCODE_PIECE_HASHES
+						|| response.getFirstPiece() != first || response.getPieceCount() != count) {
+					return null;
+				}
+				System.arraycopy(response.getPieceHashes(), 0, leaves, first * MerkleTree.HASH_LENGTH,
+						count * MerkleTree.HASH_LENGTH);
+			}
+			MerkleTree tree = MerkleTree.fromLeaves(pieceSize, fileSize, leaves);
+			if (tree == null || !Arrays.equals(tree.getRoot(), approval.getMerkleRoot())) {
+				return null;
+			}
+			knownTree.set(tree);
+			return tree;
+		});
+	}
+
+	/**
+	 * @return null si la respuesta aprueba la descarga del mismo fichero que la
+	 *         referencia, o el motivo por el que no vale
+	 */
+	private String checkApproval(PeerMessage response, PeerMessage reference) {
+		if (response == null) {
+			return "has not responded";
+		}
+		switch (response.getOpcode()) {
+		case PeerMessageOps.OPCODE_DOWNLOAD_APROVE:
+			break;
+		case PeerMessageOps.OPCODE_NOT_FOUND:
+			return "did not found the file";
+		case PeerMessageOps.OPCODE_AMBIGUOUS_NAME:
+			return "has more than one file that matches " + targetFileNameSubstring;
+		default:
+			return "did not aprove download";
+		}
+		if (!isValidApproval(response)) {
+			return "sent an invalid file size or piece size";
+		}
+		if (reference != null && !sameFile(response, reference)) {
+			return "returned inconsistent file data (Hash/Size mismatch)";
+		}
+		return null;
+	}
+
+	/**
+	 * Comprueba que el tamaño del fichero y de las piezas de una aprobación se
+	 * pueden usar: las piezas deben ser múltiplo de DEFAULT_CHUNK_SIZE (cada chunk
+	 * pertenece a una sola pieza) y su número no debe pasar de
+	 * MerkleTree.MAX_PIECES, para no reservar un array de hojas desmesurado
+	 */
+	private static boolean isValidApproval(PeerMessage approval) {
+		double fileSize = approval.getFileSize();
+		int pieceSize = approval.getPieceSize();
+		if (!(fileSize >= 0 && fileSize <= Long.MAX_VALUE) || fileSize != Math.floor(fileSize) || pieceSize < 0) {
+			return false;
+		}
+		if (pieceSize == 0) {
+			// Sin árbol de piezas
+			return true;
+		}
+		long size = (long) fileSize;
+		long numPieces = size / pieceSize + ((size % pieceSize != 0) ? 1 : 0);
+		return pieceSize % NanoFiles.DEFAULT_CHUNK_SIZE == 0 && numPieces <= MerkleTree.MAX_PIECES;
+	}
+
+	/**
+	 * Comprueba si dos aprobaciones de descarga corresponden al mismo fichero
+	 * (hash, tamaño y árbol de Merkle)
+	 */
+	static boolean sameFile(PeerMessage approval, PeerMessage reference) {
+		return reference.getHashCode().equals(approval.getHashCode())
+				&& reference.getFileSize() == approval.getFileSize()
+				&& reference.getPieceSize() == approval.getPieceSize()
+				&& Arrays.equals(reference.getMerkleRoot(), approval.getMerkleRoot());
+	}
+}
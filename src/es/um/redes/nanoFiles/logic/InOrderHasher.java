@@ -0,0 +1,183 @@
+package es.um.redes.nanoFiles.logic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import es.um.redes.nanoFiles.util.ByteBufferPool;
+import es.um.redes.nanoFiles.util.FileDigest;
+
+/**
+ * Calcula el hash (FileDigest.algorithm) del fichero según se descarga, para no
+ * tener que volver a leerlo entero del disco al terminar.
+ *
+ * Los chunks llegan desordenados, pero el hash hay que calcularlo en orden: cada
+ * chunk que es el siguiente del prefijo ya calculado se pasa directamente al
+ * MessageDigest, y los que llegan adelantados se copian a un buffer de
+ * reordenación acotado. Si el buffer está lleno (o el chunk viene de una
+ * descarga anterior que se reanuda) sólo se anota que está en disco, y se lee
+ * del fichero cuando le toque.
+ *
+ * Sólo un hilo calcula el hash a la vez; el resto deja sus chunks y sigue
+ * descargando.
+ */
+class InOrderHasher {
+
+	private final FileChannel localChannel;
+	private final FileDownload download;
+	private final int totalChunks;
+	private final MessageDigest digest;
+
+	/**
+	 * Chunks adelantados copiados en memoria y chunks adelantados que sólo están
+	 * en el fichero local
+	 */
+	private final Map<Integer, ByteBuffer> reorderBuffer = new HashMap<>();
+	private final ByteBufferPool bufferPool;
+	private final int maxBuffered;
+	private final BitSet onDisk = new BitSet();
+
+	// Primer chunk que falta por pasar al MessageDigest
+	private int nextChunk = 0;
+	// Hay un hilo pasando chunks al MessageDigest
+	private boolean hashing = false;
+	// Se ha reemplazado un chunk ya incluido en el hash: hay que recalcularlo
+	private boolean invalidated = false;
+
+	/**
+	 * @param completed   Chunks que ya están en el fichero local
+	 * @param maxBuffered Número máximo de chunks adelantados en memoria
+	 */
+	InOrderHasher(FileChannel localChannel, FileDownload download, BitSet completed, int maxBuffered,
+			int chunkSize) throws NoSuchAlgorithmException {
+		this.localChannel = localChannel;
+		this.download = download;
+		this.totalChunks = download.getTotalChunks();
+		this.digest = MessageDigest.getInstance(FileDigest.algorithm);
+		this.maxBuffered = maxBuffered;
+		this.bufferPool = new ByteBufferPool(chunkSize, maxBuffered);
+		this.onDisk.or(completed);
+	}
+
+	/**
+	 * Añade al hash un chunk recién escrito en el fichero local
+	 *
+	 * @param chunk El índice del chunk
+	 * @param data  Los datos del chunk (se copian si no se usan en el momento)
+	 */
+	void chunkWritten(int chunk, ByteBuffer data) throws IOException {
+		synchronized (this) {
+			if (chunk < nextChunk) {
+				// Chunk repetido (reintento de una pieza): el hash calculado ya no vale
+				invalidated = true;
+				return;
+			}
+			if (chunk != nextChunk || hashing) {
+				if (reorderBuffer.size() < maxBuffered) {
+					ByteBuffer copy = bufferPool.acquire();
+					copy.put(data).flip();
+					releaseBuffered(chunk);
+					reorderBuffer.put(chunk, copy);
+				} else {
+					onDisk.set(chunk);
+				}
+				if (hashing) {
+					return;
+				}
+				data = null;
+			}
+			hashing = true;
+		}
+		ByteBuffer readBuffer = null;
+		try {
+			if (data != null) {
+				digest.update(data);
+				synchronized (this) {
+					nextChunk++;
+				}
+			}
+			// Se sigue con los chunks adelantados que ya estén disponibles
+			while (true) {
+				ByteBuffer next;
+				synchronized (this) {
+					next = reorderBuffer.remove(nextChunk);
+					if (next == null) {
+						if (!onDisk.get(nextChunk)) {
+							hashing = false;
+							return;
+						}
+						onDisk.clear(nextChunk);
+					}
+				}
+				if (next != null) {
+					digest.update(next);
+					bufferPool.release(next);
+				} else {
+					if (readBuffer == null) {
+						readBuffer = ByteBuffer.allocate(bufferPool.getBufferSize());
+					}
+					readChunk(nextChunk, readBuffer);
+					digest.update(readBuffer);
+				}
+				synchronized (this) {
+					nextChunk++;
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			synchronized (this) {
+				invalidated = true;
+				hashing = false;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Descarta un chunk que se va a volver a pedir porque su pieza no coincide con
+	 * el árbol de Merkle
+	 */
+	synchronized void chunkDiscarded(int chunk) {
+		if (chunk < nextChunk) {
+			invalidated = true;
+		}
+		releaseBuffered(chunk);
+		onDisk.clear(chunk);
+	}
+
+	private void releaseBuffered(int chunk) {
+		ByteBuffer old = reorderBuffer.remove(chunk);
+		if (old != null) {
+			bufferPool.release(old);
+		}
+	}
+
+	private void readChunk(int chunk, ByteBuffer buf) throws IOException {
+		buf.clear().limit(download.chunkLength(chunk));
+		long position = download.chunkOffset(chunk);
+		while (buf.hasRemaining()) {
+			int read = localChannel.read(buf, position + buf.position());
+			if (read < 0) {
+				throw new IOException("Unexpected end of file reading chunk " + chunk);
+			}
+		}
+		buf.flip();
+	}
+
+	/**
+	 * Hash del fichero, una vez escritos todos los chunks
+	 *
+	 * @return El hash en hexadecimal, o null si no se ha podido calcular sobre la
+	 *         marcha y hay que leer el fichero entero
+	 */
+	synchronized String getFileHash() {
+		if (invalidated || hashing || nextChunk != totalChunks) {
+			return null;
+		}
+		return FileDigest.getChecksumHexString(digest.digest());
+	}
+}
@@ -1,7 +1,5 @@
 package es.um.redes.nanoFiles.logic;
 
-import java.net.InetSocketAddress;
-
 import es.um.redes.nanoFiles.application.NanoFiles;
 import es.um.redes.nanoFiles.shell.NFCommands;
 import es.um.redes.nanoFiles.shell.NFShell;
@@ -46,6 +44,10 @@ public class NFController {
 	 * servidor o cliente)
 	 */
 	private NFControllerLogicP2P controllerPeer;
+	/**
+	 * Cola de descargas en segundo plano
+	 */
+	private DownloadManager downloadManager;
 
 	/**
 	 * El estado en que se encuentra este peer (según el autómata). El estado debe
@@ -59,9 +61,11 @@ public class NFController {
 	 * deben usar para pasar los valores de los parámetros a las funciones invocadas
 	 * desde este controlador.
 	 */
-	private String targetFilenameSubstring; // Nombre del fichero a descargar/subir (download/upload)
+	private String targetFilenameSubstring; // Nombre del fichero a descargar/subir (download/download-all/upload)
 	private String downloadLocalFileName; // Nombre con el que se guardará el fichero descargado (download)
 	private String uploadToServer; // Servidor al que se subirá el fichero indicado (upload)
+	private int downloadPriority; // Prioridad de la descarga (download, download-all, priority)
+	private int downloadJobId; // Descarga sobre la que se actúa (pause, resume, cancel, priority)
 
 	// Constructor
 	public NFController(String defaultDirectory) {
@@ -71,6 +75,7 @@ public class NFController {
 
 		controllerDir = new NFControllerLogicDir(directory);
 		controllerPeer = new NFControllerLogicP2P();
+		downloadManager = new DownloadManager(controllerDir, controllerPeer, NanoFiles.MAX_CONCURRENT_DOWNLOADS);
 		// Estado inicial del autómata
 		currentState = OFFLINE;
 
@@ -157,29 +162,65 @@ public class NFController {
 			break;
 		case NFCommands.COM_DOWNLOAD:
 			/*
-			 * Pedir al controllerDir que obtenga del directorio la lista de servidores que
-			 * comparten el fichero cuyo nombre contenga la subcadena indicada (1er
-			 * argumento pasado al comando). Si existen servidores que comparten ficheros
-			 * con dicho nombre, pedir al controllerPeer que descargue el fichero indicado
-			 * de los servidores obtenidos, y lo guarde con el nombre indicado en
-			 * downloadLocalFileName (2º argumento)
+			 * Encolar en el downloadManager la descarga del fichero cuyo nombre contenga
+			 * la subcadena indicada (1er argumento pasado al comando), que se guardará con
+			 * el nombre indicado en downloadLocalFileName (2º argumento). La descarga se
+			 * hace en segundo plano: el downloadManager obtiene del directorio la lista de
+			 * servidores que comparten el fichero y pide al controllerPeer que lo
+			 * descargue de ellos.
 			 */
 			if (NanoFiles.testModeTCP) {
 				controllerPeer.testTCPClient();
 			} else {
-				InetSocketAddress[] serverAddressList = controllerDir
-						.getServerAddressesSharingThisFile(targetFilenameSubstring);
-				commandSucceeded = controllerPeer.downloadFileFromServers(serverAddressList, targetFilenameSubstring,
-						downloadLocalFileName);
+				DownloadJob job = downloadManager.submit(targetFilenameSubstring, downloadLocalFileName,
+						downloadPriority);
+				if (job != null) {
+					System.out.println("[*] Download #" + job.getId() + " queued, type 'downloads' to see its progress");
+					commandSucceeded = true;
+				}
 			}
 			break;
+		case NFCommands.COM_DOWNLOAD_ALL:
+			/*
+			 * Encolar la descarga de todos los ficheros cuyo nombre contenga la subcadena
+			 * indicada, que se guardan con su nombre. El downloadManager pide al
+			 * directorio todos los ficheros que coinciden y sus servidores en una sola
+			 * consulta.
+			 */
+			DownloadJob bulkJob = downloadManager.submitAll(targetFilenameSubstring, downloadPriority);
+			if (bulkJob != null) {
+				System.out.println("[*] Download #" + bulkJob.getId() + " queued, type 'downloads' to see its progress");
+				commandSucceeded = true;
+			}
+			break;
+		case NFCommands.COM_DOWNLOADS:
+			downloadManager.printJobs();
+			break;
+		case NFCommands.COM_PAUSE:
+			downloadManager.pause(downloadJobId);
+			break;
+		case NFCommands.COM_RESUME:
+			downloadManager.resume(downloadJobId);
+			break;
+		case NFCommands.COM_CANCEL:
+			downloadManager.cancel(downloadJobId);
+			break;
+		case NFCommands.COM_PRIORITY:
+			downloadManager.setPriority(downloadJobId, downloadPriority);
+			break;
 		case NFCommands.COM_QUIT:
 			/*
 			 * Pedir al controllerPeer que pare el servidor en segundo plano (método método
 			 * stopBackgroundFileServer). A continuación, pedir al controllerDir que
 			 * solicite al directorio darnos de baja como servidor de ficheros (método
-			 * unregisterFileServer).
+			 * unregisterFileServer). Las descargas en curso se paran conservando lo
+			 * descargado.
 			 */
+			if (downloadManager.hasActiveJobs()) {
+				System.out.println("[*] Pausing running downloads, download them again to resume");
+			}
+			downloadManager.shutdown();
+			controllerPeer.closePooledConnections();
 			if (controllerPeer.serving()) {
 				commandSucceeded = controllerDir.unregisterFileServer(controllerPeer.getServerPort());
 				controllerPeer.stopFileServer();
@@ -222,11 +263,17 @@ public class NFController {
 		 */
 		boolean commandAllowed = true;
 		switch (currentCommand) {
-		case NFCommands.COM_MYFILES: {
+		case NFCommands.COM_MYFILES:
+		case NFCommands.COM_DOWNLOADS:
+		case NFCommands.COM_PAUSE:
+		case NFCommands.COM_RESUME:
+		case NFCommands.COM_CANCEL:
+		case NFCommands.COM_PRIORITY: {
 			commandAllowed = true;
 			break;
 		}
-		case NFCommands.COM_DOWNLOAD: {
+		case NFCommands.COM_DOWNLOAD:
+		case NFCommands.COM_DOWNLOAD_ALL: {
 			if (currentState!=ONLINE) {
 				System.err.println("[-] Error: You must ping before introduce any other command.");
 				commandAllowed=false;
@@ -275,7 +322,8 @@ public class NFController {
 			return;
 		}
 		switch (currentCommand) {
-		case NFCommands.COM_DOWNLOAD: {
+		case NFCommands.COM_DOWNLOAD:
+		case NFCommands.COM_DOWNLOAD_ALL: {
 			currentState = ONLINE;
 			break;
 		}
@@ -337,6 +385,20 @@ public class NFController {
 		case NFCommands.COM_DOWNLOAD:
 			targetFilenameSubstring = args[0];
 			downloadLocalFileName = args[1];
+			downloadPriority = (args.length > 2) ? Integer.parseInt(args[2]) : 0;
+			break;
+		case NFCommands.COM_DOWNLOAD_ALL:
+			targetFilenameSubstring = args[0];
+			downloadPriority = (args.length > 1) ? Integer.parseInt(args[1]) : 0;
+			break;
+		case NFCommands.COM_PAUSE:
+		case NFCommands.COM_RESUME:
+		case NFCommands.COM_CANCEL:
+			downloadJobId = Integer.parseInt(args[0]);
+			break;
+		case NFCommands.COM_PRIORITY:
+			downloadJobId = Integer.parseInt(args[0]);
+			downloadPriority = Integer.parseInt(args[1]);
 			break;
 		case NFCommands.COM_UPLOAD:
 			targetFilenameSubstring = args[0];
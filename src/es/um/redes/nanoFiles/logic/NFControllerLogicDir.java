@@ -6,6 +6,7 @@ import java.net.InetSocketAddress;
 import es.um.redes.nanoFiles.application.NanoFiles;
 import es.um.redes.nanoFiles.udp.client.DirectoryConnector;
 import es.um.redes.nanoFiles.util.FileInfo;
+import es.um.redes.nanoFiles.util.RemoteFile;
 
 public class NFControllerLogicDir {
 
@@ -161,6 +162,18 @@ public class NFControllerLogicDir {
 		return directoryConnector.getServersSharingThisFile(filenameSubstring);
 	}
 
+	/**
+	 * Método para consultar al directorio todos los ficheros cuyo nombre contiene
+	 * una subcadena, con los servidores que comparten cada uno.
+	 * 
+	 * @param filenameSubstring una subcadena del nombre de los ficheros
+	 * @return Los ficheros que coinciden con sus servidores, o null si no se ha
+	 *         podido obtener la lista
+	 */
+	protected RemoteFile[] getMatchingFiles(String filenameSubstring) {
+		return directoryConnector.getMatchingFiles(filenameSubstring);
+	}
+
 	/**
 	 * Método para dar de baja a nuestro servidor de ficheros en el directorio.
 	 * 
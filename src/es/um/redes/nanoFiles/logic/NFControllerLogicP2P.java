@@ -2,29 +2,36 @@ package es.um.redes.nanoFiles.logic;
 
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 
+import es.um.redes.nanoFiles.tcp.client.NFAsyncConnector;
+import es.um.redes.nanoFiles.tcp.client.NFClientEventLoop;
 import es.um.redes.nanoFiles.tcp.client.NFConnector;
+import es.um.redes.nanoFiles.tcp.client.NFConnectorPool;
 import es.um.redes.nanoFiles.tcp.message.PeerMessage;
-import es.um.redes.nanoFiles.tcp.message.PeerMessageOps;
 import es.um.redes.nanoFiles.application.NanoFiles;
 
 
 
 import es.um.redes.nanoFiles.tcp.server.NFServer;
+import es.um.redes.nanoFiles.util.BandwidthLimiter;
 import es.um.redes.nanoFiles.util.FileDigest;
 import es.um.redes.nanoFiles.util.FileInfo;
-
-/*
- * Clase auxiliar para poder controlar la descarga concurrente
- * 
- * Cuando uno de los hilos durante la descarga tiene algun problema este lanza una DownloadException para poder aborar la descarga y comunicarlo
- * al resto de hilos
- */
-class DownloadException extends Exception {}
+import es.um.redes.nanoFiles.util.MerkleTree;
+import es.um.redes.nanoFiles.util.RemoteFile;
 
 public class NFControllerLogicP2P {
 	/*
@@ -32,7 +39,21 @@ public class NFControllerLogicP2P {
 	 * de este peer
 	 */
 	private NFServer fileServer = null;
-
+	/*
+	 * Limites globales de las descargas, compartidos por todas las que esten en
+	 * curso a la vez: conexiones abiertas con servidores (cada una con su hilo de
+	 * descarga) y caudal
+	 */
+	private final Semaphore connectionPermits = new Semaphore(NanoFiles.MAX_TOTAL_CONNECTIONS);
+	private final BandwidthLimiter bandwidthLimiter = (NanoFiles.MAX_DOWNLOAD_RATE > 0)
+			? new BandwidthLimiter(NanoFiles.MAX_DOWNLOAD_RATE, NanoFiles.DEFAULT_CHUNK_SIZE * NanoFiles.RANGE_CHUNKS)
+			: null;
+	/*
+	 * Conexiones con servidores que se conservan al terminar cada descarga, para
+	 * que las siguientes con los mismos servidores no tengan que volver a conectar
+	 */
+	private final NFConnectorPool connectorPool = new NFConnectorPool(NanoFiles.POOLED_CONNECTIONS_PER_HOST,
+			NanoFiles.POOLED_CONNECTION_IDLE_MS, NanoFiles.POOLED_CONNECTION_CHECK_MS, NanoFiles.CONNECT_TIMEOUT_MS);
 
 
 
@@ -149,11 +170,47 @@ public class NFControllerLogicP2P {
 	 * @param localFileName           Nombre con el que se guardará el fichero
 	 *                                descargado
 	 */
-	private final Object lock = new Object();		// Objecto para la sincronizacion de los hilos concurrentess
-	private volatile boolean downloadFail = false;	// Variable para controlar los errores durante la descarga
-
 	protected boolean downloadFileFromServers(InetSocketAddress[] serverAddressList, String targetFileNameSubstring,
 			String localFileName) {
+		return downloadFileFromServers(serverAddressList, targetFileNameSubstring, localFileName, null);
+	}
+
+	/**
+	 * Método para descargar un fichero del peer servidor de ficheros
+	 * 
+	 * @param serverAddressList       La lista de direcciones de los servidores a
+	 *                                los que se conectará
+	 * @param targetFileNameSubstring Subcadena del nombre del fichero a descargar
+	 * @param localFileName           Nombre con el que se guardará el fichero
+	 *                                descargado
+	 * @param serverLookup            Consulta al directorio de los servidores
+	 *                                que comparten el fichero, para sustituir a
+	 *                                los que fallen durante la descarga (null
+	 *                                para no sustituirlos)
+	 */
+	protected boolean downloadFileFromServers(InetSocketAddress[] serverAddressList, String targetFileNameSubstring,
+			String localFileName, Supplier<InetSocketAddress[]> serverLookup) {
+		return downloadFileFromServers(serverAddressList, targetFileNameSubstring, localFileName, serverLookup, null);
+	}
+
+	/**
+	 * Método para descargar un fichero del peer servidor de ficheros
+	 * 
+	 * @param serverAddressList       La lista de direcciones de los servidores a
+	 *                                los que se conectará
+	 * @param targetFileNameSubstring Subcadena del nombre del fichero a descargar
+	 * @param localFileName           Nombre con el que se guardará el fichero
+	 *                                descargado
+	 * @param serverLookup            Consulta al directorio de los servidores
+	 *                                que comparten el fichero, para sustituir a
+	 *                                los que fallen durante la descarga (null
+	 *                                para no sustituirlos)
+	 * @param job                     Trabajo del DownloadManager al que
+	 *                                pertenece la descarga, que puede pedir
+	 *                                pararla (null si se descarga desde el shell)
+	 */
+	protected boolean downloadFileFromServers(InetSocketAddress[] serverAddressList, String targetFileNameSubstring,
+			String localFileName, Supplier<InetSocketAddress[]> serverLookup, DownloadJob job) {
 		
 		boolean downloaded = false;
 
@@ -183,28 +240,6 @@ public class NFControllerLogicP2P {
 		 * posible recuperarse), se debe informar sin abortar el programa
 		 */
 
-		// Lista de NFConnector para la descarga
-		ArrayList<NFConnector> nfConnectors = new ArrayList<>();
-		for (InetSocketAddress serverAddress : serverAddressList) {
-			try {
-				// Obtener la dirección IP o el nombre del host
-				String host = serverAddress.getHostString();
-
-				// Validar que el host no sea nulo o vacío
-				if (host == null || host.isEmpty()) {
-					throw new IllegalArgumentException("Invalid host: " + serverAddress);
-				}
-
-				// Crear el NFConnector con la dirección y el puerto
-				System.out.println("[+] Connecting to server " + serverAddress);
-				NFConnector connector = new NFConnector(serverAddress);
-				nfConnectors.add(connector);
-			} catch (IOException e) {
-				e.printStackTrace();
-				System.err.println("[-] Error: Cannot connect to server " + serverAddress.getHostString() + ":" + serverAddress.getPort());
-			}
-		}
-
 		// Creacion de la carpeta para descargas y archivo a descargar
 		File theDir = new File(NanoFiles.DEFAULT_DOWNLOADS_DIRNAME);
 		if (!theDir.exists()) {
@@ -213,11 +248,16 @@ public class NFControllerLogicP2P {
 
 		// Fichero que se va descargar
 		File localFile = new File(theDir, localFileName);
-
+		// Progreso guardado de una descarga anterior interrumpida, si lo hay
+		ResumeState resumeState = null;
 
 		if (localFile.exists()) {
-			System.err.println("[-] Error: File \"" + localFileName + "\" already exists");
-			return downloaded;
+			resumeState = NanoFiles.RESUMABLE_DOWNLOADS ? ResumeState.load(localFile) : null;
+			if (resumeState == null) {
+				System.err.println("[-] Error: File \"" + localFileName + "\" already exists");
+				return downloaded;
+			}
+			System.out.println("[*] Found partial download of " + localFile + ", resuming");
 		}
 		else {
 			try {
@@ -233,207 +273,460 @@ public class NFControllerLogicP2P {
 			}
 		}
 
-		// Solicitud de descarga del fichero targetFileNameSubstring
-		PeerMessage msgDownloadFile = PeerMessage.PeerMessageDownloadFile(targetFileNameSubstring);
-		PeerMessage msgRecivedFromPeer;
+		// Todas las conexiones de la descarga las lleva un solo hilo, el del bucle de eventos
+		NFClientEventLoop loop;
+		try {
+			loop = new NFClientEventLoop("FileDownload");
+		} catch (IOException e) {
+			System.err.println("[-] Error starting download: " + e.getMessage());
+			discardNewFile(localFile, resumeState);
+			return downloaded;
+		}
+
+		// Conexion y negociacion con todos los servidores a la vez, para que los que no responden no retrasen al resto
+		HostNegotiator negotiator = new HostNegotiator(targetFileNameSubstring, NanoFiles.MAX_PARALLEL_NEGOTIATIONS,
+				NanoFiles.CONNECT_TIMEOUT_MS, NanoFiles.NEGOTIATION_TIMEOUT_MS, connectionPermits, connectorPool, loop);
+		for (InetSocketAddress serverAddress : serverAddressList) {
+			System.out.println("[+] Connecting to server " + serverAddress);
+			negotiator.submit(serverAddress, NanoFiles.CONNECTIONS_PER_HOST, null, false);
+		}
 
-		// Hash y tamaño del archivo a descargar
-		String expectedFileHash = null;
-		double expectedFileSize = -1;
-
-		// Depuracion de la lista de host que sirven el fichero, se eliminar aquellos que no estan disponibles
-		Iterator<NFConnector> it = nfConnectors.iterator();
-		while(it.hasNext()){
-			NFConnector connector = it.next();
-			msgRecivedFromPeer = connector.sendAndRecive(msgDownloadFile);
-
-			if (msgRecivedFromPeer != null) {
-				// Si la solicitud de descarga para este nfconnector no es aprobada los quitamos de la lista
-			if (msgRecivedFromPeer.getOpcode()!=PeerMessageOps.OPCODE_DOWNLOAD_APROVE) {
-				switch (msgRecivedFromPeer.getOpcode()) {
-					case PeerMessageOps.OPCODE_NOT_FOUND: {
-						System.err.println("\t[-] Host "+connector.getServerAddr()+" did not found the file. Removing from hosts list");
-						it.remove();
-						break;
-					}
-					case PeerMessageOps.OPCODE_AMBIGUOUS_NAME: {
-						System.err.println("\t[-] Host "+connector.getServerAddr()+" has more than one file that matches "+targetFileNameSubstring+". Removing from hosts list");
-						it.remove();
-						break;
-					}
-					default:{
-						System.out.println("\t[-] Host "+connector.getServerAddr()+" did not aprove download. Removing from hosts list");
-						it.remove();
-						break;
-					}
-				}
-			}
-			else{
-				// Si es la primera aprobación, guardamos el hash y el tamaño esperados
-				if (expectedFileHash == null && expectedFileSize == -1) {
-					expectedFileHash = msgRecivedFromPeer.getHashCode();
-					expectedFileSize = msgRecivedFromPeer.getFileSize();
-					System.out.println("[+] Host " + connector.getServerAddr() + " approved download with consistent data.");
-				} else {
-					// Verificar si el hash o el tamaño no coinciden
-					if (!expectedFileHash.equals(msgRecivedFromPeer.getHashCode()) || expectedFileSize != msgRecivedFromPeer.getFileSize()) {
-						System.err.println("\t[-] Host " + connector.getServerAddr() + " returned inconsistent file data (Hash/Size mismatch). Removing from hosts list");
-						it.remove();
-					} else {
-						System.out.println("[+] Host " + connector.getServerAddr() + " approved download with consistent data.");
-					}
+		// La descarga empieza con el primer host que la aprueba: su respuesta es la referencia para los demas
+		ArrayList<NFAsyncConnector> nfConnectors = new ArrayList<>();
+		PeerMessage reference = null;
+		// Hashes de las piezas, comprobados contra la raiz anunciada, para verificar cada pieza segun se completa
+		MerkleTree pieceTree = null;
+		try {
+			while (reference == null && negotiator.hasPending() && !isStopRequested(job)) {
+				HostNegotiator.Negotiation negotiation = negotiator.next(NanoFiles.DEADLINE_CHECK_INTERVAL_MS);
+				if (negotiation == null || !isUsable(negotiation, null)) {
+					continue;
 				}
+				// El negociador ya ha comprobado los hashes de las piezas contra la raiz
+				pieceTree = negotiation.pieceTree;
+				System.out.println("[+] Host " + negotiation.address + " approved download with consistent data.");
+				reference = negotiation.approval;
+				nfConnectors.addAll(negotiation.connectors);
 			}
-			} else {
-				System.err.println("[-] Host has not response. Removing from hosts list.");
-				it.remove();
-				localFile.delete();
-        		return downloaded;
-			}			
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 		// Si no hay hosts disponibles abortamos
-		if (nfConnectors.isEmpty()) {
-			System.err.println("[-] No hosts available for download. Aborting...");
-			localFile.delete();
-        	return downloaded;
+		if (reference == null) {
+			negotiator.close();
+			loop.close();
+			if (isStopRequested(job)) {
+				System.out.println("[*] Download of \"" + localFileName + "\" stopped");
+			} else {
+				System.err.println("[-] No hosts available for download. Aborting...");
+			}
+			discardNewFile(localFile, resumeState);
+			return downloaded;
+		}
+
+		// Hash y tamaño del archivo a descargar
+		String expectedFileHash = reference.getHashCode();
+		double expectedFileSize = reference.getFileSize();
+
+		// El progreso guardado solo vale si es del mismo fichero (hash y tamaño) y con el mismo tamaño de chunk
+		if (resumeState != null && !resumeState.matches(expectedFileHash, (long) expectedFileSize, NanoFiles.DEFAULT_CHUNK_SIZE)) {
+			System.err.println("[-] Error: Partial download \"" + localFileName + "\" belongs to a different file. Delete it to download again");
+			negotiator.close();
+			releaseAll(nfConnectors);
+			loop.close();
+			return downloaded;
+		}
+		if (resumeState == null && NanoFiles.RESUMABLE_DOWNLOADS) {
+			resumeState = new ResumeState(localFile, expectedFileHash, (long) expectedFileSize, NanoFiles.DEFAULT_CHUNK_SIZE);
 		}
 
-		System.out.println("[*] Stating download from "+nfConnectors.size()+ " hosts....");
+		System.out.println("[*] Stating download from " + nfConnectors.get(0).getServerAddr() + " over "
+				+ nfConnectors.size() + " connections, the other hosts join as they approve....");
 
 		/* LOGICA DE DESCARGA */
 
 		int numHosts = nfConnectors.size();
-		int defChunkSize = NanoFiles.DEFAULT_CHUNK_SIZE;			// Tamaño default de un chunk
-		int numChunks = (int) (expectedFileSize/defChunkSize);		// Numero de chunks a falta de comprobar si hace falta uno que no del mismo tamaño (lastChunk)
-		int lastChunkSize = (int) (expectedFileSize%defChunkSize);	// Tamaño del utlimo chunk, en caso de que el ultimo chunk no tenga el mismo tamaño que el resto
 
-		// Array de hilos de descarga (descarga en paralelo)
-		Thread[] downloadThreads = new Thread[numHosts];
-		
-		// Contador de numero de chunks por host
-		int[] hostChunkCount = new int[numHosts];
+		// Descarga en paralelo, una por conexion, todas en el hilo del bucle de eventos
+		ArrayList<DownloadWorker> workers = new ArrayList<>();
+		// Servidores a los que ya nos hemos conectado, para no repetirlos al buscar sustitutos
+		Set<InetSocketAddress> triedServers = new HashSet<>(Arrays.asList(serverAddressList));
 
 		try(RandomAccessFile raf = new RandomAccessFile(localFile, "rw")){
 
-			int totalChunks = (lastChunkSize>0) ? numChunks+1 : numChunks;
+			// Se reserva el tamaño final del fichero desde el principio
+			raf.setLength((long) expectedFileSize);
+
+			// Los chunks se reparten dinamicamente: cada host pide el siguiente rango libre segun termina
+			FileDownload download = new FileDownload(raf.getChannel(), (long) expectedFileSize,
+					NanoFiles.DEFAULT_CHUNK_SIZE, pieceTree, numHosts, NanoFiles.MAX_CHUNK_RETRIES, resumeState,
+					NanoFiles.RESUME_SAVE_INTERVAL_MS, NanoFiles.HASH_REORDER_CHUNKS, NanoFiles.ENDGAME_CHUNKS);
+			if (job != null) {
+				job.setProgressSource(() -> (download.getTotalChunks() > 0)
+						? 100.0 * download.getCompletedChunks() / download.getTotalChunks()
+						: -1);
+			}
+			if (download.getResumedChunks() > 0) {
+				System.out.println("[*] " + download.getResumedChunks() + " of " + download.getTotalChunks() + " chunks already downloaded");
+			}
+
+			final ChunkWriter writer = (NanoFiles.DISK_WRITER_QUEUE > 0)
+					? new ChunkWriter(download, NanoFiles.DISK_WRITER_QUEUE, NanoFiles.DEFAULT_CHUNK_SIZE)
+					: null;
+			if (writer != null) {
+				writer.start();
+			}
+
+			// Vigila los plazos de los chunks pedidos, para pedir a otros hosts los que un host lento retrasa
+			StragglerMonitor monitor = new StragglerMonitor(download, NanoFiles.STRAGGLER_RATIO,
+					NanoFiles.MIN_CHUNK_DEADLINE_MS, NanoFiles.PEER_STALL_TIMEOUT_MS);
+
+			// Abre mas conexiones con los hosts cuyo RTT no deja llenar el enlace con una sola
+			ConnectionScaler scaler = new ConnectionScaler(download, NanoFiles.MAX_CONNECTIONS_PER_HOST,
+					NanoFiles.PIPELINE_WINDOW);
 
-			boolean[] chunksDownloaded = new boolean[totalChunks];		// Array para saber si cierto chunks se ha descargado o no
-			
 			for (int i=0; i<numHosts; i++){
-				final int hostIndex = i;
-				downloadThreads[i] = new Thread (() -> {
-					try {
-						for(int chunkIndex=hostIndex;chunkIndex<totalChunks; chunkIndex += numHosts) {
-							// Comprobar que no ha habido ningun error durante la descarga en otro hilo
-							if(downloadFail){
-								throw new DownloadException();
-							}
-
-							// Comprobar que el chunk no ha sido descargado ya
-							synchronized (lock) {
-								if(chunksDownloaded[chunkIndex]){
-									continue;
-								}
-								// Si no se ha descargado lo marcamos para que nadie mas lo pueda descargar
-								chunksDownloaded[chunkIndex] = true;
-							}
+				startWorker(new DownloadWorker(download, nfConnectors.get(i), loop, i, writer, bandwidthLimiter), monitor, scaler, workers);
+			}
 
-				
-							NFConnector downloadConnector = nfConnectors.get(hostIndex);
-							// Calculo del offset y chunkSize actual
-							long fileOffset = chunkIndex * defChunkSize;
-							int localChunkSize = (chunkIndex == numChunks) ? lastChunkSize : defChunkSize;
-							// Solicitud del chunk
-							PeerMessage msgGetChunk = PeerMessage.PeerMessageGetChunck(fileOffset,localChunkSize);
-							PeerMessage msgChunkResponse = downloadConnector.sendAndRecive(msgGetChunk);
-
-							// Si hay un corte en la conexion, no se recibe mensaje por lo que se debe salir de manera controlada
-							if(msgChunkResponse==null) {
-								System.err.println("[-] Failed to download, the conexion has been closed or the host have not replied. Aborting download.... ");
-								throw new DownloadException();
-							}
-
-							if (msgChunkResponse.getOpcode()==PeerMessageOps.OPCODE_SEND_CHUNK){
-								byte[] chunckData = msgChunkResponse.getChunckData();
-								
-								synchronized(raf){
-									// Esciribir en el fichero
-									//System.out.println("OFFSET: "+fileOffset+" - SIZE: "+chunckData.length);  //! DEPURADO
-									raf.seek(fileOffset);
-									raf.write(chunckData);
-								}
-								hostChunkCount[hostIndex]++;
-								
-							} else {
-								System.err.println("[-] Failed to download chunk " + chunkIndex + " from host " + downloadConnector.getServerAddr());
-								throw new DownloadException();
-							}
+			// Los hosts que terminan de negociar con la descarga en marcha se suman a ella
+			final PeerMessage approvedFile = reference;
+			Consumer<HostNegotiator.Negotiation> joinDownload = negotiation -> {
+				if (!isUsable(negotiation, approvedFile) || download.isComplete() || download.isFailed()) {
+					releaseAll(negotiation.connectors);
+					if (negotiation.extra) {
+						scaler.expansionFailed(negotiation.address);
+					}
+					return;
+				}
+				if (!negotiation.extra) {
+					System.out.println("[+] Host " + negotiation.address + " joined the download.");
+				}
+				for (NFAsyncConnector connector : negotiation.connectors) {
+					int hostIndex = download.addHost();
+					nfConnectors.add(connector);
+					startWorker(new DownloadWorker(download, connector, loop, hostIndex, writer, bandwidthLimiter), monitor, scaler, workers);
+				}
+			};
 
+			// Si un host falla sus chunks pasan al resto; ademas se buscan en el directorio otros servidores que lo sustituyan
+			int handledFailures = 0;
+			int serverLookups = 0;
+			try {
+				while (true) {
+					// Pausa o cancelacion desde el DownloadManager: se para como si hubiera fallado, conservando lo descargado
+					if (isStopRequested(job) && !download.isFailed() && !download.isComplete()) {
+						download.fail();
+					}
+					HostNegotiator.Negotiation negotiation;
+					while ((negotiation = negotiator.poll()) != null) {
+						joinDownload.accept(negotiation);
+					}
+					if (!download.hasRunningWorkers()) {
+						// Sin conexiones descargando solo queda esperar a los hosts que aun estan negociando
+						if (download.isComplete() || download.isFailed() || !negotiator.hasPending()) {
+							break;
+						}
+						negotiation = negotiator.next(NanoFiles.DEADLINE_CHECK_INTERVAL_MS);
+						if (negotiation != null) {
+							joinDownload.accept(negotiation);
+						}
+						continue;
+					}
+					if (!download.awaitHostFailure(handledFailures, NanoFiles.DEADLINE_CHECK_INTERVAL_MS)) {
+						monitor.check();
+						for (InetSocketAddress serverAddress : scaler.hostsToExpand()) {
+							System.out.println("[+] Opening another connection to " + serverAddress);
+							negotiator.submit(serverAddress, 1, reference, true);
+						}
+						continue;
+					}
+					handledFailures = download.getFailedHosts();
+					if (serverLookup == null || serverLookups >= NanoFiles.MAX_SERVER_LOOKUPS || download.isFailed()) {
+						continue;
+					}
+					serverLookups++;
+					InetSocketAddress[] servers = serverLookup.get();
+					for (int i = 0; servers != null && i < servers.length; i++) {
+						if (triedServers.add(servers[i])) {
+							System.out.println("[+] Connecting to replacement server " + servers[i]);
+							negotiator.submit(servers[i], NanoFiles.CONNECTIONS_PER_HOST, reference, false);
 						}
-					}catch(DownloadException e) {
-						// Si alguna hilo falla durante la descarga debe informar a los otros que no sigan
-						downloadFail = true;
-						return;
-					}catch(IOException e) {
-						System.err.println("[-] Error writing to local file: " + e.getMessage());
-						downloadFail = true;
-						return;
 					}
-				});
-				downloadThreads[i].start();
-				//System.out.println("START THREAD: "+i);	// ! DEPURADO
+				}
+			} catch (InterruptedException e) {
+				System.err.println("[-] Thread interrupted: " + e.getMessage());
+				download.fail();
+				// Sin esperar a que los hosts envien nada mas
+				for (DownloadWorker worker : workers) {
+					worker.abort();
+				}
 			}
+			// Los hosts que no han terminado de negociar ya no hacen falta
+			negotiator.close();
 
-			// Punto de reunion de los hilos
-			for (Thread thread : downloadThreads) {
-				try {
-					thread.join();
-				} catch (InterruptedException e) {
-					System.err.println("[-] Thread interrupted: " + e.getMessage());
-				}
+			// Punto de reunion de las conexiones
+			try {
+				download.awaitWorkers();
+			} catch (InterruptedException e) {
+				System.err.println("[-] Thread interrupted: " + e.getMessage());
+			}
+			if (writer != null) {
+				writer.close();
 			}
-			// Si ha fallado la descarga borramos el fichero que se creo y devolvemos false
-			if(downloadFail){
-				System.err.println("[-] Download canceled due to errors in one or more threads.");
+			// Si ha fallado la descarga (o han caido todos los hosts) borramos el fichero que se creo y devolvemos false
+			if(download.isFailed() || !download.isComplete()){
+				// Las conexiones de los hosts que no han fallado sirven para reanudarla
+				releaseAll(nfConnectors);
+				if (isStopRequested(job)) {
+					System.out.println("[*] Download of \"" + localFileName + "\" stopped");
+				} else if (download.isFailed()) {
+					System.err.println("[-] Download canceled due to errors in one or more threads.");
+				} else {
+					System.err.println("[-] Download canceled, no hosts left to download the remaining chunks.");
+				}
+				// Se conserva lo descargado para poder reanudar la descarga
+				if (resumeState != null) {
+					try {
+						download.saveProgress();
+						// Las descargas del DownloadManager se reanudan con el comando resume
+						if (!isStopRequested(job)) {
+							System.out.println("[*] Partial download kept (" + download.getCompletedChunks() + " of " + download.getTotalChunks() + " chunks), run download again to resume");
+						}
+						return false;
+					} catch (IOException e) {
+						System.err.println("[-] Error saving download progress: " + e.getMessage());
+						resumeState.delete();
+					}
+				}
 				localFile.delete();
 				return false;
 			}
 
-			// Una vez finalizada la descarga avisamos al servidor que ya hemos terminado
-			for(NFConnector connector : nfConnectors){
-				PeerMessage msgGetChunk = PeerMessage.PeerMessageGetChunck(0,0);	// Mensaje que indica el final
-				connector.sendAndRecive(msgGetChunk);	// Solo nos interesa decirle a cada server que hemos terminado
-			}
+			// Una vez finalizada la descarga las conexiones vuelven al pool para las siguientes descargas
+			releaseAll(nfConnectors);
 			
 			// Comprobacion del nuevo hash para que coincida
 			// Si el hash es diferente ha habido alguna mutacion
-			if (!FileDigest.computeFileChecksumString(localFile.getAbsolutePath()).equals(expectedFileHash)){
+			// Normalmente ya se ha calculado segun llegaban los chunks; si no, se lee el fichero entero
+			String downloadedHash = download.getFileHash();
+			if (downloadedHash == null) {
+				downloadedHash = FileDigest.computeFileChecksumString(localFile.getAbsolutePath());
+			}
+			if (!expectedFileHash.equals(downloadedHash)){
 				System.err.println("[-] Error: File integrity check failed. The downloaded file is corrupt. The computed hash does not match the expected hash.");
+				if (resumeState != null) {
+					resumeState.delete();
+				}
 				localFile.delete();
 				return false;
 			}
+			if (resumeState != null) {
+				resumeState.delete();
+			}
 
 			downloaded = true;	// Se ha completado la descarga con exito
 			System.out.println("[*] File download successfully.");
 			System.out.println("[*] Summary:");
-			printSummary(nfConnectors,hostChunkCount,totalChunks);
+			if (download.hasPieceTree()) {
+				System.out.println("\t " + download.getVerifiedPieces() + " pieces of " + download.getPieceSize() + " bytes verified against the Merkle tree");
+			}
+			if (download.getDuplicateChunks() > 0) {
+				System.out.println("\t " + download.getDuplicateChunks() + " duplicate chunks discarded (requested from more than one host)");
+			}
+			printSummary(nfConnectors,download);
 
 		}catch(IOException e){
 			System.err.println("[-] Error writing to local file: " + e.getMessage());
+			if (resumeState != null) {
+				resumeState.delete();
+			}
 			localFile.delete();
 			return false;
 		}catch(NullPointerException e) {
+			if (resumeState != null) {
+				resumeState.delete();
+			}
 			localFile.delete();
 			return false;
+		} finally {
+			loop.close();
+		}
+		return downloaded;
+	}
+
+	/**
+	 * Método para descargar todos los ficheros que coinciden con una subcadena
+	 * (download-all). Cada fichero se descarga entero de uno de sus servidores, y
+	 * todos los ficheros de un mismo servidor se piden por una sola conexión.
+	 * 
+	 * @param matchingFiles           Ficheros que coinciden, con los servidores
+	 *                                que comparten cada uno
+	 * @param targetFileNameSubstring Subcadena usada para buscarlos
+	 * @param job                     Trabajo del DownloadManager al que
+	 *                                pertenece la descarga, que puede pedir
+	 *                                pararla (null si no hay)
+	 * @return Verdadero si se han descargado todos los ficheros que faltaban
+	 */
+	protected boolean downloadAllFromServers(RemoteFile[] matchingFiles, String targetFileNameSubstring,
+			DownloadJob job) {
+		if (matchingFiles == null) {
+			System.err.println("* Cannot start download - No list of files provided");
+			return false;
+		}
+		if (matchingFiles.length == 0) {
+			System.err.println("[-] No file currently being served matches the specified file name \""+targetFileNameSubstring+"\".");
+			return false;
+		}
+
+		File theDir = new File(NanoFiles.DEFAULT_DOWNLOADS_DIRNAME);
+		if (!theDir.exists()) {
+			theDir.mkdirs();
+		}
+
+		// Los ficheros se guardan con su nombre: se descartan los que ya tenemos y los nombres repetidos con distinto contenido
+		Map<String, RemoteFile> byLocalName = new LinkedHashMap<>();
+		Set<String> conflicts = new HashSet<>();
+		int alreadyDownloaded = 0;
+		for (RemoteFile remoteFile : matchingFiles) {
+			String localFileName = new File(remoteFile.getFileName()).getName();
+			File localFile = new File(theDir, localFileName);
+			if (localFile.exists()) {
+				// Sólo se da por descargado si es el mismo fichero, uno a medias o distinto no se sobrescribe
+				if (isSameFile(localFile, remoteFile)) {
+					alreadyDownloaded++;
+				} else {
+					System.err.println("[-] File \"" + localFileName + "\" already exists with different contents, delete it to download it again");
+					conflicts.add(localFileName);
+				}
+				continue;
+			}
+			RemoteFile previous = byLocalName.putIfAbsent(localFileName, remoteFile);
+			if (previous != null && !previous.getFileHash().equals(remoteFile.getFileHash())) {
+				conflicts.add(localFileName);
+			}
+		}
+		for (String localFileName : conflicts) {
+			if (byLocalName.remove(localFileName) != null) {
+				System.err.println("[-] Several different files are named \"" + localFileName + "\", download them one by one");
+			}
+		}
+		if (alreadyDownloaded > 0) {
+			System.out.println("[*] " + alreadyDownloaded + " matching files already exist in " + theDir.getName() + ", skipping them");
+		}
+		if (byLocalName.isEmpty()) {
+			return conflicts.isEmpty();
+		}
+
+		BulkDownload download = new BulkDownload(new ArrayList<>(byLocalName.values()), theDir, connectionPermits,
+				connectorPool, bandwidthLimiter, job);
+		if (job != null) {
+			job.setProgressSource(() -> 100.0 * download.getCompletedFiles() / download.getTotalFiles());
+		}
+		System.out.println("[*] Downloading " + download.getTotalFiles() + " files matching \"" + targetFileNameSubstring + "\"");
+		boolean downloaded = download.run() && conflicts.isEmpty();
+
+		if (isStopRequested(job)) {
+			System.out.println("[*] Download of \"" + targetFileNameSubstring + "\" stopped");
+		}
+		System.out.println("[*] Summary: " + download.getCompletedFiles() + " of " + download.getTotalFiles()
+				+ " files downloaded (" + download.getCompletedBytes() + " bytes)");
+		for (Map.Entry<InetSocketAddress, Integer> entry : download.getFilesByPeer().entrySet()) {
+			System.out.println("\t Host " + entry.getKey() + " sent " + entry.getValue() + " files");
+		}
+		if (download.getCompletedFiles() < download.getTotalFiles() && !isStopRequested(job)) {
+			System.err.println("[-] " + (download.getTotalFiles() - download.getCompletedFiles())
+					+ " files could not be downloaded, run download-all again to retry them");
 		}
 		return downloaded;
 	}
 
+	/**
+	 * Comprueba si un fichero local tiene el tamaño y el hash de un fichero remoto
+	 */
+	private static boolean isSameFile(File localFile, RemoteFile remoteFile) {
+		return localFile.length() == remoteFile.getFileSize()
+				&& remoteFile.getFileHash().equals(FileDigest.computeFileChecksumString(localFile.getPath()));
+	}
+
+	/**
+	 * Borra el fichero local creado para una descarga que no ha llegado a
+	 * empezar, salvo que sea una descarga parcial que se estaba reanudando
+	 */
+	private void discardNewFile(File localFile, ResumeState resumeState) {
+		if (resumeState == null) {
+			localFile.delete();
+		}
+	}
+
+
+	/**
+	 * Empieza a descargar por una conexion, vigilada por el StragglerMonitor y el
+	 * ConnectionScaler
+	 */
+	private void startWorker(DownloadWorker worker, StragglerMonitor monitor, ConnectionScaler scaler,
+			ArrayList<DownloadWorker> workers) {
+		monitor.addWorker(worker);
+		scaler.addWorker(worker);
+		workers.add(worker);
+		worker.start();
+	}
+
+	/**
+	 * Comprueba el resultado de la negociacion con un host: que ha aprobado la
+	 * descarga y, si ya hay una referencia, que sirve el mismo fichero
+	 */
+	private boolean isUsable(HostNegotiator.Negotiation negotiation, PeerMessage reference) {
+		if (!negotiation.isApproved()) {
+			System.err.println("\t[-] Host " + negotiation.address + " " + negotiation.error + ". Removing from hosts list");
+			return false;
+		}
+		if (reference != null && !HostNegotiator.sameFile(negotiation.approval, reference)) {
+			System.err.println("\t[-] Host " + negotiation.address + " returned inconsistent file data (Hash/Size mismatch). Removing from hosts list");
+			return false;
+		}
+		return true;
+	}
+
+	private static boolean isStopRequested(DownloadJob job) {
+		return job != null && job.isStopRequested();
+	}
 
-	private void printSummary(ArrayList<NFConnector> connectors, int[] summary, int totalChunks){
-		for (int i=0; i<summary.length; i++) {
-			double percentage = Math.floor(((double)summary[i]/(double)totalChunks)*100);
-			System.out.println("\t Host "+connectors.get(i).getServerAddr()+" downloaded "+percentage+"% ("+summary[i]+" chunks)" );
+	/**
+	 * Saca las conexiones del bucle de eventos y las devuelve al pool, esperando
+	 * a que estén en él; las de hosts que han fallado ya están cerradas y no
+	 * vuelven
+	 */
+	private void releaseAll(List<NFAsyncConnector> connectors) {
+		List<CompletableFuture<Void>> released = new ArrayList<>();
+		for (NFAsyncConnector connector : connectors) {
+			released.add(connector.detach().thenAccept(connectorPool::release));
+		}
+		try {
+			CompletableFuture.allOf(released.toArray(new CompletableFuture<?>[0])).join();
+		} catch (CompletionException e) {
+			// Alguna estaba cerrada: el resto ya han vuelto al pool
+		}
+	}
+
+	private void printSummary(ArrayList<NFAsyncConnector> connectors, FileDownload download){
+		int totalChunks = download.getTotalChunks();
+		// Chunks, conexiones y conexiones caidas de cada host
+		Map<InetSocketAddress, int[]> hosts = new LinkedHashMap<>();
+		for (int i=0; i<connectors.size(); i++) {
+			int[] host = hosts.computeIfAbsent(connectors.get(i).getServerAddr(), addr -> new int[3]);
+			host[0] += download.getHostChunkCount(i);
+			host[1]++;
+			if (download.isHostFailed(i)) {
+				host[2]++;
+			}
+		}
+		for (Map.Entry<InetSocketAddress, int[]> entry : hosts.entrySet()) {
+			int[] host = entry.getValue();
+			double percentage = Math.floor(((double)host[0]/(double)totalChunks)*100);
+			String connections = (host[1] > 1) ? " over " + host[1] + " connections" : "";
+			String failed = (host[2] == host[1]) ? " before failing" : "";
+			System.out.println("\t Host "+entry.getKey()+" downloaded "+percentage+"% ("+host[0]+" chunks)"+connections+failed );
 		}
 	}
 
@@ -467,6 +760,14 @@ public class NFControllerLogicP2P {
 		}
 	}
 
+	/**
+	 * Cierra las conexiones con servidores que se conservaban para otras
+	 * descargas
+	 */
+	protected void closePooledConnections() {
+		connectorPool.close();
+	}
+
 	protected boolean serving() {
 		return (fileServer==null) ? false : true;
 	}
@@ -0,0 +1,161 @@
+package es.um.redes.nanoFiles.logic;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+/**
+ * Fichero de progreso (<nombre>.nfresume) que acompaña a una descarga parcial
+ * en la carpeta de descargas. Guarda el hash y el tamaño esperados del fichero,
+ * el tamaño de chunk y un mapa de bits con los chunks ya escritos, de forma que
+ * al volver a lanzar la descarga sólo se piden los que faltan.
+ *
+ * Se reescribe en un fichero temporal que se sincroniza con el disco y se
+ * renombra de forma atómica, y lleva un CRC de su contenido: tras una caída
+ * queda la versión anterior o la nueva, nunca una mezcla. Quien lo guarda debe
+ * sincronizar antes el fichero de datos, para que el mapa no marque chunks que
+ * no han llegado al disco.
+ */
+class ResumeState {
+
+	static final String RESUME_SUFFIX = ".nfresume";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String MAGIC = "NFRESUME";
+	private static final int VERSION = 1;
+
+	private final File sidecar;
+	private final String fileHash;
+	private final long fileSize;
+	private final int chunkSize;
+	private final BitSet completed;
+
+	private ResumeState(File sidecar, String fileHash, long fileSize, int chunkSize, BitSet completed) {
+		this.sidecar = sidecar;
+		this.fileHash = fileHash;
+		this.fileSize = fileSize;
+		this.chunkSize = chunkSize;
+		this.completed = completed;
+	}
+
+	/**
+	 * Crea el estado de una descarga nueva, sin ningún chunk completado
+	 */
+	ResumeState(File localFile, String fileHash, long fileSize, int chunkSize) {
+		this(sidecarOf(localFile), fileHash, fileSize, chunkSize, new BitSet());
+	}
+
+	private static File sidecarOf(File localFile) {
+		return new File(localFile.getParentFile(), localFile.getName() + RESUME_SUFFIX);
+	}
+
+	/**
+	 * Carga el progreso guardado de una descarga parcial
+	 *
+	 * @param localFile El fichero (parcial) de la descarga
+	 * @return El progreso de la descarga, o null si no existe o está corrupto
+	 */
+	static ResumeState load(File localFile) {
+		File sidecar = sidecarOf(localFile);
+		if (!sidecar.exists()) {
+			return null;
+		}
+		try {
+			byte[] contents = Files.readAllBytes(sidecar.toPath());
+			if (contents.length < Long.BYTES) {
+				return null;
+			}
+			CRC32 crc = new CRC32();
+			crc.update(contents, 0, contents.length - Long.BYTES);
+			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(contents));
+			byte[] magic = new byte[MAGIC.length()];
+			dis.readFully(magic);
+			if (!MAGIC.equals(new String(magic)) || dis.readInt() != VERSION) {
+				return null;
+			}
+			String fileHash = dis.readUTF();
+			long fileSize = dis.readLong();
+			int chunkSize = dis.readInt();
+			byte[] bitmap = new byte[dis.readInt()];
+			dis.readFully(bitmap);
+			if (dis.readLong() != crc.getValue()) {
+				return null;
+			}
+			return new ResumeState(sidecar, fileHash, fileSize, chunkSize, BitSet.valueOf(bitmap));
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Comprueba que el progreso guardado corresponde al fichero que se va a
+	 * descargar
+	 */
+	boolean matches(String fileHash, long fileSize, int chunkSize) {
+		return this.fileHash.equals(fileHash) && this.fileSize == fileSize && this.chunkSize == chunkSize;
+	}
+
+	/**
+	 * Chunks completados según el progreso cargado (copia)
+	 */
+	BitSet getCompleted() {
+		return (BitSet) completed.clone();
+	}
+
+	/**
+	 * Guarda el progreso de la descarga. El fichero de datos debe haberse
+	 * sincronizado con el disco antes.
+	 *
+	 * @param completedChunks Los chunks escritos en el fichero de datos
+	 */
+	void save(BitSet completedChunks) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bytes);
+		dos.write(MAGIC.getBytes());
+		dos.writeInt(VERSION);
+		dos.writeUTF(fileHash);
+		dos.writeLong(fileSize);
+		dos.writeInt(chunkSize);
+		byte[] bitmap = completedChunks.toByteArray();
+		dos.writeInt(bitmap.length);
+		dos.write(bitmap);
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		dos.writeLong(crc.getValue());
+		dos.flush();
+
+		Path tempFile = new File(sidecar.getParentFile(), sidecar.getName() + TEMP_SUFFIX).toPath();
+		try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+			while (buf.hasRemaining()) {
+				channel.write(buf);
+			}
+			channel.force(true);
+		}
+		try {
+			Files.move(tempFile, sidecar.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tempFile, sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Borra el fichero de progreso, una vez completada (o descartada) la descarga
+	 */
+	void delete() {
+		sidecar.delete();
+		new File(sidecar.getParentFile(), sidecar.getName() + TEMP_SUFFIX).delete();
+	}
+}
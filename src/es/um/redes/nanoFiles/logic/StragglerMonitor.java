@@ -0,0 +1,153 @@
+package es.um.redes.nanoFiles.logic;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Vigila los plazos de los chunks pedidos a cada host durante una descarga, para
+ * que un host que sigue conectado pero sirve mucho más despacio que el resto no
+ * retrase el final de la descarga.
+ *
+ * El plazo de cada chunk se calcula a partir del host más rápido: el primer
+ * chunk de un rango vence si no llega en STRAGGLER_RATIO veces el tiempo medio
+ * entre chunks del host más rápido (más el RTT del host, acotado de la misma
+ * manera) desde que se pidió el rango, y cada uno de los siguientes (del rango
+ * o de los rangos pedidos después) un intervalo más tarde.
+ * Los chunks vencidos se vuelven a repartir entre los demás hosts (el primero
+ * que llega se queda) y se reduce la ventana del host lento. Si un host no
+ * envía nada durante PEER_STALL_TIMEOUT_MS, o la descarga ya se ha completado y
+ * sólo se le espera a él, se cierra su conexión.
+ *
+ * Sólo lo usa el hilo que controla la descarga, que llama a check()
+ * periódicamente.
+ */
+class StragglerMonitor {
+
+	private final FileDownload download;
+	private final int stragglerRatio;
+	private final long minDeadlineMs;
+	private final long stallTimeoutMs;
+
+	private final List<DownloadWorker> workers = new ArrayList<>();
+	// Chunks de cada host que ya se han vuelto a repartir, para no repetirlos
+	private final Map<DownloadWorker, BitSet> reissuedChunks = new HashMap<>();
+
+	/**
+	 * @param stragglerRatio Veces más lento que el host más rápido a partir de las
+	 *                       que un chunk vence (0 para no repartirlos de nuevo)
+	 * @param minDeadlineMs  Plazo mínimo del siguiente chunk de un host
+	 * @param stallTimeoutMs Tiempo sin recibir nada tras el que se cierra la
+	 *                       conexión con un host
+	 */
+	StragglerMonitor(FileDownload download, int stragglerRatio, long minDeadlineMs, long stallTimeoutMs) {
+		this.download = download;
+		this.stragglerRatio = stragglerRatio;
+		this.minDeadlineMs = minDeadlineMs;
+		this.stallTimeoutMs = stallTimeoutMs;
+	}
+
+	void addWorker(DownloadWorker worker) {
+		workers.add(worker);
+	}
+
+	/**
+	 * Comprueba los plazos de los chunks pedidos a cada host. Si la descarga ha
+	 * fallado (o se ha pausado o cancelado) sólo se cortan los hosts que no
+	 * envían nada, para que la descarga no siga esperando a sus conexiones.
+	 */
+	void check() {
+		// Referencias del host más rápido
+		double bestIntervalMs = -1;
+		double bestRttMs = -1;
+		for (DownloadWorker worker : workers) {
+			double interval = worker.getChunkIntervalMs();
+			if (interval >= 0 && (bestIntervalMs < 0 || interval < bestIntervalMs)) {
+				bestIntervalMs = interval;
+			}
+			double rtt = worker.getRttMs();
+			if (rtt >= 0 && (bestRttMs < 0 || rtt < bestRttMs)) {
+				bestRttMs = rtt;
+			}
+		}
+		long now = System.nanoTime();
+		for (DownloadWorker worker : workers) {
+			if (!worker.hasPendingChunks()) {
+				continue;
+			}
+			double waitingMs = (now - worker.getLastProgressNanos()) / 1e6;
+			if (waitingMs > stallTimeoutMs) {
+				System.err.println("[-] Host " + worker.getServerAddr() + " has not sent any chunk in " + stallTimeoutMs
+						+ " ms, closing connection");
+				worker.abort();
+				continue;
+			}
+			if (download.isFailed()) {
+				continue; // No se vuelve a pedir nada
+			}
+			if (bestIntervalMs < 0) {
+				continue; // Aún no hay con qué comparar
+			}
+			double rttMs = Math.max(worker.getRttMs(), 0);
+			if (bestRttMs >= 0) {
+				rttMs = Math.min(rttMs, stragglerRatio * bestRttMs);
+			}
+			double intervalMs = Math.max(stragglerRatio * bestIntervalMs, 0.001);
+			double headDeadlineMs = Math.max(minDeadlineMs, intervalMs + rttMs);
+			if (download.isComplete()) {
+				// Sólo queda esperar a este host: se cierra su conexión si tarda
+				if (waitingMs > headDeadlineMs) {
+					System.out.println("[*] Download complete, closing connection with straggling host " + worker.getServerAddr());
+					worker.abort();
+				}
+			} else if (stragglerRatio > 0) {
+				reissueOverdue(worker, now, (long) (headDeadlineMs * 1e6), (long) (intervalMs * 1e6));
+			}
+		}
+	}
+
+	/**
+	 * Vuelve a repartir los chunks pendientes de un host que ya han vencido
+	 *
+	 * @param headDeadlineNanos Plazo del primer chunk de un rango desde que se
+	 *                          pide
+	 * @param intervalNanos     Plazo de cada chunk desde el anterior
+	 */
+	private void reissueOverdue(DownloadWorker worker, long now, long headDeadlineNanos, long intervalNanos) {
+		BitSet reissued = reissuedChunks.computeIfAbsent(worker, w -> new BitSet());
+		List<int[]> ranges = new ArrayList<>();
+		int numChunks = 0;
+		int[] current = null;
+		// El host envía los rangos en orden: los plazos son crecientes
+		long due = Long.MIN_VALUE / 2;
+		pending: for (long[] range : worker.getPendingRanges()) {
+			for (int chunk = (int) range[0]; chunk < range[1]; chunk++) {
+				due = Math.max(due + intervalNanos, range[2] + headDeadlineNanos);
+				if (due - now > 0) {
+					break pending;
+				}
+				if (reissued.get(chunk) || download.isRangeDone(chunk, chunk + 1)) {
+					continue;
+				}
+				reissued.set(chunk);
+				numChunks++;
+				if (current != null && current[1] == chunk) {
+					current[1]++;
+				} else {
+					current = new int[] { chunk, chunk + 1 };
+					ranges.add(current);
+				}
+			}
+		}
+		if (numChunks > 0) {
+			if (reissued.cardinality() == numChunks) {
+				System.out.println("[*] Host " + worker.getServerAddr()
+						+ " is straggling, requesting its overdue chunks from other hosts");
+			}
+			download.reissueChunks(worker.getHostIndex(), ranges);
+			worker.demote();
+		}
+	}
+}
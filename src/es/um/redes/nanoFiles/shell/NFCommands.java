@@ -11,6 +11,12 @@ public class NFCommands {
 	public static final byte COM_MYFILES = 6;
 	public static final byte COM_SERVE = 11;
 	public static final byte COM_DOWNLOAD = 25;
+	public static final byte COM_DOWNLOADS = 26;
+	public static final byte COM_DOWNLOAD_ALL = 32;
+	public static final byte COM_PAUSE = 27;
+	public static final byte COM_RESUME = 28;
+	public static final byte COM_CANCEL = 29;
+	public static final byte COM_PRIORITY = 31;
 	public static final byte COM_UPLOAD = 30;
 	public static final byte COM_HELP = 50;
 	public static final byte COM_SOCKET_IN = 100;
@@ -30,6 +36,12 @@ public class NFCommands {
 		COM_MYFILES,
 		COM_SERVE,
 		COM_DOWNLOAD,
+		COM_DOWNLOAD_ALL,
+		COM_DOWNLOADS,
+		COM_PAUSE,
+		COM_RESUME,
+		COM_CANCEL,
+		COM_PRIORITY,
 		COM_UPLOAD,
 		COM_HELP,
 		COM_SOCKET_IN
@@ -45,6 +57,12 @@ public class NFCommands {
 			"myfiles",
 			"serve",
 			"download",
+			"download-all",
+			"downloads",
+			"pause",
+			"resume",
+			"cancel",
+			"priority",
 			"upload",
 			"help"
 		};
@@ -58,7 +76,13 @@ public class NFCommands {
 			"show list of files tracked by the directory",
 			"show contents of local folder (files that may be served)",
 			"run file server and publish served files to directory",
-			"download file from all available server(s)",
+			"queue download of file from all available server(s)",
+			"queue download of every file matching a substring, one connection per server",
+			"show queued and running downloads",
+			"pause a download, keeping what has been downloaded",
+			"resume a paused or failed download",
+			"cancel a download and delete what has been downloaded",
+			"change the priority of a queued download",
 			"upload file to server",
 			"shows this information"
 			};
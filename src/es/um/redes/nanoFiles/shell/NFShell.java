@@ -108,10 +108,16 @@ public class NFShell {
 			case NFCommands.COM_MYFILES:
 			case NFCommands.COM_SERVE:
 			case NFCommands.COM_PING:
+			case NFCommands.COM_DOWNLOADS:
 				// Estos comandos son válidos sin parámetros
 				break;
 			case NFCommands.COM_DOWNLOAD:
+			case NFCommands.COM_DOWNLOAD_ALL:
 			case NFCommands.COM_UPLOAD:
+			case NFCommands.COM_PAUSE:
+			case NFCommands.COM_RESUME:
+			case NFCommands.COM_CANCEL:
+			case NFCommands.COM_PRIORITY:
 				// Estos requieren un parámetro
 				while (st.hasMoreTokens()) {
 					vargs.add(st.nextToken());
@@ -134,9 +140,30 @@ public class NFShell {
 			return false;
 		switch (this.command) {
 		case NFCommands.COM_DOWNLOAD:
-			if (args.length != 2) {
+			if ((args.length != 2 && args.length != 3) || (args.length == 3 && !isInteger(args[2]))) {
+				System.out.println(
+						"Correct use:" + NFCommands.commandToString(command) + " <filename_substring> <local_filename> [<priority>]");
+				return false;
+			}
+			break;
+		case NFCommands.COM_DOWNLOAD_ALL:
+			if ((args.length != 1 && args.length != 2) || (args.length == 2 && !isInteger(args[1]))) {
 				System.out.println(
-						"Correct use:" + NFCommands.commandToString(command) + " <filename_substring> <local_filename>");
+						"Correct use:" + NFCommands.commandToString(command) + " <filename_substring> [<priority>]");
+				return false;
+			}
+			break;
+		case NFCommands.COM_PAUSE:
+		case NFCommands.COM_RESUME:
+		case NFCommands.COM_CANCEL:
+			if (args.length != 1 || !isInteger(args[0])) {
+				System.out.println("Correct use:" + NFCommands.commandToString(command) + " <download_id>");
+				return false;
+			}
+			break;
+		case NFCommands.COM_PRIORITY:
+			if (args.length != 2 || !isInteger(args[0]) || !isInteger(args[1])) {
+				System.out.println("Correct use:" + NFCommands.commandToString(command) + " <download_id> <priority>");
 				return false;
 			}
 			break;
@@ -153,6 +180,15 @@ public class NFShell {
 		return true;
 	}
 
+	private static boolean isInteger(String arg) {
+		try {
+			Integer.parseInt(arg);
+			return true;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
 	public static void enableVerboseShell() {
 		enableVerboseShell = true;
 	}
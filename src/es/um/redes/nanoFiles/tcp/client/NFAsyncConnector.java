@@ -0,0 +1,602 @@
+package es.um.redes.nanoFiles.tcp.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import es.um.redes.nanoFiles.tcp.message.PeerMessage;
+import es.um.redes.nanoFiles.tcp.message.PeerMessageOps;
+
+/**
+ * Conexión con un servidor de ficheros que se usa sin bloquear: cada petición
+ * devuelve un CompletableFuture con la respuesta, y se pueden tener muchas en
+ * vuelo a la vez. La conexión la atiende un NFClientEventLoop, que envía las
+ * peticiones y completa los futures en su hilo, de forma que un solo hilo
+ * puede llevar las conexiones con muchos servidores. La usan las descargas
+ * (HostNegotiator, DownloadWorker y BulkDownload), que toman las conexiones
+ * del NFConnectorPool y se las devuelven con detach.
+ *
+ * Las respuestas con identificador (SEND_TAGGED_CHUNK, CANCEL, STREAM_APROVE,
+ * STREAM_REJECT y CLOSE_STREAM) completan la petición con el mismo
+ * identificador; el resto completan, en orden, las peticiones sin
+ * identificador, si su opcode es una de las respuestas posibles a la más
+ * antigua. Los mensajes que no responden a ninguna petición pendiente (los
+ * chunks de los rangos pedidos con GET_RANGE o GET_STREAM_RANGE, sus ERROR, o
+ * respuestas que llegan después de su plazo) se pasan al messageHandler. Como
+ * el ERROR de un rango no lleva identificador, si después de pedir un rango
+ * llega un ERROR mientras hay una petición sin identificador pendiente, no se
+ * sabe a cuál de las dos responde y se cierra la conexión.
+ *
+ * Si una petición no recibe respuesta en su plazo, su future falla con
+ * TimeoutException. Como las respuestas sin identificador sólo se distinguen
+ * por su orden, si la que vence es una de ellas se cierra la conexión. Si se
+ * cancela el future de una petición con identificador se anula también en el
+ * servidor (con CANCEL, o CLOSE_STREAM si es un OPEN_STREAM), y lo que llegue
+ * de ella hasta su confirmación se descarta; el de una sin identificador
+ * descarta su respuesta cuando llega. Los errores de la
+ * conexión no se ocultan: todas las peticiones pendientes fallan con la
+ * excepción que la ha cerrado.
+ *
+ * Quien recibe los mensajes puede dejar de leer de la conexión un tiempo
+ * (pauseReading), p.ej. para no superar un límite de caudal o mientras no ha
+ * terminado de guardar lo recibido. Mientras tanto el servidor se queda sin
+ * ventana TCP y deja de enviar, sin que haga falta bloquear el hilo del bucle.
+ */
+public class NFAsyncConnector {
+
+	/**
+	 * Petición enviada cuya respuesta aún no ha llegado
+	 */
+	private static final class PendingRequest {
+		final CompletableFuture<PeerMessage> future;
+		final byte requestOpcode;
+		final long sentNanos = System.nanoTime();
+		final boolean timed;
+		final long deadline;
+
+		PendingRequest(CompletableFuture<PeerMessage> future, byte requestOpcode, long timeoutMs) {
+			this.future = future;
+			this.requestOpcode = requestOpcode;
+			this.timed = timeoutMs > 0;
+			this.deadline = sentNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		}
+
+		boolean expired(long now) {
+			return timed && now - deadline > 0;
+		}
+	}
+
+	private final NFClientEventLoop loop;
+	private final NFConnector connector;
+	private final SocketChannel channel;
+	private SelectionKey key = null;
+
+	/**
+	 * Mensajes codificados pendientes de enviar (en modo lectura)
+	 */
+	private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+	/**
+	 * Peticiones sin identificador, en el orden en que se han enviado
+	 */
+	private final ArrayDeque<PendingRequest> inOrder = new ArrayDeque<>();
+	/**
+	 * Peticiones con identificador, por opcode de la petición e identificador
+	 */
+	private final Map<Long, PendingRequest> tagged = new HashMap<>();
+	private Consumer<PeerMessage> messageHandler = null;
+	/**
+	 * Se ha pedido algún rango (GET_RANGE o GET_STREAM_RANGE): desde entonces
+	 * puede llegar un ERROR que no responde a una petición sin identificador
+	 */
+	private boolean rangesRequested = false;
+	/**
+	 * Mensaje donde se lee lo recibido, reutilizado mientras se pase al
+	 * messageHandler
+	 */
+	private PeerMessage incoming = new PeerMessage();
+	/**
+	 * Pausas de lectura en curso (pauseReading sin su resumeReading): mientras
+	 * haya alguna no se lee del socket ni se reparten los mensajes ya recibidos
+	 */
+	private int readPauses = 0;
+	/**
+	 * Tiempo mínimo que ha tardado una petición en recibir su respuesta
+	 */
+	private volatile long minRoundTripNanos = -1;
+	// La conexión ha dejado el bucle (cerrada o devuelta con detach)
+	private boolean closed = false;
+	private final CompletableFuture<Void> closeFuture = new CompletableFuture<>();
+
+	NFAsyncConnector(NFClientEventLoop loop, NFConnector connector) {
+		this.loop = loop;
+		this.connector = connector;
+		this.channel = connector.getChannel();
+	}
+
+	/**
+	 * Envía una petición que tiene respuesta
+	 *
+	 * @param timeoutMs Plazo para recibir la respuesta (0 sin límite)
+	 * @return La respuesta, que se completa en el hilo del bucle de eventos. Sus
+	 *         datos (los de un chunk) no dependen de los buffers de la conexión.
+	 *         Cancelarlo anula la petición en el servidor si lleva identificador.
+	 */
+	public CompletableFuture<PeerMessage> request(PeerMessage msgToSend, long timeoutMs) {
+		CompletableFuture<PeerMessage> future = new CompletableFuture<>();
+		loop.execute(() -> {
+			if (closed) {
+				future.completeExceptionally(new IOException("Connection to " + getServerAddr() + " is closed"));
+				return;
+			}
+			PendingRequest pending = new PendingRequest(future, msgToSend.getOpcode(), timeoutMs);
+			if (isTagged(msgToSend.getOpcode())) {
+				if (tagged.putIfAbsent(tagKey(msgToSend.getOpcode(), msgToSend.getRequestId()), pending) != null) {
+					future.completeExceptionally(new IllegalStateException("Request "
+							+ PeerMessageOps.opcodeToOperation(msgToSend.getOpcode()) + " "
+							+ msgToSend.getRequestId() + " is already pending"));
+					return;
+				}
+			} else {
+				inOrder.add(pending);
+			}
+			write(msgToSend);
+		});
+		if (isTagged(msgToSend.getOpcode())) {
+			future.whenComplete((response, error) -> {
+				if (future.isCancelled()) {
+					loop.execute(() -> cancelTagged(msgToSend));
+				}
+			});
+		}
+		return future;
+	}
+
+	/**
+	 * Anula en el servidor una petición con identificador cuyo future se ha
+	 * cancelado (desde el hilo del bucle). La petición sigue pendiente, para
+	 * descartar lo que envíe el servidor, hasta que confirma la anulación: tras
+	 * el CANCEL o CLOSE_STREAM que devuelve no llega nada más de ella.
+	 */
+	private void cancelTagged(PeerMessage request) {
+		long key = tagKey(request.getOpcode(), request.getRequestId());
+		PendingRequest pending = tagged.get(key);
+		if (closed || pending == null || !pending.future.isCancelled()) {
+			return; // Ya ha terminado (o se ha vuelto a pedir con el mismo identificador)
+		}
+		switch (request.getOpcode()) {
+		case PeerMessageOps.OPCODE_GET_TAGGED_CHUNK:
+		case PeerMessageOps.OPCODE_OPEN_STREAM:
+			break;
+		default:
+			return; // Un CANCEL o CLOSE_STREAM no se anula
+		}
+		PeerMessage cancel = (request.getOpcode() == PeerMessageOps.OPCODE_OPEN_STREAM)
+				? PeerMessage.PeerMessageCloseStream(request.getRequestId())
+				: PeerMessage.PeerMessageCancel(request.getRequestId());
+		CompletableFuture<PeerMessage> confirmed = new CompletableFuture<>();
+		if (tagged.putIfAbsent(tagKey(cancel.getOpcode(), cancel.getRequestId()),
+				new PendingRequest(confirmed, cancel.getOpcode(), 0)) == null) {
+			confirmed.whenComplete((response, error) -> {
+				if (!closed) {
+					tagged.remove(key, pending);
+				}
+			});
+		} else {
+			// Ya hay una anulación en curso con ese identificador: se deja de esperar
+			tagged.remove(key, pending);
+		}
+		write(cancel);
+	}
+
+	/**
+	 * Envía un mensaje que no tiene respuesta propia, p.ej. un GET_RANGE cuyos
+	 * chunks llegan al messageHandler
+	 */
+	public void send(PeerMessage msgToSend) {
+		loop.execute(() -> {
+			if (!closed) {
+				if (isRangeRequest(msgToSend.getOpcode())) {
+					rangesRequested = true;
+				}
+				write(msgToSend);
+			}
+		});
+	}
+
+	/**
+	 * Indica quién recibe los mensajes que no responden a ninguna petición
+	 * pendiente. Se llama en el hilo del bucle, con un mensaje que se reutiliza:
+	 * los datos de un chunk (getChunkBuffer) sólo son válidos durante la llamada.
+	 * Si lanza una excepción se cierra la conexión.
+	 */
+	public void setMessageHandler(Consumer<PeerMessage> messageHandler) {
+		loop.execute(() -> this.messageHandler = messageHandler);
+	}
+
+	/**
+	 * Deja de leer de la conexión hasta la llamada correspondiente a
+	 * resumeReading. Las pausas se acumulan: se vuelve a leer cuando se han
+	 * reanudado todas.
+	 */
+	public void pauseReading() {
+		loop.execute(() -> {
+			readPauses++;
+			updateInterestOps();
+		});
+	}
+
+	/**
+	 * Deja de leer de la conexión durante el tiempo dado
+	 */
+	public void pauseReading(long delay, TimeUnit unit) {
+		pauseReading();
+		loop.execute(() -> loop.schedule(this::resumeReading, unit.toNanos(delay)));
+	}
+
+	/**
+	 * Termina una pausa de pauseReading. Si no quedan más, se reparten los
+	 * mensajes que ya se habían recibido y se vuelve a leer del socket.
+	 */
+	public void resumeReading() {
+		loop.execute(() -> {
+			if (readPauses == 0) {
+				return;
+			}
+			readPauses--;
+			if (readPauses == 0 && !closed) {
+				try {
+					dispatchReceivedMessages(connector.getReceiveBuffer());
+				} catch (ProtocolException e) {
+					fail(e);
+					return;
+				}
+				updateInterestOps();
+			}
+		});
+	}
+
+	/**
+	 * @return Se completa cuando la conexión deja el bucle: normalmente si se ha
+	 *         cerrado con close o detach, o con la excepción que la ha cerrado
+	 */
+	public CompletableFuture<Void> whenClosed() {
+		return closeFuture;
+	}
+
+	/**
+	 * Saca la conexión del bucle de eventos para volver a usarla de forma
+	 * bloqueante (p.ej. devolverla al NFConnectorPool). Lo que quede por enviar
+	 * se envía antes, y las peticiones pendientes fallan: sus respuestas se
+	 * reciben en el NFConnector.
+	 */
+	public CompletableFuture<NFConnector> detach() {
+		CompletableFuture<NFConnector> result = new CompletableFuture<>();
+		loop.execute(() -> {
+			if (closed) {
+				result.completeExceptionally(new IOException("Connection to " + getServerAddr() + " is closed"));
+				return;
+			}
+			leaveLoop(new IOException("Connection to " + getServerAddr() + " detached"));
+			// El canal sólo puede volver a modo bloqueante cuando el selector ha liberado su clave
+			loop.runAfterSelect(() -> {
+				try {
+					channel.configureBlocking(true);
+					for (ByteBuffer buf : writeQueue) {
+						while (buf.hasRemaining()) {
+							channel.write(buf);
+						}
+					}
+					writeQueue.clear();
+				} catch (IOException e) {
+					connector.close();
+					closeFuture.completeExceptionally(e);
+					result.completeExceptionally(e);
+					return;
+				}
+				closeFuture.complete(null);
+				result.complete(connector);
+			});
+		});
+		return result;
+	}
+
+	/**
+	 * Cierra la conexión. Las peticiones pendientes fallan.
+	 */
+	public void close() {
+		loop.execute(() -> {
+			if (!closed) {
+				leaveLoop(new IOException("Connection to " + getServerAddr() + " closed"));
+				connector.close();
+				closeFuture.complete(null);
+			}
+		});
+	}
+
+	public InetSocketAddress getServerAddr() {
+		return connector.getServerAddr();
+	}
+
+	/**
+	 * RTT mínimo (ms) medido con las peticiones que tienen respuesta, o -1 si no
+	 * ha respondido ninguna
+	 */
+	public double getMinRoundTripMs() {
+		long rtt = minRoundTripNanos;
+		return (rtt < 0) ? -1 : rtt / 1e6;
+	}
+
+	/**
+	 * Registra la conexión en el selector del bucle (desde su hilo)
+	 */
+	void register(Selector selector) throws IOException {
+		channel.configureBlocking(false);
+		key = channel.register(selector, SelectionKey.OP_READ, this);
+		flushWrites();
+	}
+
+	/**
+	 * Atiende los eventos que el selector ha detectado para esta conexión
+	 */
+	void handleReadyOps() throws IOException {
+		if (key.isValid() && key.isWritable()) {
+			flushWrites();
+		}
+		if (key.isValid() && key.isReadable() && readPauses == 0) {
+			ByteBuffer receiveBuffer = connector.getReceiveBuffer();
+			receiveBuffer.compact();
+			int read;
+			try {
+				if (!receiveBuffer.hasRemaining()) {
+					throw new IOException("Message too large");
+				}
+				read = channel.read(receiveBuffer);
+			} finally {
+				receiveBuffer.flip();
+			}
+			if (read < 0) {
+				throw new EOFException("Connection closed by " + getServerAddr());
+			}
+			dispatchReceivedMessages(receiveBuffer);
+		}
+	}
+
+	/**
+	 * Reparte los mensajes completos recibidos. Si la conexión deja el bucle
+	 * mientras tanto, el resto se queda en el buffer para el NFConnector, y si se
+	 * pausa la lectura, hasta que se reanude.
+	 *
+	 * @throws ProtocolException Si el servidor envía algo que no es un mensaje
+	 *                           válido
+	 */
+	private void dispatchReceivedMessages(ByteBuffer receiveBuffer) throws ProtocolException {
+		while (!closed && readPauses == 0 && incoming.readFromByteBuffer(receiveBuffer)) {
+			PendingRequest pending = takePending(incoming);
+			if (pending != null) {
+				// Se copian los datos, la respuesta no depende del buffer de recepción
+				incoming.getChunckData();
+				PeerMessage response = incoming;
+				incoming = new PeerMessage();
+				long rtt = System.nanoTime() - pending.sentNanos;
+				minRoundTripNanos = (minRoundTripNanos < 0) ? rtt : Math.min(minRoundTripNanos, rtt);
+				pending.future.complete(response);
+			} else if (messageHandler != null) {
+				try {
+					messageHandler.accept(incoming);
+				} catch (RuntimeException e) {
+					fail(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return La petición a la que responde un mensaje (que deja de estar
+	 *         pendiente), o null si no responde a ninguna
+	 * @throws ProtocolException Si no se puede saber si el mensaje responde a la
+	 *                           petición sin identificador pendiente o a un rango
+	 */
+	private PendingRequest takePending(PeerMessage message) throws ProtocolException {
+		byte requestOpcode = requestOpcodeOf(message.getOpcode());
+		if (requestOpcode != PeerMessageOps.OPCODE_INVALID_CODE) {
+			return tagged.remove(tagKey(requestOpcode, message.getRequestId()));
+		}
+		PendingRequest oldest = inOrder.peek();
+		if (oldest == null || !isReplyTo(message.getOpcode(), oldest.requestOpcode)) {
+			return null;
+		}
+		if (rangesRequested && message.getOpcode() == PeerMessageOps.OPCODE_ERROR) {
+			throw new ProtocolException(PeerMessageOps.opcodeToOperation(message.getOpcode()) + " from "
+					+ getServerAddr() + " may reply to "
+					+ PeerMessageOps.opcodeToOperation(oldest.requestOpcode) + " or to a requested range");
+		}
+		return inOrder.poll();
+	}
+
+	/**
+	 * Vence las peticiones cuyo plazo ha pasado (desde el hilo del bucle)
+	 */
+	void expire(long now) {
+		if (closed) {
+			return;
+		}
+		for (PendingRequest pending : inOrder) {
+			if (!pending.future.isDone() && pending.expired(now)) {
+				// Ya no se puede saber a qué petición corresponde cada respuesta
+				fail(new TimeoutException("Host " + getServerAddr() + " has not replied"));
+				return;
+			}
+		}
+		Iterator<PendingRequest> it = tagged.values().iterator();
+		while (it.hasNext()) {
+			PendingRequest pending = it.next();
+			if (pending.expired(now)) {
+				it.remove();
+				pending.future.completeExceptionally(new TimeoutException("Host " + getServerAddr() + " has not replied"));
+			}
+		}
+	}
+
+	/**
+	 * Cierra la conexión tras un error, que reciben las peticiones pendientes
+	 */
+	void fail(Throwable cause) {
+		if (!closed) {
+			leaveLoop(cause);
+			connector.close();
+			closeFuture.completeExceptionally(cause);
+		}
+	}
+
+	/**
+	 * Saca la conexión del selector y hace fallar las peticiones pendientes
+	 */
+	private void leaveLoop(Throwable cause) {
+		closed = true;
+		if (key != null) {
+			key.cancel();
+		}
+		loop.removed(this);
+		for (PendingRequest pending : inOrder) {
+			pending.future.completeExceptionally(cause);
+		}
+		for (PendingRequest pending : tagged.values()) {
+			pending.future.completeExceptionally(cause);
+		}
+		inOrder.clear();
+		tagged.clear();
+	}
+
+	private void write(PeerMessage msgToSend) {
+		writeQueue.add(msgToSend.toByteBuffer());
+		try {
+			flushWrites();
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Escribe lo que admita el socket sin bloquear; si queda algo se espera a que
+	 * se pueda escribir
+	 */
+	private void flushWrites() throws IOException {
+		if (key == null || !key.isValid()) {
+			return;	// Aún no registrada: se envía al registrarla
+		}
+		while (!writeQueue.isEmpty()) {
+			ByteBuffer buf = writeQueue.peek();
+			channel.write(buf);
+			if (buf.hasRemaining()) {
+				break;
+			}
+			writeQueue.poll();
+		}
+		updateInterestOps();
+	}
+
+	/**
+	 * Espera a poder leer salvo que la lectura esté pausada, y a poder escribir si
+	 * queda algo por enviar
+	 */
+	private void updateInterestOps() {
+		if (key == null || !key.isValid()) {
+			return;
+		}
+		int ops = (readPauses == 0) ? SelectionKey.OP_READ : 0;
+		if (!writeQueue.isEmpty()) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+		key.interestOps(ops);
+	}
+
+	/**
+	 * Peticiones cuya respuesta lleva su identificador
+	 */
+	private static boolean isTagged(byte requestOpcode) {
+		switch (requestOpcode) {
+		case PeerMessageOps.OPCODE_GET_TAGGED_CHUNK:
+		case PeerMessageOps.OPCODE_CANCEL:
+		case PeerMessageOps.OPCODE_OPEN_STREAM:
+		case PeerMessageOps.OPCODE_CLOSE_STREAM:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @return Verdadero si un mensaje sin identificador puede ser la respuesta a
+	 *         una petición sin identificador
+	 */
+	private static boolean isReplyTo(byte responseOpcode, byte requestOpcode) {
+		if (responseOpcode == PeerMessageOps.OPCODE_INVALID_CODE) {
+			return true; // El servidor no conoce la petición
+		}
+		switch (requestOpcode) {
+		case PeerMessageOps.OPCODE_DOWNLOAD_FILE:
+			return responseOpcode == PeerMessageOps.OPCODE_DOWNLOAD_APROVE
+					|| responseOpcode == PeerMessageOps.OPCODE_NOT_FOUND
+					|| responseOpcode == PeerMessageOps.OPCODE_AMBIGUOUS_NAME
+					|| responseOpcode == PeerMessageOps.OPCODE_ERROR;
+		case PeerMessageOps.OPCODE_GET_CHUNCK:
+			return responseOpcode == PeerMessageOps.OPCODE_SEND_CHUNK
+					|| responseOpcode == PeerMessageOps.OPCODE_ERROR;
+		case PeerMessageOps.OPCODE_GET_PIECE_HASHES:
+			return responseOpcode == PeerMessageOps.OPCODE_PIECE_HASHES
+					|| responseOpcode == PeerMessageOps.OPCODE_ERROR;
+		case PeerMessageOps.OPCODE_CORRUPT_DOWNLOAD:
+			return responseOpcode == PeerMessageOps.OPCODE_ERROR;
+		case PeerMessageOps.OPCODE_PING:
+			return responseOpcode == PeerMessageOps.OPCODE_PONG;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Peticiones que no tienen respuesta propia: sus chunks (o un ERROR sin
+	 * identificador si no se pueden enviar) llegan al messageHandler
+	 */
+	private static boolean isRangeRequest(byte requestOpcode) {
+		return requestOpcode == PeerMessageOps.OPCODE_GET_RANGE
+				|| requestOpcode == PeerMessageOps.OPCODE_GET_STREAM_RANGE;
+	}
+
+	/**
+	 * @return El opcode de la petición a la que responde un mensaje con
+	 *         identificador, o INVALID_CODE si la respuesta no lo lleva
+	 */
+	private static byte requestOpcodeOf(byte responseOpcode) {
+		switch (responseOpcode) {
+		case PeerMessageOps.OPCODE_SEND_TAGGED_CHUNK:
+			return PeerMessageOps.OPCODE_GET_TAGGED_CHUNK;
+		case PeerMessageOps.OPCODE_CANCEL:
+			return PeerMessageOps.OPCODE_CANCEL;
+		case PeerMessageOps.OPCODE_STREAM_APROVE:
+		case PeerMessageOps.OPCODE_STREAM_REJECT:
+			return PeerMessageOps.OPCODE_OPEN_STREAM;
+		case PeerMessageOps.OPCODE_CLOSE_STREAM:
+			return PeerMessageOps.OPCODE_CLOSE_STREAM;
+		default:
+			return PeerMessageOps.OPCODE_INVALID_CODE;
+		}
+	}
+
+	private static long tagKey(byte requestOpcode, int requestId) {
+		return ((long) requestOpcode << 32) | (requestId & 0xffffffffL);
+	}
+}
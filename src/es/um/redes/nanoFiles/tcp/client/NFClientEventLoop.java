@@ -0,0 +1,278 @@
+package es.um.redes.nanoFiles.tcp.client;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bucle de eventos de las conexiones asíncronas con servidores
+ * (NFAsyncConnector). Un solo hilo multiplexa mediante un Selector todas las
+ * conexiones que se le asignan: envía las peticiones, reparte las respuestas y
+ * vence los plazos de las que no llegan, sin un hilo por conexión.
+ *
+ * Cada descarga tiene el suyo: la de un fichero (DownloadWorker y
+ * HostNegotiator) y la de todos los ficheros de un patrón (BulkDownload). El
+ * número de conexiones entre todas lo limita NanoFiles.MAX_TOTAL_CONNECTIONS,
+ * pero no el de hilos, que no crece con el de servidores.
+ *
+ * Todo lo que afecta a una conexión se ejecuta en el hilo del bucle: los demás
+ * hilos le pasan tareas con execute.
+ */
+public class NFClientEventLoop implements Runnable {
+
+	/**
+	 * Tarea que se ejecuta en el hilo del bucle a partir de un instante
+	 */
+	private static final class Timer {
+		final long deadline;
+		final Runnable task;
+
+		Timer(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+	}
+
+	/**
+	 * Cada cuánto (ms) se comprueban los plazos de las peticiones
+	 */
+	private static final long TIMEOUT_CHECK_INTERVAL_MS = 50;
+
+	private final Selector selector;
+	private final Thread thread;
+	/**
+	 * Tareas de otros hilos pendientes de ejecutarse en el del bucle
+	 */
+	private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+	/**
+	 * Conexiones asignadas al bucle (sólo se usa desde su hilo)
+	 */
+	private final Set<NFAsyncConnector> connectors = new HashSet<>();
+	/**
+	 * Tareas que esperan a la siguiente selección (sólo se usa desde su hilo)
+	 */
+	private List<Runnable> afterSelectTasks = new ArrayList<>();
+	/**
+	 * Tareas programadas con schedule, la más próxima primero (sólo se usa desde
+	 * su hilo)
+	 */
+	private final PriorityQueue<Timer> timers = new PriorityQueue<>(
+			(a, b) -> Long.compare(a.deadline - b.deadline, 0));
+
+	private volatile boolean stopLoop = false;
+	/**
+	 * El hilo del bucle ha terminado y no queda ninguna tarea suya: las tareas se
+	 * ejecutan en el hilo que las pasa, de una en una con exitLock. Se activa con
+	 * exitLock tomado, así una tarea o está en la cola cuando el bucle hace la
+	 * última pasada o se ejecuta después de ella, nunca a la vez.
+	 */
+	private volatile boolean exited = false;
+	private final Object exitLock = new Object();
+
+	/**
+	 * Crea el bucle y arranca su hilo
+	 */
+	public NFClientEventLoop(String name) throws IOException {
+		selector = Selector.open();
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Pasa una conexión establecida (p.ej. tomada del NFConnectorPool) a este
+	 * bucle. Mientras sea asíncrona no se debe usar el NFConnector directamente;
+	 * se recupera con NFAsyncConnector.detach.
+	 */
+	public NFAsyncConnector attach(NFConnector connector) {
+		NFAsyncConnector asyncConnector = new NFAsyncConnector(this, connector);
+		execute(() -> {
+			try {
+				asyncConnector.register(selector);
+				connectors.add(asyncConnector);
+			} catch (IOException | ClosedSelectorException e) {
+				asyncConnector.fail(e);
+			}
+		});
+		return asyncConnector;
+	}
+
+	/**
+	 * Ejecuta una tarea en el hilo del bucle: en el acto si se llama desde él, o
+	 * en cuanto despierte si no. Si el bucle ya se ha detenido se ejecuta en el
+	 * hilo que la pasa (las conexiones ya están cerradas).
+	 */
+	public void execute(Runnable task) {
+		if (Thread.currentThread() == thread) {
+			task.run();
+			return;
+		}
+		synchronized (exitLock) {
+			if (exited) {
+				task.run();
+				return;
+			}
+			pendingTasks.add(task);
+		}
+		selector.wakeup();
+	}
+
+	boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * La conexión ha dejado el bucle (cerrada o devuelta con detach)
+	 */
+	void removed(NFAsyncConnector connector) {
+		connectors.remove(connector);
+	}
+
+	/**
+	 * Ejecuta una tarea (desde el hilo del bucle) tras la siguiente selección,
+	 * cuando las claves canceladas ya no están registradas y sus canales pueden
+	 * volver a modo bloqueante
+	 */
+	void runAfterSelect(Runnable task) {
+		if (exited) {
+			task.run();	// El selector ya está cerrado
+			return;
+		}
+		afterSelectTasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Ejecuta una tarea (desde el hilo del bucle) cuando pase el tiempo dado, p.ej.
+	 * para volver a leer de una conexión pausada
+	 */
+	void schedule(Runnable task, long delayNanos) {
+		timers.add(new Timer(System.nanoTime() + delayNanos, task));
+	}
+
+	/**
+	 * @return Lo que se puede esperar en el selector (ms) hasta la siguiente
+	 *         comprobación de plazos o tarea programada, 0 si ya toca alguna
+	 */
+	private long selectTimeoutMs() {
+		Timer next = timers.peek();
+		if (next == null) {
+			return TIMEOUT_CHECK_INTERVAL_MS;
+		}
+		long remainingNanos = next.deadline - System.nanoTime();
+		if (remainingNanos <= 0) {
+			return 0;
+		}
+		return Math.min(TIMEOUT_CHECK_INTERVAL_MS, Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNanos)));
+	}
+
+	private void runTimers() {
+		long now = System.nanoTime();
+		Timer next;
+		while ((next = timers.peek()) != null && now - next.deadline >= 0) {
+			timers.poll();
+			next.task.run();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (!stopLoop) {
+			try {
+				long timeoutMs = selectTimeoutMs();
+				if (timeoutMs > 0) {
+					selector.select(timeoutMs);
+				} else {
+					selector.selectNow();
+				}
+			} catch (IOException e) {
+				System.err.println("[-] Error waiting for server events: " + e.getMessage());
+				break;
+			}
+			List<Runnable> deferred = afterSelectTasks;
+			afterSelectTasks = new ArrayList<>();
+			for (Runnable task : deferred) {
+				task.run();
+			}
+			runPendingTasks();
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				NFAsyncConnector connector = (NFAsyncConnector) key.attachment();
+				try {
+					connector.handleReadyOps();
+				} catch (IOException | CancelledKeyException e) {
+					// El servidor ha cerrado la conexión o ha fallado
+					connector.fail(e);
+				}
+			}
+			runTimers();
+			long now = System.nanoTime();
+			for (NFAsyncConnector connector : new ArrayList<>(connectors)) {
+				connector.expire(now);
+			}
+		}
+		closeAll();
+	}
+
+	private void runPendingTasks() {
+		Runnable task;
+		while ((task = pendingTasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	private void closeAll() {
+		runPendingTasks();
+		for (NFAsyncConnector connector : new ArrayList<>(connectors)) {
+			connector.close();
+		}
+		// Las tareas programadas sólo afectan a conexiones, que ya están cerradas
+		timers.clear();
+		try {
+			selector.close();
+		} catch (IOException e) {
+		}
+		// Última pasada: las tareas que hayan llegado mientras tanto se ejecutan aquí, las siguientes en quien las pase
+		synchronized (exitLock) {
+			do {
+				runPendingTasks();
+				// Al cerrar el selector se liberan también las claves canceladas
+				List<Runnable> deferred = afterSelectTasks;
+				afterSelectTasks = new ArrayList<>();
+				for (Runnable task : deferred) {
+					task.run();
+				}
+			} while (!pendingTasks.isEmpty() || !afterSelectTasks.isEmpty());
+			exited = true;
+		}
+	}
+
+	/**
+	 * Detiene el bucle, cerrando todas las conexiones que quedan en él
+	 */
+	public void close() {
+		stopLoop = true;
+		selector.wakeup();
+		if (!inLoop()) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
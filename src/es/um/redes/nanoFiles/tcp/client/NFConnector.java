@@ -2,23 +2,63 @@ package es.um.redes.nanoFiles.tcp.client;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 
+import es.um.redes.nanoFiles.application.NanoFiles;
 import es.um.redes.nanoFiles.tcp.message.PeerMessage;
+import es.um.redes.nanoFiles.util.ByteBufferPool;
 
 //Esta clase proporciona la funcionalidad necesaria para intercambiar mensajes entre el cliente y el servidor
 public class NFConnector {
+	/*
+	 * Los mensajes se codifican y se leen sobre buffers directos que se toman de
+	 * un pool compartido por todas las conexiones. El buffer de recepción debe
+	 * poder contener el mensaje más grande (un chunk con su cabecera).
+	 */
+	private static final int RECEIVE_BUFFER_SIZE = Math.max(64 * 1024,
+			NanoFiles.DEFAULT_CHUNK_SIZE + PeerMessage.MAX_CHUNK_HEADER_LENGTH);
+	private static final int SEND_BUFFER_SIZE = 8 * 1024;
+	private static final ByteBufferPool receiveBufferPool = new ByteBufferPool(RECEIVE_BUFFER_SIZE, 64);
+	private static final ByteBufferPool sendBufferPool = new ByteBufferPool(SEND_BUFFER_SIZE, 64);
+
+	private SocketChannel channel;
 	private Socket socket;
 	private InetSocketAddress serverAddr;
 
 	private DataInputStream dis;
 	private DataOutputStream dos;
 
+	/**
+	 * Bytes recibidos del servidor pendientes de procesar (en modo lectura)
+	 */
+	private ByteBuffer receiveBuffer;
+	/**
+	 * Mensajes codificados pendientes de enviar (en modo escritura)
+	 */
+	private ByteBuffer sendBuffer;
+	/**
+	 * Cabeceras y datos que se envían en una misma escritura (gathering write)
+	 */
+	private final ByteBuffer[] gatherBuffers = new ByteBuffer[2];
+
 
 
 	public NFConnector(InetSocketAddress fserverAddr) throws IOException {
+		this(fserverAddr, 0);
+	}
+
+	/**
+	 * @param connectTimeoutMs Tiempo máximo para establecer la conexión (0 sin
+	 *                         límite)
+	 */
+	public NFConnector(InetSocketAddress fserverAddr, int connectTimeoutMs) throws IOException {
 		serverAddr = fserverAddr;
 
 		// Validar el host y el puerto
@@ -42,7 +82,16 @@ public class NFConnector {
 			host = host.substring(1);
 		}
 
-		socket = new Socket(host,serverAddr.getPort());
+		channel = SocketChannel.open();
+		try {
+			channel.socket().connect(new InetSocketAddress(host, serverAddr.getPort()), connectTimeoutMs);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		// Cada mensaje se envía completo en una sola escritura, no hace falta esperar a Nagle
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		socket = channel.socket();
 
 
 		/*
@@ -53,6 +102,9 @@ public class NFConnector {
 		dis = new DataInputStream(socket.getInputStream());
 		dos = new DataOutputStream(socket.getOutputStream());
 
+		receiveBuffer = receiveBufferPool.acquire();
+		receiveBuffer.flip();
+		sendBuffer = sendBufferPool.acquire();
 
 	}
 
@@ -76,23 +128,208 @@ public class NFConnector {
 	}
 
 	public PeerMessage sendAndRecive(PeerMessage msgToSend){
-		PeerMessage msgRecive = null;
+		if (!sendMessage(msgToSend)) {
+			return null;
+		}
+		return receiveMessage();
+	}
+
+	/**
+	 * Envía un mensaje al servidor sin esperar respuesta. Permite tener varias
+	 * peticiones en vuelo (GET_TAGGED_CHUNK), cuyas respuestas se leen después con
+	 * receiveMessage, o enviar mensajes que el servidor no contesta (p.ej. el que
+	 * indica el final de la descarga)
+	 * 
+	 * @return Verdadero si el mensaje se ha podido enviar
+	 */
+	public boolean sendMessage(PeerMessage msgToSend) {
+		return queueMessage(msgToSend) && flush();
+	}
+
+	/**
+	 * Codifica un mensaje en el buffer de envío sin enviarlo todavía, de forma que
+	 * varias peticiones seguidas salen en una sola escritura al llamar a flush. Si
+	 * el mensaje lleva datos (un chunk) se envían junto con la cabecera en una
+	 * gathering write, sin copiarlos al buffer.
+	 * 
+	 * @return Verdadero si el mensaje se ha podido codificar (y enviar, si no
+	 *         cabía en el buffer)
+	 */
+	public boolean queueMessage(PeerMessage msgToSend) {
+		try {
+			if (!msgToSend.writeHeaderToByteBuffer(sendBuffer)) {
+				writeFully(null);
+				if (!msgToSend.writeHeaderToByteBuffer(sendBuffer)) {
+					throw new IOException("Message too large");
+				}
+			}
+			ByteBuffer data = msgToSend.getChunkBuffer();
+			if (data != null && data.hasRemaining()) {
+				writeFully(data.duplicate());
+			}
+		} catch (IOException e) {
+			System.err.println("[-] Error during sending data to " + serverAddr);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Envía los mensajes codificados con queueMessage
+	 * 
+	 * @return Verdadero si se han podido enviar
+	 */
+	public boolean flush() {
+		try {
+			writeFully(null);
+		} catch (IOException e) {
+			System.err.println("[-] Error during sending data to " + serverAddr);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Escribe el contenido del buffer de envío seguido de data (si no es null) con
+	 * gathering writes, y deja el buffer de envío vacío
+	 */
+	private void writeFully(ByteBuffer data) throws IOException {
+		sendBuffer.flip();
+		try {
+			gatherBuffers[0] = sendBuffer;
+			gatherBuffers[1] = data;
+			int numBuffers = (data != null) ? 2 : 1;
+			while (sendBuffer.hasRemaining() || (data != null && data.hasRemaining())) {
+				channel.write(gatherBuffers, 0, numBuffers);
+			}
+		} finally {
+			gatherBuffers[1] = null;
+			sendBuffer.clear();
+		}
+	}
+
+	/**
+	 * Recibe el siguiente mensaje del servidor, p.ej. la respuesta a una de las
+	 * peticiones enviadas antes con sendMessage
+	 * 
+	 * @return El mensaje recibido, o null si se ha producido un error
+	 */
+	public PeerMessage receiveMessage() {
+		PeerMessage message = new PeerMessage();
+		if (!receiveMessage(message)) {
+			return null;
+		}
+		// Se copian los datos, el mensaje devuelto no depende del buffer de recepción
+		message.getChunckData();
+		return message;
+	}
 
+	/**
+	 * Recibe el siguiente mensaje del servidor sobre un objeto PeerMessage
+	 * reutilizable, sin reservar memoria: los datos de un chunk se obtienen con
+	 * getChunkBuffer y sólo son válidos hasta la siguiente llamada.
+	 * 
+	 * @param message El mensaje donde se guarda lo recibido
+	 * @return Verdadero si se ha recibido un mensaje, falso si se ha producido un
+	 *         error (si lo recibido no es un mensaje válido, además se corta la
+	 *         conexión)
+	 */
+	public boolean receiveMessage(PeerMessage message) {
 		try {
-			msgToSend.writeMessageToOutputStream(dos);
-			msgRecive = PeerMessage.readMessageFromInputStream(dis);
-		} catch (Exception e) {
-			e.printStackTrace();
-			System.err.println("[-] Error during sending data to "+serverAddr);
-			msgRecive = null;
-			return msgRecive;
+			while (!message.readFromByteBuffer(receiveBuffer)) {
+				// Mensaje incompleto: se conserva lo recibido y se leen más bytes del socket
+				receiveBuffer.compact();
+				if (!receiveBuffer.hasRemaining()) {
+					receiveBuffer.flip();
+					throw new IOException("Message too large");
+				}
+				int read = channel.read(receiveBuffer);
+				receiveBuffer.flip();
+				if (read < 0) {
+					throw new EOFException();
+				}
+			}
+		} catch (ProtocolException e) {
+			// El resto del flujo no se puede interpretar: la conexión ya no sirve
+			System.err.println("[-] Invalid message received from " + serverAddr + ": " + e.getMessage());
+			abort();
+			return false;
+		} catch (IOException e) {
+			System.err.println("[-] Error during receiving data from " + serverAddr);
+			return false;
 		}
-		return msgRecive;
+		return true;
 	}
 
+	/**
+	 * Cierra la conexión con el servidor y devuelve los buffers al pool
+	 */
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+		receiveBufferPool.release(receiveBuffer);
+		sendBufferPool.release(sendBuffer);
+		receiveBuffer = null;
+		sendBuffer = null;
+	}
 
+	/**
+	 * Corta la conexión desde otro hilo: la lectura en curso falla y el hilo que
+	 * usa el conector lo cierra con close()
+	 */
+	public void abort() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
 
+	/**
+	 * Lee sin bloquear lo que haya llegado del servidor (se conserva para el
+	 * siguiente receiveMessage), para saber si ha cerrado la conexión sin tener
+	 * que enviarle nada
+	 *
+	 * @return Falso si el servidor ha cerrado la conexión o se ha producido un
+	 *         error
+	 */
+	public boolean probe() {
+		try {
+			channel.configureBlocking(false);
+			receiveBuffer.compact();
+			try {
+				return channel.read(receiveBuffer) >= 0;
+			} finally {
+				receiveBuffer.flip();
+				channel.configureBlocking(true);
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
 
+	/**
+	 * Canal de la conexión, para que NFAsyncConnector lo use sin bloquear
+	 */
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Bytes recibidos pendientes de procesar (en modo lectura), que se conservan
+	 * al pasar la conexión a NFAsyncConnector y de vuelta
+	 */
+	ByteBuffer getReceiveBuffer() {
+		return receiveBuffer;
+	}
+
+	/**
+	 * @return Verdadero si la conexión no se ha cerrado ni cortado
+	 */
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
 
 	public InetSocketAddress getServerAddr() {
 		return serverAddr;
@@ -0,0 +1,238 @@
+package es.um.redes.nanoFiles.tcp.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import es.um.redes.nanoFiles.tcp.message.PeerMessage;
+import es.um.redes.nanoFiles.tcp.message.PeerMessageOps;
+
+/**
+ * Conexiones con servidores de ficheros que se conservan al terminar una
+ * descarga para que las siguientes con los mismos servidores las reutilicen,
+ * sin volver a establecer la conexión.
+ *
+ * Al devolver una conexión al pool se le envía un PING, que deja la sesión del
+ * servidor como recién abierta. Antes de volver a usarla se descartan las
+ * respuestas pendientes de la descarga anterior hasta su PONG y se comprueba
+ * que el servidor no la ha cerrado; si lleva más de checkAfterMs sin usarse, se
+ * comprueba además con otro PING que el servidor sigue respondiendo. Las que no
+ * pasan la comprobación, o llevan más de idleTimeoutMs sin usarse, se cierran.
+ * Se guardan como mucho maxIdlePerHost conexiones libres con cada servidor.
+ */
+public class NFConnectorPool {
+
+	/**
+	 * Conexión libre: desde cuándo (System.nanoTime) y cuántos PONG faltan por
+	 * llegar
+	 */
+	private static final class IdleConnector {
+		final NFConnector connector;
+		final long idleSince;
+		int pendingPongs;
+
+		IdleConnector(NFConnector connector, int pendingPongs) {
+			this.connector = connector;
+			this.idleSince = System.nanoTime();
+			this.pendingPongs = pendingPongs;
+		}
+	}
+
+	private final int maxIdlePerHost;
+	private final long idleTimeoutNanos;
+	private final long checkAfterNanos;
+	private final long checkTimeoutMs;
+	// Conexiones libres por servidor, la más reciente al final
+	private final Map<InetSocketAddress, ArrayDeque<IdleConnector>> idle = new HashMap<>();
+	// Corta las comprobaciones que vencen y cierra las conexiones que caducan
+	private final ScheduledExecutorService timer;
+	private boolean closed = false;
+
+	/**
+	 * @param maxIdlePerHost Número máximo de conexiones libres con un servidor
+	 * @param idleTimeoutMs  Tiempo sin usarse tras el que se cierra una conexión
+	 * @param checkAfterMs   Tiempo sin usarse tras el que se comprueba una
+	 *                       conexión con PING antes de reutilizarla
+	 * @param checkTimeoutMs Plazo para recibir los PONG de la comprobación
+	 */
+	public NFConnectorPool(int maxIdlePerHost, long idleTimeoutMs, long checkAfterMs, long checkTimeoutMs) {
+		this.maxIdlePerHost = maxIdlePerHost;
+		this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+		this.checkAfterNanos = TimeUnit.MILLISECONDS.toNanos(checkAfterMs);
+		this.checkTimeoutMs = checkTimeoutMs;
+		this.timer = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "NFConnectorPool");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long evictIntervalMs = Math.max(idleTimeoutMs / 2, 1);
+		timer.scheduleWithFixedDelay(this::evictExpired, evictIntervalMs, evictIntervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Obtiene una conexión con un servidor: una libre que pasa la comprobación o,
+	 * si no hay, una nueva
+	 *
+	 * @param connectTimeoutMs Plazo para establecer la conexión si hay que abrirla
+	 * @return La conexión, que se devuelve con release (o se cierra si falla)
+	 */
+	public NFConnector lease(InetSocketAddress serverAddr, int connectTimeoutMs) throws IOException {
+		IdleConnector candidate;
+		while ((candidate = pollIdle(serverAddr)) != null) {
+			if (check(candidate)) {
+				return candidate.connector;
+			}
+			candidate.connector.close();
+		}
+		return new NFConnector(serverAddr, connectTimeoutMs);
+	}
+
+	/**
+	 * Devuelve al pool una conexión que sigue el protocolo, para que la reutilice
+	 * otra descarga. Si no cabe, o no se le puede enviar el PING, se cierra.
+	 */
+	public void release(NFConnector connector) {
+		if (!connector.isOpen() || !connector.sendMessage(new PeerMessage(PeerMessageOps.OPCODE_PING))) {
+			connector.close();
+			return;
+		}
+		synchronized (this) {
+			ArrayDeque<IdleConnector> connectors = idle.computeIfAbsent(connector.getServerAddr(),
+					addr -> new ArrayDeque<>());
+			if (!closed && connectors.size() < maxIdlePerHost) {
+				connectors.add(new IdleConnector(connector, 1));
+				return;
+			}
+		}
+		retire(connector);
+	}
+
+	/**
+	 * Cierra todas las conexiones libres. Las que se devuelvan después también se
+	 * cierran.
+	 */
+	public void close() {
+		List<NFConnector> toClose = new ArrayList<>();
+		synchronized (this) {
+			closed = true;
+			for (ArrayDeque<IdleConnector> connectors : idle.values()) {
+				for (IdleConnector candidate : connectors) {
+					toClose.add(candidate.connector);
+				}
+			}
+			idle.clear();
+		}
+		timer.shutdownNow();
+		for (NFConnector connector : toClose) {
+			retire(connector);
+		}
+	}
+
+	/**
+	 * @return La conexión libre con el servidor usada más recientemente, o null
+	 *         si no hay ninguna
+	 */
+	private synchronized IdleConnector pollIdle(InetSocketAddress serverAddr) {
+		ArrayDeque<IdleConnector> connectors = idle.get(serverAddr);
+		if (connectors == null) {
+			return null;
+		}
+		IdleConnector candidate = connectors.pollLast();
+		if (connectors.isEmpty()) {
+			idle.remove(serverAddr);
+		}
+		return candidate;
+	}
+
+	/**
+	 * Comprueba una conexión libre antes de reutilizarla: descarta lo que quede de
+	 * la descarga anterior hasta su PONG y, si lleva tiempo sin usarse, espera el
+	 * PONG de otro PING. Si los PONG no llegan en checkTimeoutMs se corta. Las
+	 * que han caducado no se comprueban.
+	 *
+	 * @return Verdadero si la conexión se puede usar
+	 */
+	private boolean check(IdleConnector candidate) {
+		long idleNanos = System.nanoTime() - candidate.idleSince;
+		if (idleNanos > idleTimeoutNanos) {
+			return false;
+		}
+		NFConnector connector = candidate.connector;
+		if (idleNanos > checkAfterNanos) {
+			if (!connector.sendMessage(new PeerMessage(PeerMessageOps.OPCODE_PING))) {
+				return false;
+			}
+			candidate.pendingPongs++;
+		}
+		ScheduledFuture<?> deadline;
+		try {
+			deadline = timer.schedule(connector::abort, checkTimeoutMs, TimeUnit.MILLISECONDS);
+		} catch (RuntimeException e) {
+			return false;	// Pool cerrado
+		}
+		try {
+			PeerMessage message = new PeerMessage();
+			while (candidate.pendingPongs > 0) {
+				if (!connector.receiveMessage(message)) {
+					return false;
+				}
+				switch (message.getOpcode()) {
+				case PeerMessageOps.OPCODE_PONG:
+					candidate.pendingPongs--;
+					break;
+				case PeerMessageOps.OPCODE_INVALID_CODE:
+				case PeerMessageOps.OPCODE_ERROR:
+					// El servidor no entiende PING o ha cerrado la sesión
+					return false;
+				default:
+					// Respuesta a una petición de la descarga anterior
+				}
+			}
+		} finally {
+			deadline.cancel(false);
+		}
+		// Sin PING nuevo, el PONG puede llevar tiempo recibido: se comprueba que el servidor no ha cerrado después
+		return connector.isOpen() && connector.probe();
+	}
+
+	/**
+	 * Cierra las conexiones libres que llevan más de idleTimeoutMs sin usarse
+	 */
+	private void evictExpired() {
+		List<NFConnector> expired = new ArrayList<>();
+		long now = System.nanoTime();
+		synchronized (this) {
+			Iterator<ArrayDeque<IdleConnector>> hosts = idle.values().iterator();
+			while (hosts.hasNext()) {
+				ArrayDeque<IdleConnector> connectors = hosts.next();
+				// Las más antiguas están al principio
+				while (!connectors.isEmpty() && now - connectors.peekFirst().idleSince > idleTimeoutNanos) {
+					expired.add(connectors.pollFirst().connector);
+				}
+				if (connectors.isEmpty()) {
+					hosts.remove();
+				}
+			}
+		}
+		for (NFConnector connector : expired) {
+			retire(connector);
+		}
+	}
+
+	/**
+	 * Avisa al servidor de que hemos terminado y cierra la conexión
+	 */
+	private static void retire(NFConnector connector) {
+		connector.sendMessage(PeerMessage.PeerMessageGetChunck(0, 0));
+		connector.close();
+	}
+}
@@ -1,10 +1,11 @@
 package es.um.redes.nanoFiles.tcp.message;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
 
 import es.um.redes.nanoFiles.application.NanoFiles;
+import es.um.redes.nanoFiles.util.MerkleTree;
 
 public class PeerMessage {
 
@@ -21,8 +22,56 @@ public class PeerMessage {
 	private double fileOffset;
 	private int chunckSize;
 	private byte[] chunckData;
+	/**
+	 * CRC32C de los datos de un SEND_CHUNK o SEND_TAGGED_CHUNK, calculado por el
+	 * servidor, para detectar un chunk corrupto en cuanto se recibe
+	 */
+	private int chunkChecksum;
+	private CRC32C crc;
 	private double fileSize;
+	/*
+	 * Identificador de la petición (GET_TAGGED_CHUNK, GET_RANGE, CANCEL y sus
+	 * respuestas) o del stream (OPEN_STREAM, GET_STREAM_RANGE y demás mensajes de
+	 * streams)
+	 */
+	private int requestId;
+	private long rangeLength;
+	/**
+	 * Motivo por el que se rechaza un OPEN_STREAM: NOT_FOUND, AMBIGUOUS_NAME o
+	 * ERROR (en STREAM_REJECT)
+	 */
+	private byte rejectReason;
+	/*
+	 * Árbol de Merkle de piezas del fichero: tamaño de pieza y raíz (en
+	 * DOWNLOAD_APROVE, tamaño 0 si el servidor no lo ofrece) y tramo de hashes de
+	 * piezas (en GET_PIECE_HASHES y PIECE_HASHES)
+	 */
+	private int pieceSize;
+	private byte[] merkleRoot;
+	private int firstPiece;
+	private int pieceCount;
+	private byte[] pieceHashes;
+	/**
+	 * Datos de un chunk recibido sin copiarlos (vista sobre el buffer de
+	 * recepción). chunkView y chunkViewSource permiten reutilizar la vista mientras
+	 * no cambie el buffer.
+	 */
+	private ByteBuffer chunkBuffer;
+	private ByteBuffer chunkView;
+	private ByteBuffer chunkViewSource;
 
+	/**
+	 * Longitud máxima admitida para la subcadena de un DOWNLOAD_FILE recibido a
+	 * través de un ByteBuffer (evita que un peer nos haga reservar memoria sin
+	 * límite)
+	 */
+	public static final int MAX_SUBSTRING_LENGTH = 4096;
+
+	/**
+	 * Número máximo de hashes de piezas en un mensaje PIECE_HASHES, para que el
+	 * mensaje quepa en el buffer de recepción
+	 */
+	public static final int MAX_PIECE_HASHES = 2048;
 
 
 
@@ -45,6 +94,31 @@ public class PeerMessage {
 		//System.out.println("Creating download aprove message with hash: " + hashCode);
 		msg.setFileSize(fileSize);
 		msg.setHashCode(hashCode);
+		msg.setPieceSize(0);
+		msg.setMerkleRoot(new byte[MerkleTree.HASH_LENGTH]);
+		return msg;
+	}
+
+	public static PeerMessage PeerMessageDownloadAprove(String hashCode, double fileSize, int pieceSize,
+			byte[] merkleRoot) {
+		PeerMessage msg = PeerMessageDownloadAprove(hashCode, fileSize);
+		msg.setPieceSize(pieceSize);
+		msg.setMerkleRoot(merkleRoot);
+		return msg;
+	}
+
+	public static PeerMessage PeerMessageGetPieceHashes(int _firstPiece, int _pieceCount) {
+		PeerMessage msg = new PeerMessage(PeerMessageOps.OPCODE_GET_PIECE_HASHES);
+		msg.setFirstPiece(_firstPiece);
+		msg.setPieceCount(_pieceCount);
+		return msg;
+	}
+
+	public static PeerMessage PeerMessagePieceHashes(int _firstPiece, byte[] _pieceHashes) {
+		PeerMessage msg = new PeerMessage(PeerMessageOps.OPCODE_PIECE_HASHES);
+		msg.setFirstPiece(_firstPiece);
+		msg.setPieceCount(_pieceHashes.length / MerkleTree.HASH_LENGTH);
+		msg.setPieceHashes(_pieceHashes);
 		return msg;
 	}
 
@@ -59,22 +133,124 @@ public class PeerMessage {
 		return PeerMessageGetChunck(_fileOffset,NanoFiles.DEFAULT_CHUNK_SIZE);
 	}
 
-	// Constructor donde solo se pasa la data, su longuitud se calcula
-	public static PeerMessage PeerMessageSendChunk(byte[] _chunckData) {
-		PeerMessage msg = new PeerMessage(PeerMessageOps.OPCODE_SEND_CHUNK);
-		msg.setChunckSize(_chunckData.length);
-		msg.setChunckData(_chunckData);
+	public static PeerMessage PeerMessageGetTaggedChunk(int _requestId, double _fileOffset, int _chunckSize) {
+		PeerMessage msg = new PeerMessage(PeerMessageOps.OPCODE_GET_TAGGED_CHUNK);
+		msg.setRequestId(_requestId);
+		msg.setFileOffset(_fileOffset);
+		msg.setChunckSize(_chunckSize);
+		return msg;
+	}
+
+	public static PeerMessage PeerMessageGetRange(int _requestId, double _fileOffset, long _rangeLength) {
+		PeerMessage msg = new PeerMessage(PeerMessageOps.OPCODE_GET_RANGE);
+		msg.setRequestId(_requestId);
+		msg.setFileOffset(_fileOffset);
+		msg.setRangeLength(_rangeLength);
+		return msg;
+	}
+
+	public static PeerMessage PeerMessageCancel(int _requestId) {
+		PeerMessage msg = new PeerMessage(PeerMessageOps.OPCODE_CANCEL);
+		msg.setRequestId(_requestId);
+		return msg;
+	}
+
+	public static PeerMessage PeerMessageOpenStream(int _streamId, String substring) {
+		PeerMessage msg = new PeerMessage(PeerMessageOps.OPCODE_OPEN_STREAM);
+		msg.setRequestId(_streamId);
+		msg.setSubstring(substring);
+		return msg;
+	}
+
+	public static PeerMessage PeerMessageStreamAprove(int _streamId, String hashCode, double fileSize) {
+		PeerMessage msg = new PeerMessage(PeerMessageOps.OPCODE_STREAM_APROVE);
+		msg.setRequestId(_streamId);
+		msg.setFileSize(fileSize);
+		msg.setHashCode(hashCode);
+		return msg;
+	}
+
+	public static PeerMessage PeerMessageStreamReject(int _streamId, byte _rejectReason) {
+		PeerMessage msg = new PeerMessage(PeerMessageOps.OPCODE_STREAM_REJECT);
+		msg.setRequestId(_streamId);
+		msg.setRejectReason(_rejectReason);
+		return msg;
+	}
+
+	public static PeerMessage PeerMessageGetStreamRange(int _streamId, double _fileOffset, long _rangeLength) {
+		PeerMessage msg = new PeerMessage(PeerMessageOps.OPCODE_GET_STREAM_RANGE);
+		msg.setRequestId(_streamId);
+		msg.setFileOffset(_fileOffset);
+		msg.setRangeLength(_rangeLength);
 		return msg;
 	}
 
-	// Constructor donde se pasa la longuitud de la data y la data
-	public static PeerMessage PeerMessageSendChunk(int _chunkSize,byte[] _chunckData) {
-		PeerMessage msg = new PeerMessage(PeerMessageOps.OPCODE_SEND_CHUNK);
-		msg.setChunckSize(_chunkSize);
-		msg.setChunckData(_chunckData);
+	public static PeerMessage PeerMessageCloseStream(int _streamId) {
+		PeerMessage msg = new PeerMessage(PeerMessageOps.OPCODE_CLOSE_STREAM);
+		msg.setRequestId(_streamId);
 		return msg;
 	}
 
+	/**
+	 * Codifica sólo la cabecera (opcode, longitud y CRC32C) de un mensaje
+	 * SEND_CHUNK, para que los datos puedan enviarse a continuación sin copiarlos.
+	 * 
+	 * @param header     Buffer (reutilizable) donde se codifica la cabecera, que
+	 *                   se vacía antes
+	 * @param _chunkSize Número de bytes de datos que seguirán a la cabecera
+	 * @param _checksum  CRC32C de los datos
+	 * @return El buffer con la cabecera, en modo lectura
+	 */
+	public static ByteBuffer sendChunkHeader(ByteBuffer header, int _chunkSize, int _checksum) {
+		header.clear();
+		header.put(PeerMessageOps.OPCODE_SEND_CHUNK);
+		header.putInt(_chunkSize);
+		header.putInt(_checksum);
+		header.flip();
+		return header;
+	}
+
+	/**
+	 * Igual que sendChunkHeader, para la respuesta a un GET_TAGGED_CHUNK
+	 * 
+	 * @param header     Buffer (reutilizable) donde se codifica la cabecera, que
+	 *                   se vacía antes
+	 * @param _requestId Identificador de la petición a la que se responde
+	 * @param _chunkSize Número de bytes de datos que seguirán a la cabecera
+	 * @param _checksum  CRC32C de los datos
+	 * @return El buffer con la cabecera, en modo lectura
+	 */
+	public static ByteBuffer sendTaggedChunkHeader(ByteBuffer header, int _requestId, int _chunkSize,
+			int _checksum) {
+		header.clear();
+		header.put(PeerMessageOps.OPCODE_SEND_TAGGED_CHUNK);
+		header.putInt(_requestId);
+		header.putInt(_chunkSize);
+		header.putInt(_checksum);
+		header.flip();
+		return header;
+	}
+
+	/**
+	 * Tamaño máximo de la cabecera de un SEND_CHUNK o SEND_TAGGED_CHUNK
+	 */
+	public static final int MAX_CHUNK_HEADER_LENGTH = 1 + 3 * Integer.BYTES;
+
+	/**
+	 * Calcula el CRC32C de los bytes restantes de data, sin modificar su posición
+	 * 
+	 * @param crc  Objeto CRC32C (reutilizable) con el que se calcula
+	 * @param data Los datos del chunk
+	 * @return El CRC32C de los datos
+	 */
+	public static int computeChunkChecksum(CRC32C crc, ByteBuffer data) {
+		crc.reset();
+		int position = data.position();
+		crc.update(data);
+		data.position(position);
+		return (int) crc.getValue();
+	}
+
 	/*
 	 * (Boletín MensajesBinarios) Crear métodos getter y setter para obtener
 	 * los valores de los atributos de un mensaje. Se aconseja incluir código que
@@ -132,141 +308,543 @@ public class PeerMessage {
 
 	public void setChunckData(byte[] chunckData) {
 		this.chunckData = chunckData;
+		this.chunkBuffer = null;
 	}	
 
 	public byte[] getChunckData() {
+		if (chunckData == null && chunkBuffer != null) {
+			chunckData = new byte[chunkBuffer.remaining()];
+			chunkBuffer.duplicate().get(chunckData);
+			chunkBuffer = null;
+		}
 		return chunckData;
 	}
 
+	/**
+	 * Devuelve los datos del chunk como ByteBuffer en modo lectura, sin copiarlos.
+	 * Si el mensaje se ha leído con readFromByteBuffer es una vista sobre el
+	 * buffer de recepción, válida sólo hasta que se reciba el siguiente mensaje.
+	 * 
+	 * @return Los datos del chunk, o null si el mensaje no tiene datos
+	 */
+	public ByteBuffer getChunkBuffer() {
+		if (chunkBuffer != null) {
+			return chunkBuffer;
+		}
+		return (chunckData != null) ? ByteBuffer.wrap(chunckData, 0, chunckSize) : null;
+	}
+
+	public void setChunkChecksum(int chunkChecksum) {
+		this.chunkChecksum = chunkChecksum;
+	}
+
+	public int getChunkChecksum() {
+		return chunkChecksum;
+	}
+
+	/**
+	 * Comprueba que los datos del chunk coinciden con el CRC32C enviado por el
+	 * servidor
+	 * 
+	 * @return Verdadero si el chunk ha llegado intacto
+	 */
+	public boolean isChunkIntact() {
+		ByteBuffer data = getChunkBuffer();
+		if (data == null) {
+			return false;
+		}
+		if (crc == null) {
+			crc = new CRC32C();
+		}
+		return computeChunkChecksum(crc, data) == chunkChecksum;
+	}
+
+	public void setRequestId(int requestId) {
+		this.requestId = requestId;
+	}
+
+	public int getRequestId() {
+		return requestId;
+	}
+
+	public void setRejectReason(byte rejectReason) {
+		this.rejectReason = rejectReason;
+	}
+
+	public byte getRejectReason() {
+		return rejectReason;
+	}
+
+	public void setRangeLength(long rangeLength) {
+		this.rangeLength = rangeLength;
+	}
+
+	public long getRangeLength() {
+		return rangeLength;
+	}
+
+	public void setPieceSize(int pieceSize) {
+		this.pieceSize = pieceSize;
+	}
+
+	public int getPieceSize() {
+		return pieceSize;
+	}
+
+	public void setMerkleRoot(byte[] merkleRoot) {
+		this.merkleRoot = merkleRoot;
+	}
+
+	public byte[] getMerkleRoot() {
+		return merkleRoot;
+	}
+
+	public void setFirstPiece(int firstPiece) {
+		this.firstPiece = firstPiece;
+	}
+
+	public int getFirstPiece() {
+		return firstPiece;
+	}
+
+	public void setPieceCount(int pieceCount) {
+		this.pieceCount = pieceCount;
+	}
+
+	public int getPieceCount() {
+		return pieceCount;
+	}
+
+	public void setPieceHashes(byte[] pieceHashes) {
+		this.pieceHashes = pieceHashes;
+	}
+
+	public byte[] getPieceHashes() {
+		return pieceHashes;
+	}
+
 
 
 
 
 	/**
-	 * Método de clase para parsear los campos de un mensaje y construir el objeto
-	 * DirMessage que contiene los datos del mensaje recibido
+	 * Método de clase para parsear un mensaje desde un ByteBuffer (en modo
+	 * lectura), usado por el servidor no bloqueante. Si el buffer todavía no
+	 * contiene el mensaje completo se devuelve null y la posición del buffer se
+	 * deja intacta, para volver a intentarlo cuando lleguen más bytes del socket.
 	 * 
-	 * @param data El array de bytes recibido
-	 * @return Un objeto de esta clase cuyos atributos contienen los datos del
-	 *         mensaje recibido.
-	 * @throws IOException
+	 * @param buf El buffer con los bytes recibidos
+	 * @return El mensaje parseado, o null si el mensaje está incompleto
+	 * @throws ProtocolException Si los bytes no son un mensaje válido
 	 */
-	public static PeerMessage readMessageFromInputStream(DataInputStream dis) throws IOException {
-		/*
-		 * (Boletín MensajesBinarios) En función del tipo de mensaje, leer del
-		 * socket a través del "dis" el resto de campos para ir extrayendo con los
-		 * valores y establecer los atributos del un objeto DirMessage que contendrá
-		 * toda la información del mensaje, y que será devuelto como resultado. NOTA:
-		 * Usar dis.readFully para leer un array de bytes, dis.readInt para leer un
-		 * entero, etc.
-		 */
+	public static PeerMessage readMessageFromByteBuffer(ByteBuffer buf) throws ProtocolException {
 		PeerMessage message = new PeerMessage();
-		byte opcode = dis.readByte();
-		switch (opcode) {
-		case PeerMessageOps.OPCODE_NOT_FOUND: {
-			message = new PeerMessage(PeerMessageOps.OPCODE_NOT_FOUND);
-			break;	
-		}
-		case PeerMessageOps.OPCODE_AMBIGUOUS_NAME: {
-			message = new PeerMessage(PeerMessageOps.OPCODE_AMBIGUOUS_NAME);
-			break;
+		if (!message.readFromByteBuffer(buf)) {
+			return null;
 		}
-		case PeerMessageOps.OPCODE_ERROR: {
-			message = new PeerMessage(PeerMessageOps.OPCODE_ERROR);
-			break;
+		// Se copian los datos para que el mensaje no dependa del buffer
+		message.getChunckData();
+		return message;
+	}
+
+	/**
+	 * Parsea un mensaje desde un ByteBuffer (en modo lectura) reutilizando este
+	 * objeto, sin reservar memoria por mensaje: los datos de un SEND_CHUNK o
+	 * SEND_TAGGED_CHUNK no se copian, getChunkBuffer devuelve una vista sobre el
+	 * propio buffer, válida sólo hasta que se vuelva a escribir en él.
+	 * 
+	 * @param buf El buffer con los bytes recibidos
+	 * @return Verdadero si se ha leído un mensaje completo. Si está incompleto la
+	 *         posición del buffer se deja intacta y el mensaje no se modifica.
+	 * @throws ProtocolException Si los bytes no son un mensaje válido (opcode
+	 *                           desconocido o longitud fuera de rango): el flujo
+	 *                           no se puede resincronizar y hay que cerrar la
+	 *                           conexión
+	 */
+	public boolean readFromByteBuffer(ByteBuffer buf) throws ProtocolException {
+		int start = buf.position();
+		if (!buf.hasRemaining()) {
+			return false;
 		}
-		case PeerMessageOps.OPCODE_UPLOAD: {
-			message = new PeerMessage(PeerMessageOps.OPCODE_UPLOAD);
+		byte op = buf.get();
+		boolean complete = true;
+		switch (op) {
+		case PeerMessageOps.OPCODE_NOT_FOUND:
+		case PeerMessageOps.OPCODE_AMBIGUOUS_NAME:
+		case PeerMessageOps.OPCODE_ERROR:
+		case PeerMessageOps.OPCODE_UPLOAD:
+		case PeerMessageOps.OPCODE_CORRUPT_DOWNLOAD:
+		case PeerMessageOps.OPCODE_INVALID_CODE:
+		case PeerMessageOps.OPCODE_PING:
+		case PeerMessageOps.OPCODE_PONG:
 			break;
-		}
 		case PeerMessageOps.OPCODE_DOWNLOAD_FILE: {
-			int length = dis.readInt();
-			String substringName = new String(dis.readNBytes(length));
-			message = PeerMessageDownloadFile(substringName);
+			if (buf.remaining() < Integer.BYTES) {
+				complete = false;
+				break;
+			}
+			int length = buf.getInt();
+			if (length < 0 || length > MAX_SUBSTRING_LENGTH) {
+				throw new ProtocolException("Invalid substring length " + length);
+			}
+			if (buf.remaining() < length) {
+				complete = false;
+				break;
+			}
+			byte[] substringBytes = new byte[length];
+			buf.get(substringBytes);
+			setSubstring(new String(substringBytes));
 			break;
 		}
 		case PeerMessageOps.OPCODE_DOWNLOAD_APROVE: {
-			double fileSize;
+			if (buf.remaining() < Double.BYTES + 40 + Integer.BYTES + MerkleTree.HASH_LENGTH) {
+				complete = false;
+				break;
+			}
+			fileSize = buf.getDouble();
 			byte[] hashBytes = new byte[40];
-			fileSize = dis.readDouble();
-			dis.readFully(hashBytes);
-			String hash = new String(hashBytes).trim();
-			message = PeerMessageDownloadAprove(hash,fileSize);
+			buf.get(hashBytes);
+			hashCode = new String(hashBytes).trim();
+			pieceSize = buf.getInt();
+			merkleRoot = new byte[MerkleTree.HASH_LENGTH];
+			buf.get(merkleRoot);
 			break;
 		}
-		case PeerMessageOps.OPCODE_CORRUPT_DOWNLOAD: {
-			message = new PeerMessage(PeerMessageOps.OPCODE_CORRUPT_DOWNLOAD);
+		case PeerMessageOps.OPCODE_GET_PIECE_HASHES: {
+			if (buf.remaining() < 2 * Integer.BYTES) {
+				complete = false;
+				break;
+			}
+			firstPiece = buf.getInt();
+			pieceCount = buf.getInt();
 			break;
 		}
-		case PeerMessageOps.OPCODE_INVALID_CODE: {
-			message = new PeerMessage(PeerMessageOps.OPCODE_INVALID_CODE);
+		case PeerMessageOps.OPCODE_PIECE_HASHES: {
+			if (buf.remaining() < 2 * Integer.BYTES) {
+				complete = false;
+				break;
+			}
+			int first = buf.getInt();
+			int count = buf.getInt();
+			if (count < 0 || count > MAX_PIECE_HASHES) {
+				throw new ProtocolException("Invalid piece hash count " + count);
+			}
+			if (buf.remaining() < count * MerkleTree.HASH_LENGTH) {
+				complete = false;
+				break;
+			}
+			firstPiece = first;
+			pieceCount = count;
+			pieceHashes = new byte[count * MerkleTree.HASH_LENGTH];
+			buf.get(pieceHashes);
 			break;
 		}
 		case PeerMessageOps.OPCODE_GET_CHUNCK: {
-			double fileOffset = dis.readDouble();
-			int chunckSize = dis.readInt();
-			message = PeerMessageGetChunck(fileOffset,chunckSize);
+			if (buf.remaining() < Double.BYTES + Integer.BYTES) {
+				complete = false;
+				break;
+			}
+			fileOffset = buf.getDouble();
+			chunckSize = buf.getInt();
 			break;
 		}
 		case PeerMessageOps.OPCODE_SEND_CHUNK: {
-			int chunckSize = dis.readInt();
-			byte[] chunckData = new byte[chunckSize];
-			dis.readFully(chunckData);
-			message = PeerMessageSendChunk(chunckSize,chunckData);
+			if (buf.remaining() < 2 * Integer.BYTES) {
+				complete = false;
+				break;
+			}
+			int size = buf.getInt();
+			int checksum = buf.getInt();
+			if (size < 0) {
+				throw new ProtocolException("Invalid chunk size " + size);
+			}
+			if (buf.remaining() < size) {
+				complete = false;
+				break;
+			}
+			chunkChecksum = checksum;
+			viewChunkData(buf, size);
 			break;
 		}
-		default:
-			System.err.println("PeerMessage.readMessageFromInputStream doesn't know how to parse this message opcode: "
-					+ PeerMessageOps.opcodeToOperation(opcode));
-			System.exit(-1);
+		case PeerMessageOps.OPCODE_GET_TAGGED_CHUNK: {
+			if (buf.remaining() < Integer.BYTES + Double.BYTES + Integer.BYTES) {
+				complete = false;
+				break;
+			}
+			requestId = buf.getInt();
+			fileOffset = buf.getDouble();
+			chunckSize = buf.getInt();
+			break;
 		}
-		return message;
-	}
-
-	public void writeMessageToOutputStream(DataOutputStream dos) throws IOException {
-		/*
-		 * (Boletín MensajesBinarios): Escribir los bytes en los que se codifica el
-		 * mensaje en el socket a través del "dos", teniendo en cuenta opcode del
-		 * mensaje del que se trata y los campos relevantes en cada caso. NOTA: Usar
-		 * dos.write para leer un array de bytes, dos.writeInt para escribir un entero,
-		 * etc.
-		 */
-		dos.writeByte(opcode);
-		switch (opcode) {
-		case PeerMessageOps.OPCODE_INVALID_CODE: 
-		case PeerMessageOps.OPCODE_NOT_FOUND:
-		case PeerMessageOps.OPCODE_AMBIGUOUS_NAME:
-		case PeerMessageOps.OPCODE_ERROR:
-		case PeerMessageOps.OPCODE_CORRUPT_DOWNLOAD:
+		case PeerMessageOps.OPCODE_SEND_TAGGED_CHUNK: {
+			if (buf.remaining() < 3 * Integer.BYTES) {
+				complete = false;
+				break;
+			}
+			int id = buf.getInt();
+			int size = buf.getInt();
+			int checksum = buf.getInt();
+			if (size < 0) {
+				throw new ProtocolException("Invalid chunk size " + size);
+			}
+			if (buf.remaining() < size) {
+				complete = false;
+				break;
+			}
+			requestId = id;
+			chunkChecksum = checksum;
+			viewChunkData(buf, size);
 			break;
-		case PeerMessageOps.OPCODE_DOWNLOAD_FILE: {
-			dos.writeInt(substringLength);
-			dos.write(substring.getBytes());
+		}
+		case PeerMessageOps.OPCODE_GET_RANGE: {
+			if (buf.remaining() < Integer.BYTES + Double.BYTES + Long.BYTES) {
+				complete = false;
+				break;
+			}
+			requestId = buf.getInt();
+			fileOffset = buf.getDouble();
+			rangeLength = buf.getLong();
 			break;
 		}
-		case PeerMessageOps.OPCODE_DOWNLOAD_APROVE: {
-			dos.writeDouble(fileSize);
-			dos.write(hashCode.getBytes());
+		case PeerMessageOps.OPCODE_CANCEL:
+		case PeerMessageOps.OPCODE_CLOSE_STREAM: {
+			if (buf.remaining() < Integer.BYTES) {
+				complete = false;
+				break;
+			}
+			requestId = buf.getInt();
 			break;
 		}
-		case PeerMessageOps.OPCODE_GET_CHUNCK: {
-			dos.writeDouble(fileOffset);
-			dos.writeInt(chunckSize);
+		case PeerMessageOps.OPCODE_OPEN_STREAM: {
+			if (buf.remaining() < 2 * Integer.BYTES) {
+				complete = false;
+				break;
+			}
+			int id = buf.getInt();
+			int length = buf.getInt();
+			if (length < 0 || length > MAX_SUBSTRING_LENGTH) {
+				throw new ProtocolException("Invalid substring length " + length);
+			}
+			if (buf.remaining() < length) {
+				complete = false;
+				break;
+			}
+			byte[] substringBytes = new byte[length];
+			buf.get(substringBytes);
+			requestId = id;
+			setSubstring(new String(substringBytes));
 			break;
 		}
-		case PeerMessageOps.OPCODE_SEND_CHUNK: {
-			dos.writeInt(chunckSize);
-			dos.write(chunckData);
+		case PeerMessageOps.OPCODE_STREAM_APROVE: {
+			if (buf.remaining() < Integer.BYTES + Double.BYTES + 40) {
+				complete = false;
+				break;
+			}
+			requestId = buf.getInt();
+			fileSize = buf.getDouble();
+			byte[] hashBytes = new byte[40];
+			buf.get(hashBytes);
+			hashCode = new String(hashBytes).trim();
+			break;
+		}
+		case PeerMessageOps.OPCODE_STREAM_REJECT: {
+			if (buf.remaining() < Integer.BYTES + 1) {
+				complete = false;
+				break;
+			}
+			requestId = buf.getInt();
+			rejectReason = buf.get();
+			break;
+		}
+		case PeerMessageOps.OPCODE_GET_STREAM_RANGE: {
+			if (buf.remaining() < Integer.BYTES + Double.BYTES + Long.BYTES) {
+				complete = false;
+				break;
+			}
+			requestId = buf.getInt();
+			fileOffset = buf.getDouble();
+			rangeLength = buf.getLong();
 			break;
 		}
-
 		default:
-			System.err.println("PeerMessage.writeMessageToOutputStream found unexpected message opcode " + opcode + "("
-					+ PeerMessageOps.opcodeToOperation(opcode) + ")");
+			// No es posible resincronizar el flujo tras un opcode desconocido
+			throw new ProtocolException("Unknown opcode " + op);
+		}
+		if (!complete) {
+			buf.position(start);
+			return false;
+		}
+		if (op != PeerMessageOps.OPCODE_SEND_CHUNK && op != PeerMessageOps.OPCODE_SEND_TAGGED_CHUNK) {
+			chunkBuffer = null;
+			chunckData = null;
+		}
+		opcode = op;
+		return true;
+	}
+
+	/**
+	 * Apunta chunkBuffer a los siguientes size bytes de buf y avanza buf tras
+	 * ellos. La vista se crea una sola vez por cada buffer de recepción.
+	 */
+	private void viewChunkData(ByteBuffer buf, int size) {
+		if (chunkViewSource != buf) {
+			chunkView = buf.duplicate();
+			chunkViewSource = buf;
 		}
+		int dataStart = buf.position();
+		chunkView.limit(dataStart + size).position(dataStart);
+		buf.position(dataStart + size);
+		chunckSize = size;
+		chunckData = null;
+		chunkBuffer = chunkView;
 	}
 
+	private boolean hasSubstring() {
+		return opcode == PeerMessageOps.OPCODE_DOWNLOAD_FILE || opcode == PeerMessageOps.OPCODE_OPEN_STREAM;
+	}
 
+	/**
+	 * Número de bytes que ocupa la codificación de este mensaje, sin contar los
+	 * datos de un chunk
+	 */
+	private int headerLength(byte[] substringBytes) {
+		switch (opcode) {
+		case PeerMessageOps.OPCODE_DOWNLOAD_FILE:
+			return 1 + Integer.BYTES + substringBytes.length;
+		case PeerMessageOps.OPCODE_DOWNLOAD_APROVE:
+			return 1 + Double.BYTES + hashCode.getBytes().length + Integer.BYTES + MerkleTree.HASH_LENGTH;
+		case PeerMessageOps.OPCODE_GET_PIECE_HASHES:
+			return 1 + 2 * Integer.BYTES;
+		case PeerMessageOps.OPCODE_PIECE_HASHES:
+			return 1 + 2 * Integer.BYTES + pieceHashes.length;
+		case PeerMessageOps.OPCODE_GET_CHUNCK:
+			return 1 + Double.BYTES + Integer.BYTES;
+		case PeerMessageOps.OPCODE_SEND_CHUNK:
+			return 1 + 2 * Integer.BYTES;
+		case PeerMessageOps.OPCODE_GET_TAGGED_CHUNK:
+			return 1 + Integer.BYTES + Double.BYTES + Integer.BYTES;
+		case PeerMessageOps.OPCODE_SEND_TAGGED_CHUNK:
+			return 1 + 3 * Integer.BYTES;
+		case PeerMessageOps.OPCODE_GET_RANGE:
+			return 1 + Integer.BYTES + Double.BYTES + Long.BYTES;
+		case PeerMessageOps.OPCODE_CANCEL:
+		case PeerMessageOps.OPCODE_CLOSE_STREAM:
+			return 1 + Integer.BYTES;
+		case PeerMessageOps.OPCODE_OPEN_STREAM:
+			return 1 + 2 * Integer.BYTES + substringBytes.length;
+		case PeerMessageOps.OPCODE_STREAM_APROVE:
+			return 1 + Integer.BYTES + Double.BYTES + hashCode.getBytes().length;
+		case PeerMessageOps.OPCODE_STREAM_REJECT:
+			return 1 + Integer.BYTES + 1;
+		case PeerMessageOps.OPCODE_GET_STREAM_RANGE:
+			return 1 + Integer.BYTES + Double.BYTES + Long.BYTES;
+		default:
+			return 1;
+		}
+	}
 
+	/**
+	 * Codifica este mensaje, salvo los datos de un chunk, al final de buf (en modo
+	 * escritura). Los datos, que se obtienen con getChunkBuffer, pueden enviarse
+	 * después de la cabecera en la misma escritura (gathering write) sin copiarlos.
+	 * 
+	 * @param buf El buffer donde se codifica el mensaje
+	 * @return Falso si el mensaje no cabe en el espacio libre de buf, que en ese
+	 *         caso no se modifica
+	 */
+	public boolean writeHeaderToByteBuffer(ByteBuffer buf) {
+		byte[] substringBytes = hasSubstring() ? substring.getBytes() : null;
+		if (buf.remaining() < headerLength(substringBytes)) {
+			return false;
+		}
+		buf.put(opcode);
+		switch (opcode) {
+		case PeerMessageOps.OPCODE_DOWNLOAD_FILE:
+			buf.putInt(substringBytes.length);
+			buf.put(substringBytes);
+			break;
+		case PeerMessageOps.OPCODE_DOWNLOAD_APROVE:
+			buf.putDouble(fileSize);
+			buf.put(hashCode.getBytes());
+			buf.putInt(pieceSize);
+			buf.put(merkleRoot);
+			break;
+		case PeerMessageOps.OPCODE_GET_PIECE_HASHES:
+			buf.putInt(firstPiece);
+			buf.putInt(pieceCount);
+			break;
+		case PeerMessageOps.OPCODE_PIECE_HASHES:
+			buf.putInt(firstPiece);
+			buf.putInt(pieceCount);
+			buf.put(pieceHashes);
+			break;
+		case PeerMessageOps.OPCODE_GET_CHUNCK:
+			buf.putDouble(fileOffset);
+			buf.putInt(chunckSize);
+			break;
+		case PeerMessageOps.OPCODE_SEND_CHUNK:
+			buf.putInt(chunckSize);
+			buf.putInt(chunkChecksum);
+			break;
+		case PeerMessageOps.OPCODE_GET_TAGGED_CHUNK:
+			buf.putInt(requestId);
+			buf.putDouble(fileOffset);
+			buf.putInt(chunckSize);
+			break;
+		case PeerMessageOps.OPCODE_SEND_TAGGED_CHUNK:
+			buf.putInt(requestId);
+			buf.putInt(chunckSize);
+			buf.putInt(chunkChecksum);
+			break;
+		case PeerMessageOps.OPCODE_GET_RANGE:
+			buf.putInt(requestId);
+			buf.putDouble(fileOffset);
+			buf.putLong(rangeLength);
+			break;
+		case PeerMessageOps.OPCODE_CANCEL:
+		case PeerMessageOps.OPCODE_CLOSE_STREAM:
+			buf.putInt(requestId);
+			break;
+		case PeerMessageOps.OPCODE_OPEN_STREAM:
+			buf.putInt(requestId);
+			buf.putInt(substringBytes.length);
+			buf.put(substringBytes);
+			break;
+		case PeerMessageOps.OPCODE_STREAM_APROVE:
+			buf.putInt(requestId);
+			buf.putDouble(fileSize);
+			buf.put(hashCode.getBytes());
+			break;
+		case PeerMessageOps.OPCODE_STREAM_REJECT:
+			buf.putInt(requestId);
+			buf.put(rejectReason);
+			break;
+		case PeerMessageOps.OPCODE_GET_STREAM_RANGE:
+			buf.putInt(requestId);
+			buf.putDouble(fileOffset);
+			buf.putLong(rangeLength);
+			break;
+		default:
+		}
+		return true;
+	}
 
+	/**
+	 * Codifica este mensaje en un ByteBuffer nuevo, listo para ser escrito en un
+	 * SocketChannel (en modo lectura).
+	 * 
+	 * @return El buffer con los bytes del mensaje
+	 */
+	public ByteBuffer toByteBuffer() {
+		byte[] substringBytes = hasSubstring() ? substring.getBytes() : null;
+		ByteBuffer data = getChunkBuffer();
+		int dataLength = (data != null) ? data.remaining() : 0;
+		ByteBuffer buf = ByteBuffer.allocate(headerLength(substringBytes) + dataLength);
+		writeHeaderToByteBuffer(buf);
+		if (data != null) {
+			buf.put(data.duplicate());
+		}
+		buf.flip();
+		return buf;
+	}
 }
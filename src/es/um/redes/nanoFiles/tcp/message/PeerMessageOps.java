@@ -18,11 +18,44 @@ public class PeerMessageOps {
 	public static final byte OPCODE_DOWNLOAD_APROVE = 4;
 	public static final byte OPCODE_GET_CHUNCK = 5;
 	public static final byte OPCODE_SEND_CHUNK = 6;
+	// Versiones de GET_CHUNCK/SEND_CHUNK con identificador de petición, para
+	// poder tener varias peticiones en vuelo por conexión (pipelining)
+	public static final byte OPCODE_GET_TAGGED_CHUNK = 7;
+	public static final byte OPCODE_SEND_TAGGED_CHUNK = 8;
 	public static final byte OPCODE_CORRUPT_DOWNLOAD = 9;
 	public static final byte OPCODE_UPLOAD = 10;
 	public static final byte OPCODE_UPLOAD_APROVE = 11;
 	public static final byte OPCODE_UPLOAD_DENY = 12;
 	public static final byte OPCODE_ERROR = 13;
+	// Petición de un rango de bytes, que el servidor responde con una serie de
+	// SEND_TAGGED_CHUNK consecutivos con el identificador de la petición
+	public static final byte OPCODE_GET_RANGE = 14;
+	// Petición de los hashes de un tramo de piezas del árbol de Merkle anunciado en
+	// DOWNLOAD_APROVE, y su respuesta
+	public static final byte OPCODE_GET_PIECE_HASHES = 15;
+	public static final byte OPCODE_PIECE_HASHES = 16;
+	// Anula una petición GET_RANGE (encolada o en curso). El servidor responde con
+	// otro CANCEL con el mismo identificador, tras el cual no envía más chunks suyos
+	public static final byte OPCODE_CANCEL = 17;
+	// Streams: varios ficheros abiertos a la vez en una misma conexión, cada uno
+	// con un identificador elegido por el cliente. OPEN_STREAM abre un fichero
+	// (como DOWNLOAD_FILE) y se responde con STREAM_APROVE o STREAM_REJECT.
+	// GET_STREAM_RANGE pide un rango del fichero de un stream, que se envía en
+	// SEND_TAGGED_CHUNK con el identificador del stream; los chunks de los
+	// distintos streams se envían por turnos. CLOSE_STREAM lo cierra, y el
+	// servidor responde con otro CLOSE_STREAM tras el que no envía más chunks suyos
+	public static final byte OPCODE_OPEN_STREAM = 18;
+	public static final byte OPCODE_STREAM_APROVE = 19;
+	public static final byte OPCODE_STREAM_REJECT = 20;
+	public static final byte OPCODE_GET_STREAM_RANGE = 21;
+	public static final byte OPCODE_CLOSE_STREAM = 22;
+	// Conexiones reutilizadas (NFConnectorPool): PING deja la sesión como recién
+	// abierta (cierra el fichero de DOWNLOAD_FILE y los streams, descartando sus
+	// rangos pendientes) y el servidor responde con PONG, tras el que no envía nada
+	// de las peticiones anteriores. También sirve para comprobar que el servidor
+	// sigue respondiendo antes de reutilizar una conexión
+	public static final byte OPCODE_PING = 23;
+	public static final byte OPCODE_PONG = 24;
 
 
 
@@ -38,11 +71,24 @@ public class PeerMessageOps {
 			OPCODE_DOWNLOAD_APROVE,
 			OPCODE_GET_CHUNCK,
 			OPCODE_SEND_CHUNK,
+			OPCODE_GET_TAGGED_CHUNK,
+			OPCODE_SEND_TAGGED_CHUNK,
 			OPCODE_CORRUPT_DOWNLOAD,
 			OPCODE_UPLOAD,
 			OPCODE_UPLOAD_APROVE,
 			OPCODE_UPLOAD_DENY,
 			OPCODE_ERROR,
+			OPCODE_GET_RANGE,
+			OPCODE_GET_PIECE_HASHES,
+			OPCODE_PIECE_HASHES,
+			OPCODE_CANCEL,
+			OPCODE_OPEN_STREAM,
+			OPCODE_STREAM_APROVE,
+			OPCODE_STREAM_REJECT,
+			OPCODE_GET_STREAM_RANGE,
+			OPCODE_CLOSE_STREAM,
+			OPCODE_PING,
+			OPCODE_PONG,
 	};
 	private static final String[] _valid_operations_str = { "INVALID_OPCODE",
 			"NOT_FOUND",
@@ -51,11 +97,24 @@ public class PeerMessageOps {
 			"DOWNLOAD_APROVE",
 			"GET_CHUNCK",
 			"SEND_CHUNK",
+			"GET_TAGGED_CHUNK",
+			"SEND_TAGGED_CHUNK",
 			"CORRUPT_DOWNLOAD",
 			"UPLOAD",
 			"UPLOAD_APROVE",
 			"UPLOAD_DENY",
 			"ERROR",
+			"GET_RANGE",
+			"GET_PIECE_HASHES",
+			"PIECE_HASHES",
+			"CANCEL",
+			"OPEN_STREAM",
+			"STREAM_APROVE",
+			"STREAM_REJECT",
+			"GET_STREAM_RANGE",
+			"CLOSE_STREAM",
+			"PING",
+			"PONG",
 	};
 
 	private static Map<String, Byte> _operation_to_opcode;
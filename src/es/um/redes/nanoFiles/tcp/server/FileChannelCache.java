@@ -0,0 +1,194 @@
+package es.um.redes.nanoFiles.tcp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+
+/**
+ * Caché de ficheros abiertos compartida por todas las sesiones de un NFServer.
+ * Cada fichero servido se abre una sola vez y su FileChannel lo comparten todas
+ * las sesiones que lo están enviando, que leen siempre de forma posicional
+ * (transferTo/read con posición), por lo que varios hilos pueden usar el mismo
+ * canal a la vez.
+ *
+ * Los canales se cuentan por referencias: el número de ficheros abiertos está
+ * acotado por maxOpenFiles y, al superarlo, se expulsa el menos usado
+ * recientemente (LRU). Un canal expulsado, o cuyo fichero ha cambiado en disco,
+ * deja de entregarse a nuevas sesiones y se cierra cuando lo liberan las que lo
+ * estaban usando.
+ */
+class FileChannelCache {
+
+	public static final int DEFAULT_MAX_OPEN_FILES = 256;
+
+	/**
+	 * Tiempo mínimo entre dos comprobaciones de si un fichero ha cambiado en disco
+	 */
+	private static final long VALIDATE_INTERVAL_MS = 1000;
+
+	private final int maxOpenFiles;
+
+	/**
+	 * Entradas indexadas por ruta, en orden de acceso (la primera es la LRU)
+	 */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	FileChannelCache(int maxOpenFiles) {
+		this.maxOpenFiles = maxOpenFiles;
+	}
+
+	/**
+	 * Obtiene un canal abierto sobre el fichero indicado, abriéndolo sólo si no
+	 * está ya en la caché o si ha cambiado en disco desde que se abrió. El
+	 * llamante debe liberar el Handle devuelto cuando deje de usarlo.
+	 *
+	 * @param filePath Ruta del fichero
+	 * @return Referencia al canal abierto
+	 * @throws IOException Si el fichero no se puede abrir
+	 */
+	synchronized Handle acquire(String filePath) throws IOException {
+		Entry entry = entries.get(filePath);
+		long now = System.currentTimeMillis();
+		if (entry != null && now - entry.lastValidated >= VALIDATE_INTERVAL_MS) {
+			BasicFileAttributes attrs = readAttributes(entry.path);
+			if (attrs == null || !entry.matches(attrs)) {
+				// El fichero ha cambiado o ya no existe: no se vuelve a entregar este canal
+				entries.remove(filePath);
+				retire(entry);
+				entry = null;
+			} else {
+				entry.lastValidated = now;
+			}
+		}
+		if (entry == null) {
+			entry = open(filePath, now);
+			entries.put(filePath, entry);
+			evictExcess();
+		}
+		entry.refCount++;
+		return new Handle(entry);
+	}
+
+	private Entry open(String filePath, long now) throws IOException {
+		Path path = Paths.get(filePath);
+		BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		return new Entry(path, channel, attrs, now);
+	}
+
+	private void evictExcess() {
+		Iterator<Entry> it = entries.values().iterator();
+		while (entries.size() > maxOpenFiles && it.hasNext()) {
+			Entry eldest = it.next();
+			it.remove();
+			retire(eldest);
+		}
+	}
+
+	private synchronized void release(Entry entry) {
+		entry.refCount--;
+		if (entry.retired && entry.refCount == 0) {
+			entry.close();
+		}
+	}
+
+	private void retire(Entry entry) {
+		entry.retired = true;
+		if (entry.refCount == 0) {
+			entry.close();
+		}
+	}
+
+	/**
+	 * Vacía la caché. Los canales que todavía estén en uso se cierran cuando se
+	 * liberen.
+	 */
+	synchronized void closeAll() {
+		for (Entry entry : entries.values()) {
+			retire(entry);
+		}
+		entries.clear();
+	}
+
+	private static BasicFileAttributes readAttributes(Path path) {
+		try {
+			return Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static class Entry {
+		private final Path path;
+		private final FileChannel channel;
+		private final long lastModified;
+		private final long size;
+		private final Object fileKey;
+		private long lastValidated;
+		private int refCount = 0;
+		private boolean retired = false;
+
+		private Entry(Path path, FileChannel channel, BasicFileAttributes attrs, long now) {
+			this.path = path;
+			this.channel = channel;
+			this.lastModified = attrs.lastModifiedTime().toMillis();
+			this.size = attrs.size();
+			this.fileKey = attrs.fileKey();
+			this.lastValidated = now;
+		}
+
+		private boolean matches(BasicFileAttributes attrs) {
+			return attrs.lastModifiedTime().toMillis() == lastModified && attrs.size() == size
+					&& Objects.equals(attrs.fileKey(), fileKey);
+		}
+
+		private void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Referencia a un canal de la caché. Todas las lecturas son posicionales, así
+	 * que el mismo canal puede usarse desde varias sesiones a la vez.
+	 */
+	class Handle implements AutoCloseable {
+		private final Entry entry;
+		private boolean released = false;
+
+		private Handle(Entry entry) {
+			this.entry = entry;
+		}
+
+		long size() throws IOException {
+			return entry.channel.size();
+		}
+
+		int read(ByteBuffer dst, long position) throws IOException {
+			return entry.channel.read(dst, position);
+		}
+
+		long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			return entry.channel.transferTo(position, count, target);
+		}
+
+		@Override
+		public void close() {
+			if (!released) {
+				released = true;
+				release(entry);
+			}
+		}
+	}
+}
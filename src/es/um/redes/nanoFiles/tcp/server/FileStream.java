@@ -0,0 +1,135 @@
+package es.um.redes.nanoFiles.tcp.server;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import es.um.redes.nanoFiles.util.ChunkChecksums;
+
+/**
+ * Fichero abierto en una sesión de NFServerSession junto con los rangos de él
+ * que quedan por enviar. Una sesión tiene uno para el fichero pedido con
+ * DOWNLOAD_FILE y otro por cada stream abierto con OPEN_STREAM, y genera los
+ * chunks de todos por turnos, uno de cada fichero cada vez.
+ *
+ * Los rangos de un mismo fichero se envían en el orden en que se pidieron, cada
+ * uno en SEND_TAGGED_CHUNK con su identificador (el de la petición GET_RANGE o
+ * el del stream).
+ */
+class FileStream {
+
+	private final FileChannelCache.Handle handle;
+	/**
+	 * CRC32C de los chunks del fichero calculados al escanearlo, con los que sus
+	 * chunks se envían sin leerlos (null si no se conocen)
+	 */
+	private final ChunkChecksums chunkChecksums;
+	/**
+	 * Rangos pendientes: {identificador, siguiente posición a enviar, final}. El
+	 * primero es el que se está enviando
+	 */
+	private final ArrayDeque<long[]> ranges = new ArrayDeque<>();
+
+	FileStream(FileChannelCache.Handle handle, ChunkChecksums chunkChecksums) {
+		this.handle = handle;
+		this.chunkChecksums = chunkChecksums;
+	}
+
+	FileChannelCache.Handle getHandle() {
+		return handle;
+	}
+
+	/**
+	 * @return El CRC32C de la región dada si es exactamente uno de los chunks
+	 *         cuyo checksum se conoce, o -1 si hay que calcularlo
+	 */
+	long lookupChecksum(long offset, int length) {
+		return (chunkChecksums != null) ? chunkChecksums.lookup(offset, length) : -1;
+	}
+
+	long size() throws IOException {
+		return handle.size();
+	}
+
+	/**
+	 * Añade un rango a enviar después de los que ya hay. Los rangos vacíos se
+	 * ignoran.
+	 *
+	 * @return Verdadero si se ha añadido
+	 */
+	boolean addRange(int id, long start, long end) {
+		if (start >= end) {
+			return false;
+		}
+		ranges.add(new long[] { id, start, end });
+		return true;
+	}
+
+	boolean hasPendingRanges() {
+		return !ranges.isEmpty();
+	}
+
+	int getPendingRanges() {
+		return ranges.size();
+	}
+
+	/**
+	 * @return Identificador del rango que se está enviando
+	 */
+	int currentId() {
+		return (int) ranges.peek()[0];
+	}
+
+	/**
+	 * @return Posición del siguiente chunk del rango que se está enviando
+	 */
+	long currentOffset() {
+		return ranges.peek()[1];
+	}
+
+	/**
+	 * @return Bytes que quedan del rango que se está enviando
+	 */
+	long currentRemaining() {
+		long[] range = ranges.peek();
+		return range[2] - range[1];
+	}
+
+	/**
+	 * Anota que se han enviado length bytes del rango actual, que se descarta al
+	 * completarse
+	 *
+	 * @return Verdadero si el rango se ha completado
+	 */
+	boolean advance(int length) {
+		long[] range = ranges.peek();
+		range[1] += length;
+		if (range[1] >= range[2]) {
+			ranges.poll();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Descarta los rangos con el identificador dado, estén en curso o pendientes
+	 *
+	 * @return Número de rangos descartados
+	 */
+	int cancel(int id) {
+		int before = ranges.size();
+		ranges.removeIf(range -> range[0] == id);
+		return before - ranges.size();
+	}
+
+	/**
+	 * Descarta todos los rangos y libera el fichero
+	 *
+	 * @return Número de rangos descartados
+	 */
+	int close() {
+		int discarded = ranges.size();
+		ranges.clear();
+		handle.close();
+		return discarded;
+	}
+}
@@ -2,17 +2,12 @@ package es.um.redes.nanoFiles.tcp.server;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
-
-import es.um.redes.nanoFiles.application.NanoFiles;
-import es.um.redes.nanoFiles.tcp.message.PeerMessage;
-import es.um.redes.nanoFiles.tcp.message.PeerMessageOps;
-import es.um.redes.nanoFiles.util.FileDigest;
-import es.um.redes.nanoFiles.util.FileInfo;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 
 
@@ -21,10 +16,29 @@ public class NFServer implements Runnable {
 
 	public static final int PORT = 10000;
 
-	private boolean stopServer = false;
+	/**
+	 * Número fijo de hilos (bucles de eventos) entre los que se reparten todas las
+	 * conexiones de clientes
+	 */
+	public static final int EVENT_LOOP_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
 
+	/**
+	 * Tamaño de la cola de conexiones pendientes de aceptar
+	 */
+	private static final int ACCEPT_BACKLOG = 1024;
+
+	private volatile boolean stopServer = false;
+
+	private ServerSocketChannel serverChannel = null;
 	private ServerSocket serverSocket = null;
 
+	private NFServerEventLoop[] eventLoops = null;
+
+	/**
+	 * Ficheros abiertos, compartidos por todas las sesiones de este servidor
+	 */
+	private final FileChannelCache fileCache = new FileChannelCache(FileChannelCache.DEFAULT_MAX_OPEN_FILES);
+
 	public NFServer() throws IOException {
 		/*
 		 * (Boletín SocketsTCP) Crear una direción de socket a partir del puerto
@@ -38,8 +52,9 @@ public class NFServer implements Runnable {
 		 * (Boletín SocketsTCP) Crear un socket servidor y ligarlo a la dirección
 		 * de socket anterior
 		 */
-		serverSocket = new ServerSocket();
-		serverSocket.bind(socketAddress);
+		serverChannel = ServerSocketChannel.open();
+		serverSocket = serverChannel.socket();
+		serverSocket.bind(socketAddress, ACCEPT_BACKLOG);
 	}
 
 	/**
@@ -123,46 +138,58 @@ public class NFServer implements Runnable {
 					.println("[*] NFServer running on " + serverSocket.getLocalSocketAddress() + ".");
 		}
 
-		
+
+		// Arrancar los bucles de eventos que atenderán a los clientes
+		try {
+			eventLoops = new NFServerEventLoop[EVENT_LOOP_THREADS];
+			for (int i = 0; i < eventLoops.length; i++) {
+				eventLoops[i] = new NFServerEventLoop(fileCache);
+				Thread loopThread = new Thread(eventLoops[i], "NFServerEventLoop-" + i);
+				loopThread.setDaemon(true);
+				loopThread.start();
+			}
+		} catch (IOException e) {
+			System.err.println("[-] Failed to run file server, cannot open selector: " + e.getMessage());
+			return;
+		}
+
+		int nextEventLoop = 0;
 		while(!stopServer) {
 			try {
 				// Aceptar conexion de un cliente
-				Socket socket = serverSocket.accept();
+				SocketChannel clientChannel = serverChannel.accept();
 
-				// Iniciar hilo para atender al cliente
-				NFServerThread serverThread = new NFServerThread(socket);
-				serverThread.start();
-				
+				// Asignar el cliente a uno de los bucles de eventos (round-robin)
+				eventLoops[nextEventLoop].register(clientChannel);
+				nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
 
-			} catch (SocketException e) {
+			} catch (ClosedChannelException e) {
 				//System.err.println("[*] Closing the socket...");
 			} catch (IOException e) {
 				System.err.println("[-] Error accepting connection from client");
 			}
 
 		}
-		
+
+		for (NFServerEventLoop eventLoop : eventLoops) {
+			eventLoop.stopLoop();
+		}
+		fileCache.closeAll();
+
 		/*
 		 * (Boletín SocketsTCP) Al establecerse la conexión con un peer, la
-		 * comunicación con dicho cliente se hace en el método
-		 * serveFilesToClient(socket), al cual hay que pasarle el socket devuelto por
-		 * accept
+		 * comunicación con dicho cliente se hace en una NFServerSession, que
+		 * implementa el extremo del servidor del protocolo sobre un canal no
+		 * bloqueante.
 		 */
-		
-		
+
 		/*
-		 * (Boletín TCPConcurrente) Crear un hilo nuevo de la clase
-		 * NFServerThread, que llevará a cabo la comunicación con el cliente que se
-		 * acaba de conectar, mientras este hilo vuelve a quedar a la escucha de
-		 * conexiones de nuevos clientes (para soportar múltiples clientes). Si este
-		 * hilo es el que se encarga de atender al cliente conectado, no podremos tener
-		 * más de un cliente conectado a este servidor.
+		 * (Boletín TCPConcurrente) En lugar de crear un hilo por cliente, cada
+		 * conexión aceptada se asigna a uno de los EVENT_LOOP_THREADS bucles de
+		 * eventos, que multiplexan mediante un Selector todas sus conexiones. Así un
+		 * servidor puede mantener decenas de miles de peers conectados con un número
+		 * fijo de hilos.
 		 */
-
-		
-
-
-
 	}
 	/*
 	 * (Boletín SocketsTCP) Añadir métodos a esta clase para: 1) Arrancar el
@@ -183,169 +210,12 @@ public class NFServer implements Runnable {
 	}
 
 	public void stopServer() {
-		try {
-			serverSocket.close();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
 		stopServer = true;
-	}
-
-
-
-	/**
-	 * Método de clase que implementa el extremo del servidor del protocolo de
-	 * transferencia de ficheros entre pares.
-	 * 
-	 * @param socket El socket para la comunicación con un cliente que desea
-	 *               descargar ficheros.
-	 */
-	public static void serveFilesToClient(Socket socket) {
-		/*
-		 *(Boletín SocketsTCP) Crear dis/dos a partir del socket
-		 */
-		DataInputStream dis = null;
-		DataOutputStream dos = null;
-		try {
-			dis = new DataInputStream(socket.getInputStream());
-			dos = new DataOutputStream(socket.getOutputStream());
-		}
-		catch (IOException e) {
-			return;
-		}
-		
-		/*
-		 * (Boletín SocketsTCP) Mientras el cliente esté conectado, leer mensajes
-		 * de socket, convertirlo a un objeto PeerMessage y luego actuar en función del
-		 * tipo de mensaje recibido, enviando los correspondientes mensajes de
-		 * respuesta.
-		 */
-		PeerMessage recivedMessage = null;
-		PeerMessage sendMessage = null;
-		boolean finished = false;
-		String fileToSend = null;
-		while(!finished) {
-			try {
-				// Lecutra del mensaje del cliente 
-				recivedMessage = PeerMessage.readMessageFromInputStream(dis);
-			} catch (IOException e) {
-				// En caso de error al enviar, se enviar OPCODE_ERROR
-				//System.err.println("[-] Error reading message from input stream on [serveFilesToClient]");
-				sendMessage = new PeerMessage(PeerMessageOps.OPCODE_ERROR);
-				try {
-					sendMessage.writeMessageToOutputStream(dos);
-				} catch (IOException e1) {
-					//System.err.println("[-] Error writing message to output stream on [serveFilesToClient]");
-				}
-				return;
-			}
-			
-			// Actuar en función del tipo de mensaje recibido
-			switch(recivedMessage.getOpcode()) {
-				// Descargar corrupta por parte del cliente --> enviarmos OPCODE_ERROR
-				case PeerMessageOps.OPCODE_CORRUPT_DOWNLOAD:
-					finished = true;
-					sendMessage = new PeerMessage(PeerMessageOps.OPCODE_ERROR);
-					break;
-				
-				// El cliente solicita descargar un archivo
-				case PeerMessageOps.OPCODE_DOWNLOAD_FILE:
-					String substringName = recivedMessage.getSubstring();
-					FileInfo[] files = FileInfo.lookupFilenameSubstring(NanoFiles.db.getFiles(),substringName);
-					if (files.length == 0) {
-						sendMessage = new PeerMessage(PeerMessageOps.OPCODE_NOT_FOUND);
-						break;
-					}
-					else if (files.length > 1) {
-						sendMessage = new PeerMessage(PeerMessageOps.OPCODE_AMBIGUOUS_NAME);
-						break;
-					}
-					else {	// Caso de exito, se ha encontrado el fichero, se manda su hash y su tamaño
-
-						String hash = FileDigest.computeFileChecksumString(files[0].getFilePath());
-						double fileSize = (double) files[0].getFileSize();
-						sendMessage = PeerMessage.PeerMessageDownloadAprove(hash,fileSize);
-						fileToSend = files[0].getFilePath();
-						break;
-					}
-				// Una vez el cliente sabe que fichero es, solicita los bytes de dicho fichero
-				case PeerMessageOps.OPCODE_GET_CHUNCK:
-					double fileOffset = recivedMessage.getFileOffset();
-					int chunkSize = recivedMessage.getChunckSize();
-					if (fileOffset == 0 && chunkSize == 0) {
-						finished = true;
-						break;
-					}
-					// Leectura de los bytes del fichero fileToSend
-					byte[] data = readChunk(fileToSend, fileOffset, chunkSize);
-					if (data == null) {
-						sendMessage = new PeerMessage(PeerMessageOps.OPCODE_ERROR);
-						finished = true;
-						break;
-					}
-					sendMessage = PeerMessage.PeerMessageSendChunk(data);
-					break;
-				default:
-					sendMessage = new PeerMessage(PeerMessageOps.OPCODE_INVALID_CODE);
-					finished = true;
-					break;
-			}
-
-			// Enviar el mensaje de respuesta al cliente
-			try {
-				if (sendMessage != null) {
-					sendMessage.writeMessageToOutputStream(dos);
-				}
-			} catch (IOException e) {	// Si hay fallo al enviar se prueba a enviar OPCODE_ERROR
-				//System.err.println("[-] Error writing message to output stream on [serveFilesToClient]");
-				sendMessage = new PeerMessage(PeerMessageOps.OPCODE_ERROR);
-				try {
-					sendMessage.writeMessageToOutputStream(dos);
-				} catch (IOException e1) {
-					//System.err.println("[-] Error writing message to output stream on [serveFilesToClient]");
-				}
-				finished = true;
-			}
-		}
-	}
-
-	private static byte[] readChunk(String filePath, double _fileOffset, int _chunkSize) {
-		byte[] data = new byte[_chunkSize];
-
-		RandomAccessFile raf = null;
-
 		try {
-			raf = new RandomAccessFile(filePath, "r");
-			long fileOffset = (long) _fileOffset;
-			raf.seek(fileOffset);
-			int readBytes = raf.read(data, 0, _chunkSize);
-
-			// Si se han leído menos bytes de los esperados, redimensionar el array
-			if (readBytes < _chunkSize) {
-				byte[] newData = new byte[readBytes];
-				System.arraycopy(data, 0, newData, 0, readBytes);
-				data = newData;
-			}
-
-			
+			serverChannel.close();
 		} catch (IOException e) {
-			//System.err.println("[-] Error reading chunk from file: " + e.getMessage());
-			data = null;
-			
-		} finally {
-			if (raf != null) {
-				try {
-					raf.close();
-				} catch (IOException e) {
-					//System.err.println("[-] Error closing file: " + e.getMessage());
-				}
-			}
+			e.printStackTrace();
 		}
-	
-		return data;
 	}
 
-
-
-
-}
\ No newline at end of file
+}
@@ -0,0 +1,120 @@
+package es.um.redes.nanoFiles.tcp.server;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Bucle de eventos del servidor de ficheros. Cada instancia ejecuta un hilo que
+ * multiplexa mediante un Selector todas las conexiones que NFServer le asigna,
+ * de forma que un número pequeño y fijo de hilos puede atender a miles de peers
+ * conectados a la vez (aunque estén ociosos o sean lentos).
+ */
+class NFServerEventLoop implements Runnable {
+
+	private final Selector selector;
+	private final FileChannelCache fileCache;
+
+	/**
+	 * Conexiones aceptadas por NFServer pendientes de registrarse en el selector.
+	 * El registro debe hacerse desde el propio hilo del bucle.
+	 */
+	private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+
+	private volatile boolean stopLoop = false;
+
+	NFServerEventLoop(FileChannelCache fileCache) throws IOException {
+		selector = Selector.open();
+		this.fileCache = fileCache;
+	}
+
+	/**
+	 * Asigna una nueva conexión de un cliente a este bucle de eventos
+	 *
+	 * @param channel El canal devuelto por accept
+	 */
+	void register(SocketChannel channel) {
+		pendingChannels.add(channel);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (!stopLoop) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				System.err.println("[-] Error waiting for client events: " + e.getMessage());
+				break;
+			}
+			registerPendingChannels();
+
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				NFServerSession session = (NFServerSession) key.attachment();
+				try {
+					session.handleReadyOps();
+				} catch (IOException | CancelledKeyException e) {
+					// El cliente ha cerrado la conexión o ha fallado, se libera la sesión
+					session.close();
+				}
+			}
+		}
+		closeAllSessions();
+	}
+
+	private void registerPendingChannels() {
+		SocketChannel channel;
+		while ((channel = pendingChannels.poll()) != null) {
+			try {
+				channel.configureBlocking(false);
+				// La cabecera y los datos de un chunk se escriben por separado, sin esperar a Nagle
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+				key.attach(new NFServerSession(channel, key, fileCache));
+			} catch (IOException e) {
+				System.err.println("[-] Error registering client connection: " + e.getMessage());
+				try {
+					channel.close();
+				} catch (IOException e1) {
+				}
+			}
+		}
+	}
+
+	private void closeAllSessions() {
+		SocketChannel channel;
+		while ((channel = pendingChannels.poll()) != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+		for (SelectionKey key : selector.keys()) {
+			NFServerSession session = (NFServerSession) key.attachment();
+			if (session != null) {
+				session.close();
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Detiene el bucle de eventos, cerrando todas las conexiones que atiende
+	 */
+	void stopLoop() {
+		stopLoop = true;
+		selector.wakeup();
+	}
+}
@@ -0,0 +1,598 @@
+package es.um.redes.nanoFiles.tcp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+import es.um.redes.nanoFiles.application.NanoFiles;
+import es.um.redes.nanoFiles.tcp.message.PeerMessage;
+import es.um.redes.nanoFiles.tcp.message.PeerMessageOps;
+import es.um.redes.nanoFiles.util.ByteBufferPool;
+import es.um.redes.nanoFiles.util.FileInfo;
+import es.um.redes.nanoFiles.util.MerkleTree;
+
+/**
+ * Estado de la conversación con un cliente conectado al servidor de ficheros.
+ * Implementa el extremo del servidor del protocolo de transferencia de ficheros
+ * entre pares sobre un SocketChannel no bloqueante, atendido por un
+ * NFServerEventLoop.
+ *
+ * Para no reservar memoria por chunk, la sesión reutiliza el mensaje en el que
+ * parsea las peticiones y la cabecera, los datos y el OutboundFrame de los
+ * chunks que envía (en la cola de escritura nunca hay más de una respuesta).
+ * Los chunks alineados de DEFAULT_CHUNK_SIZE (los de los rangos y los GET_CHUNK
+ * habituales) se envían directamente del fichero al socket con transferTo, con
+ * el CRC32C calculado al escanear la carpeta. Los demás se leen en un buffer
+ * del pool para calcular su CRC32C y se envían desde él. El buffer de lectura se
+ * toma de un pool sólo mientras hay bytes por procesar, de modo que los
+ * clientes ociosos no retienen memoria.
+ *
+ * Además del fichero de DOWNLOAD_FILE, el cliente puede abrir varios ficheros a
+ * la vez con OPEN_STREAM, cada uno con su identificador. Los rangos pedidos de
+ * los distintos ficheros se envían intercalados, un chunk de cada fichero por
+ * turno, para que uno grande no retrase a los demás.
+ */
+class NFServerSession {
+
+	/**
+	 * Suficiente para la petición más larga (un DOWNLOAD_FILE con la subcadena
+	 * máxima)
+	 */
+	private static final int READ_BUFFER_SIZE = 8 * 1024;
+	private static final ByteBufferPool readBufferPool = new ByteBufferPool(READ_BUFFER_SIZE, 1024);
+	private static final ByteBufferPool chunkBufferPool = new ByteBufferPool(NanoFiles.DEFAULT_CHUNK_SIZE, 256);
+	/**
+	 * Número máximo de GET_RANGE encolados por cliente; con la cola llena se deja
+	 * de leer del cliente
+	 */
+	private static final int MAX_QUEUED_RANGES = 256;
+	/**
+	 * Número máximo de chunks de un rango que se generan en cada evento del
+	 * selector, para atender al resto de clientes y leer los CANCEL de este
+	 */
+	private static final int MAX_RANGE_FRAMES_PER_EVENT = 16;
+	/**
+	 * Número máximo de streams abiertos a la vez por un cliente
+	 */
+	private static final int MAX_OPEN_STREAMS = 64;
+
+	private final SocketChannel channel;
+	private final SelectionKey key;
+	private final FileChannelCache fileCache;
+
+	/**
+	 * Bytes recibidos del cliente que todavía no forman un mensaje completo (null
+	 * si no hay ninguno)
+	 */
+	private ByteBuffer readBuffer = null;
+	/**
+	 * Petición del cliente, reutilizada para cada mensaje recibido
+	 */
+	private final PeerMessage request = new PeerMessage();
+	/**
+	 * Cabecera y mensaje reutilizados para cada chunk enviado
+	 */
+	private final ByteBuffer chunkHeader = ByteBuffer.allocateDirect(PeerMessage.MAX_CHUNK_HEADER_LENGTH);
+	private final OutboundFrame chunkFrame = new OutboundFrame(chunkHeader);
+	/**
+	 * Datos del chunk que se está enviando cuando su checksum no se conoce (del
+	 * pool mientras haya un fichero abierto) y CRC32C con el que se calcula
+	 */
+	private ByteBuffer chunkData = null;
+	private final CRC32C crc = new CRC32C();
+	/**
+	 * Mensajes de respuesta pendientes de escribirse en el socket
+	 */
+	private final ArrayDeque<OutboundFrame> writeQueue = new ArrayDeque<>();
+
+	/**
+	 * Fichero pedido con DOWNLOAD_FILE (abierto en la caché compartida, del que
+	 * se leen los chunks con lecturas posicionales) y sus rangos (GET_RANGE)
+	 * pendientes, o null si no hay ninguno
+	 */
+	private FileStream fileToSend = null;
+	/**
+	 * Árbol de Merkle de piezas de fileToSend (null si no se ha podido calcular)
+	 */
+	private MerkleTree pieceTree = null;
+	/**
+	 * Ficheros abiertos con OPEN_STREAM, por identificador de stream
+	 */
+	private final Map<Integer, FileStream> streams = new HashMap<>();
+	private boolean finished = false;
+
+	/**
+	 * Ficheros con rangos por enviar, en el orden en que les toca enviar su
+	 * siguiente chunk. Las peticiones que llegan mientras tanto se siguen leyendo,
+	 * para que un CANCEL o CLOSE_STREAM pueda anular los rangos pendientes.
+	 */
+	private final ArrayDeque<FileStream> sendingStreams = new ArrayDeque<>();
+	/**
+	 * Número de rangos pendientes entre todos los ficheros
+	 */
+	private int queuedRanges = 0;
+
+	NFServerSession(SocketChannel channel, SelectionKey key, FileChannelCache fileCache) {
+		this.channel = channel;
+		this.key = key;
+		this.fileCache = fileCache;
+	}
+
+	/**
+	 * Atiende los eventos que el selector ha detectado para esta conexión
+	 */
+	void handleReadyOps() throws IOException {
+		if (key.isValid() && key.isWritable()) {
+			writePending();
+		}
+		if (key.isValid() && key.isReadable()) {
+			if (readBuffer == null) {
+				readBuffer = readBufferPool.acquire();
+			}
+			if (channel.read(readBuffer) < 0) {
+				close();
+				return;
+			}
+		}
+		if (key.isValid()) {
+			serveBufferedMessages();
+		}
+	}
+
+	/**
+	 * Procesa los mensajes completos recibidos mientras no haya respuestas
+	 * pendientes de enviar. Si el socket no admite más datos, se deja de leer del
+	 * cliente hasta que se vacíe la cola de escritura (control de flujo). Si el
+	 * cliente envía algo que no es un mensaje válido, la ProtocolException cierra
+	 * la sesión como cualquier otro error de la conexión.
+	 */
+	private void serveBufferedMessages() throws IOException {
+		if (readBuffer != null) {
+			readBuffer.flip();
+		}
+		int rangeFrames = 0;
+		try {
+			while (!finished && writeQueue.isEmpty()) {
+				OutboundFrame response;
+				if (queuedRanges < MAX_QUEUED_RANGES && readBuffer != null
+						&& request.readFromByteBuffer(readBuffer)) {
+					// Las peticiones se atienden según llegan, aunque haya un rango en curso
+					response = processMessage(request);
+				} else if (rangeFrames < MAX_RANGE_FRAMES_PER_EVENT && !sendingStreams.isEmpty()) {
+					// Los chunks de los rangos se generan de uno en uno, según se vacía el socket
+					response = nextRangeFrame();
+					rangeFrames++;
+				} else {
+					break;
+				}
+				if (response != null) {
+					writeQueue.add(response);
+				}
+				writePending();
+			}
+		} finally {
+			if (readBuffer != null) {
+				readBuffer.compact();
+			}
+		}
+
+		if (!finished && (!writeQueue.isEmpty() || !sendingStreams.isEmpty())) {
+			// Mientras se envía se siguen leyendo peticiones (un CANCEL), si caben
+			boolean canRead = queuedRanges < MAX_QUEUED_RANGES
+					&& (readBuffer == null || readBuffer.hasRemaining());
+			key.interestOps(canRead ? SelectionKey.OP_WRITE | SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+		} else if (!writeQueue.isEmpty()) {
+			key.interestOps(SelectionKey.OP_WRITE);
+		} else if (finished || (readBuffer != null && !readBuffer.hasRemaining())) {
+			// Fin de la sesión, o un mensaje que no cabe en el buffer (no válido)
+			close();
+			return;
+		} else {
+			key.interestOps(SelectionKey.OP_READ);
+		}
+		if (readBuffer != null && readBuffer.position() == 0) {
+			// No quedan bytes por procesar, el buffer vuelve al pool
+			readBufferPool.release(readBuffer);
+			readBuffer = null;
+		}
+	}
+
+	private void writePending() throws IOException {
+		while (!writeQueue.isEmpty()) {
+			if (!writeQueue.peek().writeTo(channel)) {
+				return;
+			}
+			writeQueue.poll();
+		}
+	}
+
+	/**
+	 * Actúa en función del tipo de mensaje recibido del cliente
+	 *
+	 * @param recivedMessage El mensaje recibido
+	 * @return La respuesta que hay que enviar, o null si no hay que responder
+	 */
+	private OutboundFrame processMessage(PeerMessage recivedMessage) {
+		PeerMessage sendMessage = null;
+		switch (recivedMessage.getOpcode()) {
+		// Descargar corrupta por parte del cliente --> enviarmos OPCODE_ERROR
+		case PeerMessageOps.OPCODE_CORRUPT_DOWNLOAD:
+			finished = true;
+			sendMessage = new PeerMessage(PeerMessageOps.OPCODE_ERROR);
+			break;
+
+		// El cliente solicita descargar un archivo
+		case PeerMessageOps.OPCODE_DOWNLOAD_FILE:
+			FileInfo[] files = lookupRequestedFile(recivedMessage.getSubstring());
+			if (files.length == 0) {
+				sendMessage = new PeerMessage(PeerMessageOps.OPCODE_NOT_FOUND);
+			} else if (files.length > 1) {
+				sendMessage = new PeerMessage(PeerMessageOps.OPCODE_AMBIGUOUS_NAME);
+			} else { // Caso de exito, se ha encontrado el fichero, se manda su hash y su tamaño
+				// El hash sale del índice de la base de datos, sólo se recalcula si el fichero ha cambiado
+				String hash = NanoFiles.db.lookupValidatedHash(files[0]);
+				if (hash == null || !openFileToSend(files[0], hash)) {
+					sendMessage = new PeerMessage(PeerMessageOps.OPCODE_ERROR);
+					break;
+				}
+				double fileSize = (double) files[0].getFileSize();
+				// El árbol de piezas se calcula al escanear la carpeta, junto con el hash
+				pieceTree = NanoFiles.db.lookupPieceTree(files[0], hash);
+				if (pieceTree != null) {
+					sendMessage = PeerMessage.PeerMessageDownloadAprove(hash, fileSize, pieceTree.getPieceSize(),
+							pieceTree.getRoot());
+				} else {
+					sendMessage = PeerMessage.PeerMessageDownloadAprove(hash, fileSize);
+				}
+			}
+			break;
+
+		// Una vez el cliente sabe que fichero es, solicita los bytes de dicho fichero
+		case PeerMessageOps.OPCODE_GET_CHUNCK:
+			double fileOffset = recivedMessage.getFileOffset();
+			int chunkSize = recivedMessage.getChunckSize();
+			if (fileOffset == 0 && chunkSize == 0) {
+				finished = true;
+				break;
+			}
+			OutboundFrame chunk = chunkFrame(recivedMessage);
+			if (chunk == null) {
+				sendMessage = new PeerMessage(PeerMessageOps.OPCODE_ERROR);
+				finished = true;
+				break;
+			}
+			return chunk;
+
+		// Igual que GET_CHUNCK, pero el cliente puede tener varias peticiones en vuelo
+		case PeerMessageOps.OPCODE_GET_TAGGED_CHUNK:
+			OutboundFrame taggedChunk = chunkFrame(recivedMessage);
+			if (taggedChunk == null) {
+				sendMessage = new PeerMessage(PeerMessageOps.OPCODE_ERROR);
+				finished = true;
+				break;
+			}
+			return taggedChunk;
+
+		// El cliente solicita un rango de bytes, que se le envía en varios SEND_TAGGED_CHUNK
+		case PeerMessageOps.OPCODE_GET_RANGE:
+			if (fileToSend == null || !queueRange(fileToSend, recivedMessage.getRequestId(), recivedMessage)) {
+				sendMessage = new PeerMessage(PeerMessageOps.OPCODE_ERROR);
+				finished = true;
+			}
+			break;
+
+		// El cliente ya no necesita un rango (lo ha recibido de otro servidor)
+		case PeerMessageOps.OPCODE_CANCEL:
+			if (fileToSend != null) {
+				removeRanges(fileToSend, fileToSend.cancel(recivedMessage.getRequestId()));
+			}
+			sendMessage = PeerMessage.PeerMessageCancel(recivedMessage.getRequestId());
+			break;
+
+		// El cliente abre otro fichero en la misma conexión
+		case PeerMessageOps.OPCODE_OPEN_STREAM:
+			sendMessage = openStream(recivedMessage.getRequestId(), recivedMessage.getSubstring());
+			break;
+
+		// El cliente solicita un rango del fichero de un stream
+		case PeerMessageOps.OPCODE_GET_STREAM_RANGE:
+			FileStream stream = streams.get(recivedMessage.getRequestId());
+			// Si el stream no está abierto es que se ha rechazado (STREAM_REJECT) o cerrado, y el cliente ya lo sabe
+			if (stream != null && !queueRange(stream, recivedMessage.getRequestId(), recivedMessage)) {
+				sendMessage = new PeerMessage(PeerMessageOps.OPCODE_ERROR);
+				finished = true;
+			}
+			break;
+
+		// El cliente ya no necesita el fichero de un stream
+		case PeerMessageOps.OPCODE_CLOSE_STREAM:
+			closeStream(recivedMessage.getRequestId());
+			sendMessage = PeerMessage.PeerMessageCloseStream(recivedMessage.getRequestId());
+			break;
+
+		// El cliente va a reutilizar la conexión (o comprueba que seguimos aquí): se empieza de cero
+		case PeerMessageOps.OPCODE_PING:
+			closeAllFiles();
+			sendMessage = new PeerMessage(PeerMessageOps.OPCODE_PONG);
+			break;
+
+		// El cliente solicita los hashes de un tramo de piezas para verificarlas según las recibe
+		case PeerMessageOps.OPCODE_GET_PIECE_HASHES:
+			int firstPiece = recivedMessage.getFirstPiece();
+			int pieceCount = recivedMessage.getPieceCount();
+			if (pieceTree == null || firstPiece < 0 || pieceCount < 0 || pieceCount > PeerMessage.MAX_PIECE_HASHES
+					|| firstPiece > pieceTree.getNumPieces() - pieceCount) {
+				sendMessage = new PeerMessage(PeerMessageOps.OPCODE_ERROR);
+				finished = true;
+				break;
+			}
+			sendMessage = PeerMessage.PeerMessagePieceHashes(firstPiece, pieceTree.getLeaves(firstPiece, pieceCount));
+			break;
+
+		default:
+			sendMessage = new PeerMessage(PeerMessageOps.OPCODE_INVALID_CODE);
+			finished = true;
+			break;
+		}
+		return (sendMessage != null) ? new OutboundFrame(sendMessage.toByteBuffer()) : null;
+	}
+
+	/**
+	 * Busca el fichero compartido que corresponde a la subcadena de un
+	 * DOWNLOAD_FILE u OPEN_STREAM
+	 *
+	 * @return Los ficheros que coinciden: si hay más de uno el nombre es ambiguo
+	 */
+	private static FileInfo[] lookupRequestedFile(String substringName) {
+		FileInfo[] files = FileInfo.lookupFilenameSubstring(NanoFiles.db.getFiles(), substringName);
+		// El nombre completo de un fichero no es ambiguo aunque sea parte del nombre de otros (download-all)
+		FileInfo exactMatch = (files.length > 1) ? FileInfo.lookupExactFilename(files, substringName) : null;
+		return (exactMatch != null) ? new FileInfo[] { exactMatch } : files;
+	}
+
+	private boolean openFileToSend(FileInfo file, String hash) {
+		closeFileToSend();
+		try {
+			fileToSend = new FileStream(fileCache.acquire(file.getFilePath()),
+					NanoFiles.db.lookupChunkChecksums(file, hash));
+		} catch (IOException e) {
+			return false;
+		}
+		return true;
+	}
+
+	private void closeFileToSend() {
+		if (fileToSend != null) {
+			removeRanges(fileToSend, fileToSend.close());
+		}
+		fileToSend = null;
+		pieceTree = null;
+		releaseChunkDataIfIdle();
+	}
+
+	/**
+	 * Abre el fichero pedido en un OPEN_STREAM
+	 *
+	 * @return La respuesta: STREAM_APROVE con su hash y tamaño, o STREAM_REJECT
+	 */
+	private PeerMessage openStream(int streamId, String substringName) {
+		if (streams.containsKey(streamId) || streams.size() >= MAX_OPEN_STREAMS) {
+			return PeerMessage.PeerMessageStreamReject(streamId, PeerMessageOps.OPCODE_ERROR);
+		}
+		FileInfo[] files = lookupRequestedFile(substringName);
+		if (files.length == 0) {
+			return PeerMessage.PeerMessageStreamReject(streamId, PeerMessageOps.OPCODE_NOT_FOUND);
+		} else if (files.length > 1) {
+			return PeerMessage.PeerMessageStreamReject(streamId, PeerMessageOps.OPCODE_AMBIGUOUS_NAME);
+		}
+		String hash = NanoFiles.db.lookupValidatedHash(files[0]);
+		if (hash == null) {
+			return PeerMessage.PeerMessageStreamReject(streamId, PeerMessageOps.OPCODE_ERROR);
+		}
+		try {
+			streams.put(streamId, new FileStream(fileCache.acquire(files[0].getFilePath()),
+					NanoFiles.db.lookupChunkChecksums(files[0], hash)));
+		} catch (IOException e) {
+			return PeerMessage.PeerMessageStreamReject(streamId, PeerMessageOps.OPCODE_ERROR);
+		}
+		return PeerMessage.PeerMessageStreamAprove(streamId, hash, (double) files[0].getFileSize());
+	}
+
+	/**
+	 * Cierra un stream y descarta sus rangos pendientes
+	 */
+	private void closeStream(int streamId) {
+		FileStream stream = streams.remove(streamId);
+		if (stream != null) {
+			removeRanges(stream, stream.close());
+		}
+		releaseChunkDataIfIdle();
+	}
+
+	/**
+	 * Cierra el fichero de DOWNLOAD_FILE y todos los streams, descartando sus
+	 * rangos pendientes
+	 */
+	private void closeAllFiles() {
+		for (FileStream stream : streams.values()) {
+			removeRanges(stream, stream.close());
+		}
+		streams.clear();
+		closeFileToSend();
+	}
+
+	/**
+	 * Devuelve al pool el buffer de los chunks si ya no hay ningún fichero abierto
+	 */
+	private void releaseChunkDataIfIdle() {
+		if (chunkData != null && fileToSend == null && streams.isEmpty()) {
+			chunkBufferPool.release(chunkData);
+			chunkData = null;
+		}
+	}
+
+	/**
+	 * Lee length bytes (como mucho DEFAULT_CHUNK_SIZE) de un fichero a partir de
+	 * fileOffset
+	 *
+	 * @return Los datos leídos en modo lectura, o null si no se han podido leer
+	 *         todos
+	 */
+	private ByteBuffer readChunk(FileChannelCache.Handle fileHandle, long fileOffset, int length) {
+		if (chunkData == null) {
+			chunkData = chunkBufferPool.acquire();
+		}
+		ByteBuffer data = chunkData;
+		data.clear().limit(length);
+		try {
+			while (data.hasRemaining()) {
+				if (fileHandle.read(data, fileOffset + data.position()) < 0) {
+					// El fichero ha encogido, ya no se puede enviar el chunk
+					return null;
+				}
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		data.flip();
+		return data;
+	}
+
+	/**
+	 * Construye la respuesta (SEND_CHUNK o SEND_TAGGED_CHUNK) con la región de
+	 * fileToSend solicitada. Si la región sobrepasa el final del fichero se envían
+	 * sólo los bytes que quedan.
+	 *
+	 * @param request La petición GET_CHUNCK o GET_TAGGED_CHUNK
+	 * @return El mensaje a enviar, o null si no hay fichero o la petición no es
+	 *         válida (p.ej. un chunk mayor que DEFAULT_CHUNK_SIZE, que no cabe en
+	 *         el buffer del pool)
+	 */
+	private OutboundFrame chunkFrame(PeerMessage request) {
+		long fileOffset = (long) request.getFileOffset();
+		int chunkSize = request.getChunckSize();
+		if (fileToSend == null || fileOffset < 0 || chunkSize < 0 || chunkSize > chunkBufferPool.getBufferSize()) {
+			return null;
+		}
+		long available;
+		try {
+			available = Math.max(fileToSend.size() - fileOffset, 0);
+		} catch (IOException e) {
+			return null;
+		}
+		int length = (int) Math.min(chunkSize, available);
+		long knownChecksum = fileToSend.lookupChecksum(fileOffset, length);
+		ByteBuffer data = null;
+		if (knownChecksum < 0) {
+			data = readChunk(fileToSend.getHandle(), fileOffset, length);
+			if (data == null) {
+				return null;
+			}
+		}
+		int checksum = (data != null) ? PeerMessage.computeChunkChecksum(crc, data) : (int) knownChecksum;
+		ByteBuffer header = (request.getOpcode() == PeerMessageOps.OPCODE_GET_TAGGED_CHUNK)
+				? PeerMessage.sendTaggedChunkHeader(chunkHeader, request.getRequestId(), length, checksum)
+				: PeerMessage.sendChunkHeader(chunkHeader, length, checksum);
+		return (data != null) ? chunkFrame.set(header, data)
+				: chunkFrame.setFileRegion(header, fileToSend.getHandle(), fileOffset, length);
+	}
+
+	/**
+	 * Encola el rango pedido en un GET_RANGE o GET_STREAM_RANGE, que se envía
+	 * cuando le toque al fichero
+	 *
+	 * @return Falso si la petición no es válida, p.ej. si el rango sobrepasa el
+	 *         final del fichero: el cliente esperaría unos chunks que no van a
+	 *         llegar
+	 */
+	private boolean queueRange(FileStream stream, int id, PeerMessage request) {
+		long fileOffset = (long) request.getFileOffset();
+		long rangeLength = request.getRangeLength();
+		if (fileOffset < 0 || rangeLength < 0) {
+			return false;
+		}
+		long endOffset = fileOffset + rangeLength;
+		try {
+			if (endOffset < fileOffset || endOffset > stream.size()) {
+				return false;
+			}
+		} catch (IOException e) {
+			return false;
+		}
+		boolean wasSending = stream.hasPendingRanges();
+		if (stream.addRange(id, fileOffset, endOffset)) {
+			queuedRanges++;
+			if (!wasSending) {
+				sendingStreams.add(stream);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Descuenta los rangos descartados de un fichero y, si ya no le quedan, lo
+	 * saca del turno de envío
+	 */
+	private void removeRanges(FileStream stream, int discarded) {
+		queuedRanges -= discarded;
+		if (discarded > 0 && !stream.hasPendingRanges()) {
+			sendingStreams.remove(stream);
+		}
+	}
+
+	/**
+	 * Genera el siguiente SEND_TAGGED_CHUNK, con a lo sumo DEFAULT_CHUNK_SIZE
+	 * bytes, del fichero al que le toca, que pasa al final del turno si le quedan
+	 * rangos. Si no se ha podido leer del fichero se genera un ERROR.
+	 */
+	private OutboundFrame nextRangeFrame() {
+		FileStream stream = sendingStreams.poll();
+		long offset = stream.currentOffset();
+		int length = (int) Math.min(NanoFiles.DEFAULT_CHUNK_SIZE, stream.currentRemaining());
+		long knownChecksum = stream.lookupChecksum(offset, length);
+		OutboundFrame frame;
+		if (knownChecksum >= 0) {
+			// Chunk alineado: se envía del fichero al socket sin leerlo
+			frame = chunkFrame.setFileRegion(
+					PeerMessage.sendTaggedChunkHeader(chunkHeader, stream.currentId(), length, (int) knownChecksum),
+					stream.getHandle(), offset, length);
+		} else {
+			ByteBuffer data = readChunk(stream.getHandle(), offset, length);
+			if (data == null) {
+				finished = true;
+				return new OutboundFrame(new PeerMessage(PeerMessageOps.OPCODE_ERROR).toByteBuffer());
+			}
+			int checksum = PeerMessage.computeChunkChecksum(crc, data);
+			frame = chunkFrame
+					.set(PeerMessage.sendTaggedChunkHeader(chunkHeader, stream.currentId(), length, checksum), data);
+		}
+		if (stream.advance(length)) {
+			queuedRanges--;
+		}
+		if (stream.hasPendingRanges()) {
+			sendingStreams.add(stream);
+		}
+		return frame;
+	}
+
+	/**
+	 * Cierra la conexión con el cliente y libera los recursos de la sesión
+	 */
+	void close() {
+		closeAllFiles();
+		if (readBuffer != null) {
+			readBufferPool.release(readBuffer);
+			readBuffer = null;
+		}
+		key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
+}
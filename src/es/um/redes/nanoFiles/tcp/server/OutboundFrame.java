@@ -0,0 +1,99 @@
+package es.um.redes.nanoFiles.tcp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Mensaje pendiente de escribirse en el socket de un cliente. Está formado por
+ * una cabecera y, opcionalmente, los datos de un chunk, que pueden ser:
+ *
+ * - una región de un fichero, que se envía directamente del fichero al socket
+ * mediante transferTo (sendfile), sin que los bytes pasen por el heap de Java.
+ *
+ * - otro buffer, que se escribe junto con la cabecera en una sola operación
+ * (gathering write) sin copiarlo.
+ *
+ * Una sesión puede reutilizar el mismo objeto para todos los chunks que envía.
+ */
+class OutboundFrame {
+
+	private final ByteBuffer[] buffers = new ByteBuffer[2];
+	private int numBuffers;
+	/**
+	 * Fichero del que se envía la región (null si no hay región), siguiente
+	 * posición a enviar y bytes que quedan
+	 */
+	private FileChannelCache.Handle file;
+	private long position;
+	private long remaining;
+
+	OutboundFrame(ByteBuffer header) {
+		this(header, null);
+	}
+
+	OutboundFrame(ByteBuffer header, ByteBuffer payload) {
+		set(header, payload);
+	}
+
+	/**
+	 * Reutiliza este objeto para un nuevo mensaje
+	 *
+	 * @param header  Cabecera del mensaje, en modo lectura
+	 * @param payload Datos que siguen a la cabecera (en modo lectura), o null
+	 * @return El propio objeto
+	 */
+	OutboundFrame set(ByteBuffer header, ByteBuffer payload) {
+		buffers[0] = header;
+		buffers[1] = payload;
+		numBuffers = (payload != null) ? 2 : 1;
+		file = null;
+		remaining = 0;
+		return this;
+	}
+
+	/**
+	 * Reutiliza este objeto para un mensaje cuyos datos son una región de un
+	 * fichero
+	 *
+	 * @param header   Cabecera del mensaje, en modo lectura
+	 * @param file     Fichero del que se envían los datos
+	 * @param position Inicio de la región
+	 * @param count    Longitud de la región
+	 * @return El propio objeto
+	 */
+	OutboundFrame setFileRegion(ByteBuffer header, FileChannelCache.Handle file, long position, long count) {
+		set(header, null);
+		this.file = file;
+		this.position = position;
+		this.remaining = count;
+		return this;
+	}
+
+	/**
+	 * Escribe en el socket todo lo que admita sin bloquear
+	 *
+	 * @return Verdadero si el mensaje se ha escrito por completo
+	 */
+	boolean writeTo(SocketChannel channel) throws IOException {
+		if (buffers[numBuffers - 1].hasRemaining()) {
+			channel.write(buffers, 0, numBuffers);
+			if (buffers[numBuffers - 1].hasRemaining()) {
+				return false;
+			}
+		}
+		while (remaining > 0) {
+			long transferred = file.transferTo(position, remaining, channel);
+			if (transferred == 0) {
+				if (position >= file.size()) {
+					// El fichero ha encogido mientras se enviaba, ya no se puede cumplir la cabecera
+					throw new IOException("File truncated while being served");
+				}
+				return false;
+			}
+			position += transferred;
+			remaining -= transferred;
+		}
+		return true;
+	}
+}
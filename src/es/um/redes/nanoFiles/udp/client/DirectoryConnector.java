@@ -6,12 +6,14 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.Arrays;
 
 import es.um.redes.nanoFiles.application.NanoFiles;
 import es.um.redes.nanoFiles.udp.message.DirMessage;
 import es.um.redes.nanoFiles.udp.message.DirMessageOps;
 import es.um.redes.nanoFiles.util.FileInfo;
+import es.um.redes.nanoFiles.util.RemoteFile;
 
 /**
  * Cliente con métodos de consulta y actualización específicos del directorio
@@ -81,7 +83,8 @@ public class DirectoryConnector {
 	 * @param requestData los datos a enviar al directorio (mensaje de solicitud)
 	 * @return los datos recibidos del directorio (mensaje de respuesta)
 	 */
-	private byte[] sendAndReceiveDatagrams(byte[] requestData) {
+	// Las descargas en segundo plano consultan al directorio a la vez que el shell: una petición cada vez
+	private synchronized byte[] sendAndReceiveDatagrams(byte[] requestData) {
 		byte responseData[] = new byte[DirMessage.PACKET_MAX_SIZE];
 		byte response[] = null;
 		if (directoryAddress == null) {
@@ -443,6 +446,58 @@ public class DirectoryConnector {
 		return serversList;
 	}
 
+	/**
+	 * Método para obtener todos los ficheros cuyo nombre contiene la subcadena
+	 * dada, cada uno con los servidores que lo tienen. Si no caben en un
+	 * datagrama, el directorio los envía por partes y se piden las siguientes. Las
+	 * respuestas a otra parte (que llegan tarde o duplicadas tras un reenvío) se
+	 * descartan.
+	 * 
+	 * @param filenameSubstring Subcadena del nombre de los ficheros a buscar
+	 * 
+	 * @return Los ficheros que coinciden (vacío si no hay ninguno), o null si no
+	 *         se ha podido obtener la lista completa
+	 */
+	public RemoteFile[] getMatchingFiles(String filenameSubstring) {
+		ArrayList<RemoteFile> matchingFiles = new ArrayList<>();
+		int offset = 0;
+		int staleResponses = 0;
+		while (offset >= 0) {
+			DirMessage requestMessage = DirMessage.DirMessageRequestMatchingFiles(filenameSubstring, offset);
+			byte[] responseData = sendAndReceiveDatagrams(requestMessage.toString().getBytes());
+			if (responseData == null) {
+				System.err.println("[-] Error: No data recived in getMatchingFiles");
+				return null;
+			}
+
+			DirMessage responseMessage = null;
+			try {
+				responseMessage = DirMessage.fromString(new String(responseData, 0, responseData.length));
+			} catch (Exception e) {
+				System.err.println("[-] Error: Not posible parsing message.");
+				return null;
+			}
+
+			if (!responseMessage.getOperation().equals(DirMessageOps.OPERATION_REQUEST_MATCHING_FILES_OK)) {
+				System.err.println("[-] Error in getMatchingFiles. Response (" + responseMessage.getOperation() + ")");
+				return null;
+			}
+			if (responseMessage.getOffset() != offset) {
+				// Respuesta a una petición anterior: se vuelve a pedir esta parte
+				if (++staleResponses >= MAX_NUMBER_OF_ATTEMPTS) {
+					System.err.println("[-] Error in getMatchingFiles. Too many out of order responses");
+					return null;
+				}
+				System.err.println("[*] Ignoring out of order response in getMatchingFiles (offset "
+						+ responseMessage.getOffset() + ", expected " + offset + ")");
+				continue;
+			}
+			matchingFiles.addAll(Arrays.asList(responseMessage.getMatchingFiles()));
+			offset = responseMessage.getNextOffset();
+		}
+		return matchingFiles.toArray(new RemoteFile[0]);
+	}
+
 	/**
 	 * Método para darse de baja como servidor de ficheros.
 	 * 
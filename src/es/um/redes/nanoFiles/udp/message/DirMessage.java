@@ -1,8 +1,13 @@
 package es.um.redes.nanoFiles.udp.message;
 
 import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 
 import es.um.redes.nanoFiles.util.FileInfo;
+import es.um.redes.nanoFiles.util.RemoteFile;
 
 /**
  * Clase que modela los mensajes del protocolo de comunicación entre pares para
@@ -33,6 +38,9 @@ public class DirMessage {
 	private static final String FIELDNAME_FILENAMESUBSTRING = "filenamesubstring";
 	private static final String FIELDNAME_SERVERS_LIST = "serverslist";
 	private static final String FIELDNAME_SERVER_PORT = "serverport";
+	private static final String FIELDNAME_OFFSET = "offset";
+	private static final String FIELDNAME_MATCH = "match";
+	private static final String FIELDNAME_NEXT_OFFSET = "nextoffset";
 
 
 
@@ -53,6 +61,17 @@ public class DirMessage {
 	private String filenameSubstring;
 	private InetSocketAddress[] serversList = new InetSocketAddress[0];
 	private int serverPort;
+	/*
+	 * Ficheros que coinciden con la subcadena (request_matching_files_ok), cada
+	 * uno en una línea con sus servidores. Si no caben todos en un datagrama, la
+	 * respuesta indica desde qué posición se deben volver a pedir (offset de la
+	 * siguiente petición, -1 si no quedan más). La respuesta repite el offset de
+	 * la petición, para que el cliente descarte las respuestas que lleguen tarde
+	 * o duplicadas de peticiones anteriores.
+	 */
+	private int offset = 0;
+	private ArrayList<RemoteFile> matchingFiles = new ArrayList<>();
+	private int nextOffset = -1;
 
 
 
@@ -122,6 +141,21 @@ public class DirMessage {
 		return msg;
 	}
 
+	// Constructor para mensajes request_matching_files
+	public static DirMessage DirMessageRequestMatchingFiles(String _filenameSubstring, int _offset) {
+		DirMessage msg = new DirMessage(DirMessageOps.OPERATION_REQUEST_MATCHING_FILES);
+		msg.setFileNameSubstring(_filenameSubstring);
+		msg.setOffset(_offset);
+		return msg;
+	}
+
+	// Constructor para mensajes request_matching_files_ok (los ficheros se añaden con addMatchingFile)
+	public static DirMessage DirMessageRequestMatchingFilesOk(int _offset) {
+		DirMessage msg = new DirMessage(DirMessageOps.OPERATION_REQUEST_MATCHING_FILES_OK);
+		msg.setOffset(_offset);
+		return msg;
+	}
+
 	// Constructor para mensajes request_server_list_ok
 	public static DirMessage DirMessageRequestServersListOk(String op, InetSocketAddress[] _serversList) {
 		if(!op.equals(DirMessageOps.OPERATION_REQUEST_SERVERS_LIST_OK)) {
@@ -157,7 +191,8 @@ public class DirMessage {
 	}
 
 	public void setFileNameSubstring(String _filenameSubstring) {
-		if (!operation.equals(DirMessageOps.OPERATION_REQUEST_SERVERS_LIST)) {
+		if (!operation.equals(DirMessageOps.OPERATION_REQUEST_SERVERS_LIST)
+				&& !operation.equals(DirMessageOps.OPERATION_REQUEST_MATCHING_FILES)) {
 			throw new RuntimeException(
 					"DirMessage: setFileNameSubstring called for message of unexpected type (" + operation + ")");
 		}
@@ -180,6 +215,56 @@ public class DirMessage {
 		serversList = _serversList;
 	}
 
+	public void setOffset(int _offset) {
+		if (!operation.equals(DirMessageOps.OPERATION_REQUEST_MATCHING_FILES)
+				&& !operation.equals(DirMessageOps.OPERATION_REQUEST_MATCHING_FILES_OK)) {
+			throw new RuntimeException(
+					"DirMessage: setOffset called for message of unexpected type (" + operation + ")");
+		}
+		offset = _offset;
+	}
+
+	public int getOffset() {
+		if (!operation.equals(DirMessageOps.OPERATION_REQUEST_MATCHING_FILES)
+				&& !operation.equals(DirMessageOps.OPERATION_REQUEST_MATCHING_FILES_OK)) {
+			throw new RuntimeException(
+					"DirMessage: getOffset called for message of unexpected type (" + operation + ")");
+		}
+		return offset;
+	}
+
+	public void addMatchingFile(RemoteFile _file) {
+		if (!operation.equals(DirMessageOps.OPERATION_REQUEST_MATCHING_FILES_OK)) {
+			throw new RuntimeException(
+					"DirMessage: addMatchingFile called for message of unexpected type (" + operation + ")");
+		}
+		matchingFiles.add(_file);
+	}
+
+	public RemoteFile[] getMatchingFiles() {
+		if (!operation.equals(DirMessageOps.OPERATION_REQUEST_MATCHING_FILES_OK)) {
+			throw new RuntimeException(
+					"DirMessage: getMatchingFiles called for message of unexpected type (" + operation + ")");
+		}
+		return matchingFiles.toArray(new RemoteFile[0]);
+	}
+
+	public void setNextOffset(int _nextOffset) {
+		if (!operation.equals(DirMessageOps.OPERATION_REQUEST_MATCHING_FILES_OK)) {
+			throw new RuntimeException(
+					"DirMessage: setNextOffset called for message of unexpected type (" + operation + ")");
+		}
+		nextOffset = _nextOffset;
+	}
+
+	public int getNextOffset() {
+		if (!operation.equals(DirMessageOps.OPERATION_REQUEST_MATCHING_FILES_OK)) {
+			throw new RuntimeException(
+					"DirMessage: getNextOffset called for message of unexpected type (" + operation + ")");
+		}
+		return nextOffset;
+	}
+
 	public void setPort(int _port){
 		serverPort = _port;
 	}
@@ -207,7 +292,8 @@ public class DirMessage {
 	}
 
 	public String getFileNameSubstring() {
-		if (!operation.equals(DirMessageOps.OPERATION_REQUEST_SERVERS_LIST)) {
+		if (!operation.equals(DirMessageOps.OPERATION_REQUEST_SERVERS_LIST)
+				&& !operation.equals(DirMessageOps.OPERATION_REQUEST_MATCHING_FILES)) {
 			throw new RuntimeException(
 					"DirMessage: getFileNameSubstring called for message of unexpected type (" + operation + ")");
 		}
@@ -284,6 +370,21 @@ public class DirMessage {
 					m.setPort(port);
 					break;
 				}	
+				case FIELDNAME_OFFSET: {
+					assert (m != null);
+					m.setOffset(Integer.parseInt(value));
+					break;
+				}
+				case FIELDNAME_MATCH: {
+					assert (m != null);
+					m.addMatchingFile(strToRemoteFile(value));
+					break;
+				}
+				case FIELDNAME_NEXT_OFFSET: {
+					assert (m != null);
+					m.setNextOffset(Integer.parseInt(value));
+					break;
+				}
 				
 
 				default:
@@ -307,6 +408,44 @@ public class DirMessage {
 	}
 
 
+	/**
+	 * Codifica un fichero con sus servidores en el valor de un campo match:
+	 * nombre|tamaño|hash|servidor,servidor... El nombre va codificado como en una
+	 * URL (UTF-8), así no puede contener ni '|' ni fines de línea ni espacios al
+	 * principio o al final, que romperían el mensaje.
+	 */
+	public static String remoteFileToString(RemoteFile remoteFile) {
+		StringBuffer sb = new StringBuffer();
+		sb.append(URLEncoder.encode(remoteFile.getFileName(), StandardCharsets.UTF_8) + "|" + remoteFile.getFileSize() + "|" + remoteFile.getFileHash() + "|");
+		for (int i = 0; i < remoteFile.servers.length; i++) {
+			sb.append(remoteFile.servers[i].toString());
+			if (i < remoteFile.servers.length - 1) {
+				sb.append(",");
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Longitud en bytes de la línea con la que se codifica un fichero en un
+	 * mensaje request_matching_files_ok, para saber cuántos caben en un datagrama
+	 */
+	public static int matchingFileLineLength(RemoteFile remoteFile) {
+		return (FIELDNAME_MATCH + DELIMITER + remoteFileToString(remoteFile) + END_LINE).getBytes().length;
+	}
+
+	private static RemoteFile strToRemoteFile(String str) {
+		String[] fields = str.split("\\|");
+		if (fields.length < 3) {
+			throw new IllegalArgumentException("DirMessage: malformed match field (" + str + ")");
+		}
+		String fileName = URLDecoder.decode(fields[0], StandardCharsets.UTF_8);
+		FileInfo file = new FileInfo(fields[2], fileName, Long.parseLong(fields[1]), null);
+		InetSocketAddress[] servers = (fields.length > 3) ? strToInetSocketAddress(fields[3])
+				: new InetSocketAddress[0];
+		return new RemoteFile(file, servers);
+	}
+
 	/**
 	 * Método que devuelve una cadena de caracteres con la codificación del mensaje
 	 * según el formato campo:valor, a partir del tipo y los valores almacenados en
@@ -353,6 +492,21 @@ public class DirMessage {
 				sb.append(FIELDNAME_FILENAMESUBSTRING + DELIMITER + filenameSubstring + END_LINE);
 				break;
 			}
+			case DirMessageOps.OPERATION_REQUEST_MATCHING_FILES: {
+				sb.append(FIELDNAME_FILENAMESUBSTRING + DELIMITER + filenameSubstring + END_LINE);
+				sb.append(FIELDNAME_OFFSET + DELIMITER + offset + END_LINE);
+				break;
+			}
+			case DirMessageOps.OPERATION_REQUEST_MATCHING_FILES_OK: {
+				sb.append(FIELDNAME_OFFSET + DELIMITER + offset + END_LINE);
+				for (RemoteFile matchingFile : matchingFiles) {
+					sb.append(FIELDNAME_MATCH + DELIMITER + remoteFileToString(matchingFile) + END_LINE);
+				}
+				if (nextOffset >= 0) {
+					sb.append(FIELDNAME_NEXT_OFFSET + DELIMITER + nextOffset + END_LINE);
+				}
+				break;
+			}
 			case DirMessageOps.OPERATION_REQUEST_SERVERS_LIST_OK: {
 				sb.append(FIELDNAME_SERVERS_LIST + DELIMITER);
 				for (int i = 0; i < serversList.length; i++) {
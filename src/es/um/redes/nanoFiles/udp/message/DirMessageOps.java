@@ -29,6 +29,11 @@ public class DirMessageOps {
 	public static final String OPERATION_REQUEST_SERVERS_LIST_FAIL = "request_servers_list_fail";
 	public static final String OPERATION_REQUEST_SERVERS_LIST_AMBIGUOUS = "request_servers_list_ambiguous";
 
+	// Mensajes de petición y respuesta de todos los ficheros que coinciden con una subcadena y sus servidores
+	public static final String OPERATION_REQUEST_MATCHING_FILES = "request_matching_files";
+	public static final String OPERATION_REQUEST_MATCHING_FILES_OK = "request_matching_files_ok";
+	public static final String OPERATION_REQUEST_MATCHING_FILES_FAIL = "request_matching_files_fail";
+
 	// Mensajes para darse de baja como servidor
 	public static final String OPERATION_UNREGISTER_SERVER = "unregister_server";
 	public static final String OPERATION_UNREGISTER_SERVER_OK = "unregister_server_ok";
@@ -12,11 +12,13 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import es.um.redes.nanoFiles.application.NanoFiles;
 import es.um.redes.nanoFiles.udp.message.DirMessage;
 import es.um.redes.nanoFiles.udp.message.DirMessageOps;
 import es.um.redes.nanoFiles.util.FileInfo;
+import es.um.redes.nanoFiles.util.RemoteFile;
 
 public class NFDirectoryServer {
 	/**
@@ -470,6 +472,56 @@ public class NFDirectoryServer {
 
 		}
 
+		// Proccess request_matching_files
+		case DirMessageOps.OPERATION_REQUEST_MATCHING_FILES: {
+
+			// Ficheros distintos (nombre y hash) que contienen la subcadena, en un orden estable para poder paginar
+			String fileNameSubString = recivedMessage.getFileNameSubstring();
+			TreeMap<String, FileInfo> matches = new TreeMap<>();
+			for (FileInfo file : filesDirectory) {
+				if (file.getFileName().contains(fileNameSubString)) {
+					matches.putIfAbsent(file.getFileName() + "|" + file.getFileHash(), file);
+				}
+			}
+			ArrayList<FileInfo> matchingFiles = new ArrayList<>(matches.values());
+			int offset = recivedMessage.getOffset();
+			if (offset < 0 || offset > matchingFiles.size()) {
+				msgToSend = new DirMessage(DirMessageOps.OPERATION_REQUEST_MATCHING_FILES_FAIL);
+				System.err.println("[-] Error by "+DirMessageOps.OPERATION_REQUEST_MATCHING_FILES);
+				System.err.println("[-] Sending response... "+DirMessageOps.OPERATION_REQUEST_MATCHING_FILES_FAIL);
+				break;
+			}
+			// Se envian los que caben en un datagrama, el cliente pide el resto a partir de nextoffset
+			msgToSend = DirMessage.DirMessageRequestMatchingFilesOk(offset);
+			int length = msgToSend.toString().getBytes().length + 64;
+			int next = offset;
+			while (next < matchingFiles.size()) {
+				FileInfo file = matchingFiles.get(next);
+				Set<InetSocketAddress> servers = serversByFile.getOrDefault(file.getFileHash(), new HashSet<>());
+				RemoteFile remoteFile = new RemoteFile(file, servers.toArray(new InetSocketAddress[0]));
+				length += DirMessage.matchingFileLineLength(remoteFile);
+				if (length > DirMessage.PACKET_MAX_SIZE) {
+					break;
+				}
+				msgToSend.addMatchingFile(remoteFile);
+				next++;
+			}
+			if (next == offset && next < matchingFiles.size()) {
+				// Un solo fichero con tantos servidores que no cabe en un datagrama
+				msgToSend = new DirMessage(DirMessageOps.OPERATION_REQUEST_MATCHING_FILES_FAIL);
+				System.err.println("[-] Error by "+DirMessageOps.OPERATION_REQUEST_MATCHING_FILES);
+				System.err.println("[-] Sending response... "+DirMessageOps.OPERATION_REQUEST_MATCHING_FILES_FAIL);
+				break;
+			}
+			if (next < matchingFiles.size()) {
+				msgToSend.setNextOffset(next);
+			}
+			System.out.println("[+] SUCCESS on "+DirMessageOps.OPERATION_REQUEST_MATCHING_FILES);
+			System.out.println("[+] Sending " + (next - offset) + " of " + matchingFiles.size() + " matching files...");
+			break;
+
+		}
+
 
 
 		default:
@@ -0,0 +1,61 @@
+package es.um.redes.nanoFiles.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate at which several threads consume bytes, e.g. the chunks
+ * received by every download running at the same time. Each caller reserves
+ * the time its bytes take at the configured rate and sleeps until that time
+ * comes, so the total rate stays below the limit however many threads share
+ * the limiter. A short burst is allowed after a pause.
+ *
+ * Threads that must not sleep (e.g. an event loop) use reserve instead, and
+ * stop consuming for the time it returns.
+ */
+public class BandwidthLimiter {
+
+	private final double nanosPerByte;
+	private final long burstNanos;
+	/**
+	 * Time (System.nanoTime) at which the bytes reserved so far have been
+	 * consumed
+	 */
+	private long nextFreeNanos;
+
+	/**
+	 * @param bytesPerSecond Maximum rate
+	 * @param burstBytes     Bytes that can be consumed at once after a pause
+	 */
+	public BandwidthLimiter(long bytesPerSecond, int burstBytes) {
+		if (bytesPerSecond <= 0) {
+			throw new IllegalArgumentException("Invalid rate: " + bytesPerSecond);
+		}
+		this.nanosPerByte = 1e9 / bytesPerSecond;
+		this.burstNanos = (long) (burstBytes * nanosPerByte);
+		this.nextFreeNanos = System.nanoTime();
+	}
+
+	/**
+	 * Waits until the given number of bytes can be consumed without exceeding the
+	 * rate
+	 */
+	public void acquire(int bytes) throws InterruptedException {
+		long waitNanos = reserve(bytes);
+		if (waitNanos > 0) {
+			TimeUnit.NANOSECONDS.sleep(waitNanos);
+		}
+	}
+
+	/**
+	 * Reserves the given number of bytes without waiting
+	 *
+	 * @return Time (in ns) the caller must wait before consuming more bytes to
+	 *         stay below the rate, 0 if none
+	 */
+	public synchronized long reserve(int bytes) {
+		long now = System.nanoTime();
+		// Time not used while nobody was consuming is only kept up to the burst
+		nextFreeNanos = Math.max(nextFreeNanos, now - burstNanos) + (long) (bytes * nanosPerByte);
+		return Math.max(nextFreeNanos - now, 0);
+	}
+}
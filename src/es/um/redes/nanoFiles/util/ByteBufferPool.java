@@ -0,0 +1,64 @@
+package es.um.redes.nanoFiles.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct ByteBuffers of a fixed size, shared between threads. Direct
+ * buffers are expensive to allocate and are only freed by the garbage
+ * collector, so connections borrow them from the pool instead of allocating
+ * new ones, and give them back when they no longer need them.
+ */
+public class ByteBufferPool {
+
+	private final int bufferSize;
+	private final int maxPooled;
+	private final Queue<ByteBuffer> pooled = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger numPooled = new AtomicInteger(0);
+
+	/**
+	 * @param bufferSize Capacity of the buffers handed out by this pool
+	 * @param maxPooled  Maximum number of free buffers kept in the pool
+	 */
+	public ByteBufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * Borrows a buffer from the pool, allocating a new one if the pool is empty
+	 *
+	 * @return A cleared direct buffer of bufferSize bytes
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buf = pooled.poll();
+		if (buf == null) {
+			return ByteBuffer.allocateDirect(bufferSize);
+		}
+		numPooled.decrementAndGet();
+		return buf;
+	}
+
+	/**
+	 * Gives a buffer back to the pool. The caller must not use it any more.
+	 *
+	 * @param buf A buffer obtained from acquire
+	 */
+	public void release(ByteBuffer buf) {
+		if (buf == null || buf.capacity() != bufferSize) {
+			return;
+		}
+		if (numPooled.incrementAndGet() <= maxPooled) {
+			buf.clear();
+			pooled.offer(buf);
+		} else {
+			numPooled.decrementAndGet();
+		}
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
@@ -0,0 +1,75 @@
+package es.um.redes.nanoFiles.util;
+
+/**
+ * CRC32C of every chunk of a file, for a file split in chunks of chunkSize
+ * bytes (the last one may be shorter). They are computed along with the hash
+ * of the file (see FileHashes), so that a server can send a chunk straight from
+ * the file to the socket and still put its checksum in the header.
+ */
+public class ChunkChecksums {
+
+	private final int chunkSize;
+	private final long fileSize;
+	private final int[] checksums;
+
+	private ChunkChecksums(int chunkSize, long fileSize, int[] checksums) {
+		this.chunkSize = chunkSize;
+		this.fileSize = fileSize;
+		this.checksums = checksums;
+	}
+
+	/**
+	 * Builds the table from the checksums of all the chunks.
+	 *
+	 * @param chunkSize Size (in bytes) of each chunk
+	 * @param fileSize  Size of the file
+	 * @param checksums The CRC32C of each chunk, in order
+	 * @return The table, or null if the number of checksums does not match the
+	 *         file
+	 */
+	public static ChunkChecksums fromChecksums(int chunkSize, long fileSize, int[] checksums) {
+		if (chunkSize <= 0 || checksums.length != numChunks(fileSize, chunkSize)) {
+			return null;
+		}
+		return new ChunkChecksums(chunkSize, fileSize, checksums);
+	}
+
+	/**
+	 * Number of chunks of a file
+	 */
+	public static int numChunks(long fileSize, int chunkSize) {
+		return (int) ((fileSize + chunkSize - 1) / chunkSize);
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	/**
+	 * Returns the checksums of all chunks, in order
+	 */
+	public int[] getChecksums() {
+		return checksums.clone();
+	}
+
+	/**
+	 * Looks up the CRC32C of a region of the file, which is only known if the
+	 * region is exactly one of the chunks.
+	 *
+	 * @param offset Start of the region
+	 * @param length Length of the region
+	 * @return The CRC32C of the region (as an unsigned int), or -1 if it is not a
+	 *         whole chunk
+	 */
+	public long lookup(long offset, int length) {
+		if (offset < 0 || offset >= fileSize || offset % chunkSize != 0
+				|| length != Math.min(chunkSize, fileSize - offset)) {
+			return -1;
+		}
+		return checksums[(int) (offset / chunkSize)] & 0xffffffffL;
+	}
+}
@@ -2,6 +2,9 @@ package es.um.redes.nanoFiles.util;
 
 import java.io.File;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import es.um.redes.nanoFiles.application.NanoFiles;
 
 /**
  * @author rtitos
@@ -18,7 +21,7 @@ public class FileDatabase {
 		if (!theDir.exists()) {
 			theDir.mkdirs();
 		}
-		this.files = FileInfo.loadFileMapFromFolder(new File(sharedFolder));
+		this.files = new ConcurrentHashMap<String, FileInfo>(FileInfo.loadFileMapFromFolder(new File(sharedFolder)));
 		if (files.size() == 0) {
 			System.err.println("*WARNING: No files found in folder " + sharedFolder);
 			files = null;
@@ -41,4 +44,72 @@ public class FileDatabase {
 		}
 		return null;
 	}
+
+	/**
+	 * Returns the hash of a shared file, checking first (size and modification
+	 * time) that the file has not changed since its hash was computed. Only a file
+	 * that actually changed is hashed again (along with its piece tree and chunk
+	 * checksums); its FileInfo is then updated in place.
+	 * 
+	 * @param file A FileInfo obtained from this database
+	 * @return The current hash of the file, or null if it can no longer be read
+	 */
+	public String lookupValidatedHash(FileInfo file) {
+		synchronized (file) {
+			File localFile = new File(file.filePath);
+			long size = localFile.length();
+			long lastModified = localFile.lastModified();
+			if (size == file.fileSize && lastModified == file.lastModified) {
+				return file.fileHash;
+			}
+			if (lastModified == 0) { // The file no longer exists
+				return null;
+			}
+			FileHashes hashes = FileHashes.compute(file.filePath, NanoFiles.PIECE_SIZE, NanoFiles.DEFAULT_CHUNK_SIZE);
+			if (hashes == null) {
+				return null;
+			}
+			String newHash = hashes.getFileHash();
+			if (files != null && files.get(file.fileHash) == file) {
+				files.remove(file.fileHash);
+				files.put(newHash, file);
+			}
+			file.fileHash = newHash;
+			file.pieceTree = hashes.getPieceTree();
+			file.chunkChecksums = hashes.getChunkChecksums();
+			file.fileSize = size;
+			file.lastModified = lastModified;
+			return newHash;
+		}
+	}
+
+	/**
+	 * Returns the Merkle tree of piece hashes of a shared file. The tree is
+	 * computed along with the hash of the file (when the shared folder is scanned,
+	 * or by lookupValidatedHash if the file has changed), so this never reads the
+	 * file.
+	 * 
+	 * @param file     A FileInfo obtained from this database
+	 * @param fileHash The current hash of the file, from lookupValidatedHash
+	 * @return The tree of the file, or null if it is not known
+	 */
+	public MerkleTree lookupPieceTree(FileInfo file, String fileHash) {
+		synchronized (file) {
+			return fileHash.equals(file.fileHash) ? file.pieceTree : null;
+		}
+	}
+
+	/**
+	 * Returns the CRC32C of the chunks of a shared file, computed along with its
+	 * hash, with which its chunks can be sent without reading them.
+	 * 
+	 * @param file     A FileInfo obtained from this database
+	 * @param fileHash The current hash of the file, from lookupValidatedHash
+	 * @return The checksums of the file, or null if they are not known
+	 */
+	public ChunkChecksums lookupChunkChecksums(FileInfo file, String fileHash) {
+		synchronized (file) {
+			return fileHash.equals(file.fileHash) ? file.chunkChecksums : null;
+		}
+	}
 }
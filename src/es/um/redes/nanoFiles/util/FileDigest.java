@@ -19,6 +19,11 @@ public class FileDigest {
 	 */
 	public static final String algorithm = "SHA-1";
 
+	/**
+	 * Size of the buffer used to read files while computing their digest.
+	 */
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
 	/**
 	 * Get size of digests generated by this class
 	 * 
@@ -51,10 +56,11 @@ public class FileDigest {
 	 * Computes file digest for a given file.
 	 * 
 	 * @param filename - the system-dependent file name.
-	 * @return Byte array with resulting file digest.
+	 * @return Hex string with resulting file digest, or null in case of error.
 	 */
 	public static String computeFileChecksumString(String filename) {
-		return FileDigest.getChecksumHexString(computeFileChecksum(filename));
+		byte[] digest = computeFileChecksum(filename);
+		return (digest != null) ? FileDigest.getChecksumHexString(digest) : null;
 	}
 
 	/**
@@ -75,7 +81,7 @@ public class FileDigest {
 		try {
 			fis = new FileInputStream(filename);
 			int numRead;
-			byte[] buffer = new byte[4096];
+			byte[] buffer = new byte[READ_BUFFER_SIZE];
 			do {
 				numRead = fis.read(buffer);
 				if (numRead > 0) {
@@ -95,7 +101,13 @@ public class FileDigest {
 		return md.digest();
 	}
 
-	private static String getChecksumHexString(byte[] digest) {
+	/**
+	 * Converts a digest into the hex string used to identify files
+	 * 
+	 * @param digest The digest bytes
+	 * @return Hex string of the digest
+	 */
+	public static String getChecksumHexString(byte[] digest) {
 		// This bytes[] has bytes in decimal format;
 		// Convert it to hexadecimal format
 		StringBuilder sb = new StringBuilder();
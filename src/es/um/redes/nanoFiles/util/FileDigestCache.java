@@ -0,0 +1,374 @@
+package es.um.redes.nanoFiles.util;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent cache of file digests, stored in the shared folder, so that only
+ * new or modified files need to be hashed again when NanoFiles starts. Each
+ * entry is keyed by the path of the file (relative to the shared folder) and is
+ * only trusted if the size, modification time and file key (device and inode)
+ * of the file still match.
+ * 
+ * The Merkle trees of the pieces of the files and the checksums of their
+ * chunks (see FileHashes) are kept in a second, binary file next to it, and are
+ * only trusted for the file digest, piece size and chunk size they were
+ * computed with.
+ * 
+ * Each cache file is rewritten into a temporary file that is synced to disk and
+ * atomically renamed, and carries a CRC of its contents, so a crash leaves
+ * either the previous or the new cache, never a mix of both. A file modified
+ * within the timestamp granularity of the moment the cache was written is not
+ * trusted, since a later change could keep the same size and mtime.
+ */
+public class FileDigestCache {
+
+	public static final String DIGEST_CACHE_FILENAME = ".nanofiles-digests";
+	public static final String HASHES_CACHE_FILENAME = ".nanofiles-hashes";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String HEADER = "nanofiles-digests 1";
+	private static final String FOOTER = "end";
+	private static final String HASHES_HEADER = "nanofiles-hashes 2";
+
+	/**
+	 * Margin (in ms) for the granularity of modification times of the file system
+	 */
+	private static final long MTIME_GRANULARITY_MS = 2000;
+
+	private final File folder;
+	/**
+	 * Size (in bytes) of the pieces of the trees
+	 */
+	private final int pieceSize;
+	/**
+	 * Size (in bytes) of the chunks whose checksums are kept
+	 */
+	private final int chunkSize;
+
+	/**
+	 * Time at which the loaded cache was written, entries modified after
+	 * (writtenAt - MTIME_GRANULARITY_MS) are not trusted
+	 */
+	private long writtenAt = 0;
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final Map<String, HashEntry> hashEntries = new ConcurrentHashMap<String, HashEntry>();
+	private final Set<String> seen = ConcurrentHashMap.newKeySet();
+	private volatile boolean modified = false;
+
+	private FileDigestCache(File folder, int pieceSize, int chunkSize) {
+		this.folder = folder;
+		this.pieceSize = pieceSize;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Loads the digest cache stored in the given folder. A missing or corrupt
+	 * cache file results in an empty cache.
+	 *
+	 * @param folder    The shared folder
+	 * @param pieceSize Size (in bytes) of the pieces of the Merkle trees
+	 * @param chunkSize Size (in bytes) of the chunks that are checksummed
+	 * @return The digest cache of the folder
+	 */
+	public static FileDigestCache load(File folder, int pieceSize, int chunkSize) {
+		FileDigestCache cache = new FileDigestCache(folder, pieceSize, chunkSize);
+		Path cacheFile = new File(folder, DIGEST_CACHE_FILENAME).toPath();
+		if (Files.exists(cacheFile)) {
+			try {
+				cache.parse(new String(Files.readAllBytes(cacheFile), StandardCharsets.UTF_8));
+			} catch (IOException | RuntimeException e) {
+				System.err.println("Ignoring corrupt digest cache " + cacheFile + ", all files will be hashed");
+				cache.entries.clear();
+				cache.modified = true;
+			}
+		}
+		Path hashesFile = new File(folder, HASHES_CACHE_FILENAME).toPath();
+		if (Files.exists(hashesFile)) {
+			try {
+				cache.parseHashes(Files.readAllBytes(hashesFile));
+			} catch (IOException | RuntimeException e) {
+				System.err.println("Ignoring corrupt hash cache " + hashesFile + ", piece trees and chunk checksums will be computed again");
+				cache.hashEntries.clear();
+				cache.modified = true;
+			}
+		}
+		return cache;
+	}
+
+	private void parse(String contents) throws IOException {
+		int footerStart = contents.lastIndexOf("\n" + FOOTER + " ") + 1;
+		if (!contents.startsWith(HEADER + " ") || footerStart <= 0) {
+			throw new IOException("Malformed digest cache");
+		}
+		String body = contents.substring(0, footerStart);
+		String[] footer = contents.substring(footerStart).trim().split(" ");
+		CRC32 crc = new CRC32();
+		crc.update(body.getBytes(StandardCharsets.UTF_8));
+		if (footer.length != 3 || Long.parseLong(footer[2], 16) != crc.getValue()) {
+			throw new IOException("Digest cache checksum mismatch");
+		}
+
+		BufferedReader reader = new BufferedReader(new StringReader(body));
+		String header = reader.readLine();
+		writtenAt = Long.parseLong(header.substring(HEADER.length() + 1).trim());
+		String line;
+		while ((line = reader.readLine()) != null) {
+			String[] fields = line.split("\t", 5);
+			if (fields.length != 5) {
+				throw new IOException("Malformed digest cache entry");
+			}
+			entries.put(fields[4],
+					new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+		}
+		if (entries.size() != Integer.parseInt(footer[1])) {
+			throw new IOException("Digest cache entry count mismatch");
+		}
+	}
+
+	private void parseHashes(byte[] contents) throws IOException {
+		if (contents.length < Long.BYTES) {
+			throw new IOException("Malformed hash cache");
+		}
+		int bodyLength = contents.length - Long.BYTES;
+		CRC32 crc = new CRC32();
+		crc.update(contents, 0, bodyLength);
+		if (ByteBuffer.wrap(contents, bodyLength, Long.BYTES).getLong() != crc.getValue()) {
+			throw new IOException("Hash cache checksum mismatch");
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents, 0, bodyLength));
+		if (!in.readUTF().equals(HASHES_HEADER)) {
+			throw new IOException("Malformed hash cache");
+		}
+		int numEntries = in.readInt();
+		for (int i = 0; i < numEntries; i++) {
+			String key = in.readUTF();
+			String hash = in.readUTF();
+			int treePieceSize = in.readInt();
+			long fileSize = in.readLong();
+			byte[] leaves = new byte[in.readInt()];
+			in.readFully(leaves);
+			MerkleTree tree = MerkleTree.fromLeaves(treePieceSize, fileSize, leaves);
+			int checksumsChunkSize = in.readInt();
+			int[] checksums = new int[in.readInt()];
+			for (int c = 0; c < checksums.length; c++) {
+				checksums[c] = in.readInt();
+			}
+			ChunkChecksums chunkChecksums = ChunkChecksums.fromChecksums(checksumsChunkSize, fileSize, checksums);
+			if (tree == null || chunkChecksums == null) {
+				throw new IOException("Malformed hash cache entry");
+			}
+			hashEntries.put(key, new HashEntry(hash, tree, chunkChecksums));
+		}
+		if (in.available() != 0) {
+			throw new IOException("Malformed hash cache");
+		}
+	}
+
+	/**
+	 * Returns true for the files used to store the cache itself, which must not be
+	 * shared
+	 */
+	public static boolean isCacheFile(String fileName) {
+		return fileName.equals(DIGEST_CACHE_FILENAME) || fileName.equals(DIGEST_CACHE_FILENAME + TEMP_SUFFIX)
+				|| fileName.equals(HASHES_CACHE_FILENAME) || fileName.equals(HASHES_CACHE_FILENAME + TEMP_SUFFIX);
+	}
+
+	/**
+	 * Obtains the digest, piece tree and chunk checksums of a file, from the cache
+	 * if the file has not changed since its entry was recorded, or reading the
+	 * file otherwise.
+	 *
+	 * @param file  The file
+	 * @param attrs The attributes of the file, read before hashing it
+	 * @return The hashes of the file, or null if it cannot be read
+	 */
+	public FileHashes getFileHashes(File file, BasicFileAttributes attrs) {
+		String key = keyOf(file);
+		long size = attrs.size();
+		long lastModified = attrs.lastModifiedTime().toMillis();
+		String fileKey = String.valueOf(attrs.fileKey());
+		seen.add(key);
+
+		Entry entry = entries.get(key);
+		HashEntry hashEntry = hashEntries.get(key);
+		if (entry != null && entry.size == size && entry.lastModified == lastModified
+				&& entry.fileKey.equals(fileKey) && lastModified < writtenAt - MTIME_GRANULARITY_MS
+				&& hashEntry != null && hashEntry.hash.equals(entry.hash)
+				&& hashEntry.chunkChecksums.getFileSize() == size
+				&& hashEntry.chunkChecksums.getChunkSize() == chunkSize
+				&& hashEntry.tree.getPieceSize() == pieceSize) {
+			return new FileHashes(entry.hash, hashEntry.tree, hashEntry.chunkChecksums);
+		}
+		FileHashes hashes = FileHashes.compute(file.getPath(), pieceSize, chunkSize);
+		if (hashes != null) {
+			entries.put(key, new Entry(hashes.getFileHash(), size, lastModified, fileKey));
+			hashEntries.put(key,
+					new HashEntry(hashes.getFileHash(), hashes.getPieceTree(), hashes.getChunkChecksums()));
+			modified = true;
+		}
+		return hashes;
+	}
+
+	private String keyOf(File file) {
+		return folder.toPath().toAbsolutePath().normalize().relativize(file.toPath().toAbsolutePath().normalize())
+				.toString();
+	}
+
+	/**
+	 * Writes the cache back to the shared folder, dropping the entries of files
+	 * that were not found in the last scan.
+	 */
+	public void save() {
+		boolean removed = entries.keySet().retainAll(seen);
+		removed |= hashEntries.keySet().retainAll(seen);
+		if (!modified && !removed && writtenAt != 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		StringBuilder body = new StringBuilder();
+		body.append(HEADER).append(' ').append(now).append('\n');
+		int numEntries = 0;
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			if (e.getKey().indexOf('\n') >= 0) {
+				continue; // No representable in the cache file, it will be hashed again
+			}
+			numEntries++;
+			Entry entry = e.getValue();
+			body.append(entry.hash).append('\t').append(entry.size).append('\t').append(entry.lastModified)
+					.append('\t').append(entry.fileKey).append('\t').append(e.getKey()).append('\n');
+		}
+		byte[] bodyBytes = body.toString().getBytes(StandardCharsets.UTF_8);
+		CRC32 crc = new CRC32();
+		crc.update(bodyBytes);
+		byte[] footer = (FOOTER + " " + numEntries + " " + Long.toHexString(crc.getValue()) + "\n")
+				.getBytes(StandardCharsets.UTF_8);
+
+		// The hashes go first: a digest entry without them only costs hashing the file again
+		if (writeAtomically(HASHES_CACHE_FILENAME, hashesBytes())
+				&& writeAtomically(DIGEST_CACHE_FILENAME, bodyBytes, footer)) {
+			writtenAt = now;
+			modified = false;
+		}
+	}
+
+	private byte[] hashesBytes() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeUTF(HASHES_HEADER);
+			ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+			DataOutputStream entryOut = new DataOutputStream(entryBytes);
+			int numEntries = 0;
+			for (Map.Entry<String, HashEntry> e : hashEntries.entrySet()) {
+				MerkleTree tree = e.getValue().tree;
+				byte[] leaves = tree.getLeaves(0, tree.getNumPieces());
+				try {
+					entryOut.writeUTF(e.getKey()); // Fails before writing anything if the key is too long
+				} catch (UTFDataFormatException tooLong) {
+					continue; // No representable in the cache file, it will be hashed again
+				}
+				entryOut.writeUTF(e.getValue().hash);
+				entryOut.writeInt(tree.getPieceSize());
+				entryOut.writeLong(tree.getFileSize());
+				entryOut.writeInt(leaves.length);
+				entryOut.write(leaves);
+				ChunkChecksums chunkChecksums = e.getValue().chunkChecksums;
+				int[] checksums = chunkChecksums.getChecksums();
+				entryOut.writeInt(chunkChecksums.getChunkSize());
+				entryOut.writeInt(checksums.length);
+				for (int checksum : checksums) {
+					entryOut.writeInt(checksum);
+				}
+				numEntries++;
+			}
+			out.writeInt(numEntries);
+			entryBytes.writeTo(out);
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // Not thrown when writing to memory
+		}
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		ByteBuffer footer = ByteBuffer.allocate(Long.BYTES).putLong(crc.getValue());
+		bytes.writeBytes(footer.array());
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Writes a cache file into a temporary file that is synced to disk and then
+	 * atomically renamed
+	 *
+	 * @return False if the file could not be written
+	 */
+	private boolean writeAtomically(String fileName, byte[]... parts) {
+		Path cacheFile = new File(folder, fileName).toPath();
+		Path tempFile = new File(folder, fileName + TEMP_SUFFIX).toPath();
+		try {
+			try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				ByteBuffer[] buffers = new ByteBuffer[parts.length];
+				for (int i = 0; i < parts.length; i++) {
+					buffers[i] = ByteBuffer.wrap(parts[i]);
+				}
+				while (buffers[buffers.length - 1].hasRemaining()) {
+					channel.write(buffers);
+				}
+				channel.force(true);
+			}
+			try {
+				Files.move(tempFile, cacheFile, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+			}
+			return true;
+		} catch (IOException e) {
+			System.err.println("Cannot write digest cache " + cacheFile + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	private static class Entry {
+		private final String hash;
+		private final long size;
+		private final long lastModified;
+		private final String fileKey;
+
+		private Entry(String hash, long size, long lastModified, String fileKey) {
+			this.hash = hash;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.fileKey = fileKey;
+		}
+	}
+
+	private static class HashEntry {
+		private final String hash;
+		private final MerkleTree tree;
+		private final ChunkChecksums chunkChecksums;
+
+		private HashEntry(String hash, MerkleTree tree, ChunkChecksums chunkChecksums) {
+			this.hash = hash;
+			this.tree = tree;
+			this.chunkChecksums = chunkChecksums;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package es.um.redes.nanoFiles.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+
+/**
+ * Hashes of a shared file computed in a single read: the digest that
+ * identifies the file, the Merkle tree of its pieces and the CRC32C of each of
+ * its chunks. They are computed when the shared folder is scanned (and kept in
+ * the FileDigestCache), so that serving a file never has to read it whole, nor
+ * read its chunks into memory to checksum them.
+ */
+public class FileHashes {
+
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private final String fileHash;
+	private final MerkleTree pieceTree;
+	private final ChunkChecksums chunkChecksums;
+
+	FileHashes(String fileHash, MerkleTree pieceTree, ChunkChecksums chunkChecksums) {
+		this.fileHash = fileHash;
+		this.pieceTree = pieceTree;
+		this.chunkChecksums = chunkChecksums;
+	}
+
+	/**
+	 * Reads a file and computes its hashes.
+	 *
+	 * @param filePath  The file
+	 * @param pieceSize Size (in bytes) of the pieces of the tree
+	 * @param chunkSize Size (in bytes) of the chunks that are checksummed
+	 * @return The hashes of the file, or null if it cannot be read
+	 */
+	public static FileHashes compute(String filePath, int pieceSize, int chunkSize) {
+		MessageDigest fileDigest;
+		MessageDigest pieceDigest;
+		try {
+			fileDigest = MessageDigest.getInstance(FileDigest.algorithm);
+			pieceDigest = MessageDigest.getInstance(FileDigest.algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+			return null;
+		}
+		CRC32C crc = new CRC32C();
+		try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+			long fileSize = channel.size();
+			byte[] leaves = new byte[MerkleTree.numPieces(fileSize, pieceSize) * MerkleTree.HASH_LENGTH];
+			int[] checksums = new int[ChunkChecksums.numChunks(fileSize, chunkSize)];
+			ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+			long position = 0;
+			int piece = 0;
+			long pieceEnd = Math.min(pieceSize, fileSize);
+			int chunk = 0;
+			long chunkEnd = Math.min(chunkSize, fileSize);
+			MerkleTree.beginLeaf(pieceDigest);
+			while (position < fileSize) {
+				// Each read stops at the end of the current piece and of the current chunk
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), Math.min(pieceEnd, chunkEnd) - position));
+				int read = channel.read(buffer, position);
+				if (read < 0) {
+					return null; // The file has shrunk while being hashed
+				}
+				buffer.flip();
+				fileDigest.update(buffer.duplicate());
+				crc.update(buffer.duplicate());
+				pieceDigest.update(buffer);
+				position += read;
+				if (position == chunkEnd) {
+					checksums[chunk++] = (int) crc.getValue();
+					crc.reset();
+					chunkEnd = Math.min(chunkEnd + chunkSize, fileSize);
+				}
+				if (position == pieceEnd) {
+					pieceDigest.digest(leaves, piece++ * MerkleTree.HASH_LENGTH, MerkleTree.HASH_LENGTH);
+					MerkleTree.beginLeaf(pieceDigest);
+					pieceEnd = Math.min(pieceEnd + pieceSize, fileSize);
+				}
+			}
+			return new FileHashes(FileDigest.getChecksumHexString(fileDigest.digest()),
+					MerkleTree.fromLeaves(pieceSize, fileSize, leaves),
+					ChunkChecksums.fromChecksums(chunkSize, fileSize, checksums));
+		} catch (IOException | DigestException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return Hex string of the digest that identifies the file
+	 */
+	public String getFileHash() {
+		return fileHash;
+	}
+
+	/**
+	 * @return The Merkle tree of the pieces of the file
+	 */
+	public MerkleTree getPieceTree() {
+		return pieceTree;
+	}
+
+	/**
+	 * @return The CRC32C of the chunks of the file
+	 */
+	public ChunkChecksums getChunkChecksums() {
+		return chunkChecksums;
+	}
+}
@@ -1,13 +1,23 @@
 package es.um.redes.nanoFiles.util;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
 
+import es.um.redes.nanoFiles.application.NanoFiles;
 import es.um.redes.nanoFiles.shell.NFShell;
 
 /**
@@ -21,6 +31,21 @@ public class FileInfo {
 	public String fileName;
 	public String filePath;
 	public long fileSize = -1;
+	/**
+	 * Fecha de modificación del fichero local cuando se calculó fileHash (-1 si no
+	 * se conoce, p.ej. ficheros remotos)
+	 */
+	public long lastModified = -1;
+	/**
+	 * Árbol de Merkle de las piezas del fichero local, calculado junto con
+	 * fileHash al escanear la carpeta compartida (null si no se conoce)
+	 */
+	public MerkleTree pieceTree = null;
+	/**
+	 * CRC32C de los chunks del fichero local, calculados junto con fileHash (null
+	 * si no se conocen)
+	 */
+	public ChunkChecksums chunkChecksums = null;
 
 	public FileInfo(String hash, String name, long size, String path) {
 		fileHash = hash;
@@ -29,6 +54,11 @@ public class FileInfo {
 		filePath = path;
 	}
 
+	public FileInfo(String hash, String name, long size, String path, long modified) {
+		this(hash, name, size, path);
+		lastModified = modified;
+	}
+
 	public FileInfo() {
 	}
 
@@ -121,39 +151,164 @@ public class FileInfo {
 	 */
 	protected static Map<String, FileInfo> loadFileMapFromFolder(final File folder) {
 		Map<String, FileInfo> files = new HashMap<String, FileInfo>();
-		scanFolderRecursive(folder, files);
+		// Sólo se calcula el hash de los ficheros nuevos o modificados desde la última vez
+		FileDigestCache digestCache = FileDigestCache.load(folder, NanoFiles.PIECE_SIZE, NanoFiles.DEFAULT_CHUNK_SIZE);
+		if (NanoFiles.SCAN_PARALLELISM > 1) {
+			if (!scanFolderParallel(folder, files, digestCache, NanoFiles.SCAN_PARALLELISM)) {
+				// Con un escaneo incompleto la caché perdería las entradas de los ficheros no recorridos
+				return files;
+			}
+		} else {
+			scanFolderRecursive(folder, files, digestCache);
+		}
+		digestCache.save();
 		return files;
 	}
 
-	private static void scanFolderRecursive(final File folder, Map<String, FileInfo> files) {
+	private static boolean checkFolder(final File folder) {
 		if (folder.exists() == false) {
 			System.err.println("scanFolder cannot find folder " + folder.getPath());
-			return;
+			return false;
 		}
 		if (folder.canRead() == false) {
 			System.err.println("scanFolder cannot access folder " + folder.getPath());
+			return false;
+		}
+		return true;
+	}
+
+	private static void scanFolderRecursive(final File folder, Map<String, FileInfo> files,
+			FileDigestCache digestCache) {
+		if (!checkFolder(folder)) {
 			return;
 		}
 
 		for (final File fileEntry : folder.listFiles()) {
 			if (fileEntry.isDirectory()) {
-				scanFolderRecursive(fileEntry, files);
-			} else {
-				String fileName = fileEntry.getName();
-				String filePath = fileEntry.getPath();
-				String fileHash = FileDigest.computeFileChecksumString(filePath);
-				long fileSize = fileEntry.length();
-				if (fileSize > 0) {
-					files.put(fileHash, new FileInfo(fileHash, fileName, fileSize, filePath));
-				} else {
-					if (fileName.equals(NFShell.FILENAME_TEST_SHELL)) {
-						NFShell.enableVerboseShell();
-						System.out.println("[Enabling verbose shell]");
-					} else {
-						System.out.println("Ignoring empty file found in shared folder: " + filePath);
-					}
+				scanFolderRecursive(fileEntry, files, digestCache);
+			} else if (!FileDigestCache.isCacheFile(fileEntry.getName())) {
+				addScannedFile(files, scanFile(fileEntry, digestCache));
+			}
+		}
+	}
+
+	/**
+	 * Versión paralela de scanFolderRecursive: un ForkJoinPool recorre los
+	 * subdirectorios en paralelo y un pool acotado de hilos calcula los hash. El
+	 * resultado se inserta en el mismo orden en que lo haría el recorrido
+	 * secuencial, de modo que el Map obtenido es idéntico.
+	 *
+	 * @return Falso si el escaneo no se ha completado
+	 */
+	private static boolean scanFolderParallel(final File folder, Map<String, FileInfo> files,
+			FileDigestCache digestCache, int parallelism) {
+		ForkJoinPool walkerPool = new ForkJoinPool(parallelism);
+		ExecutorService hashPool = Executors.newFixedThreadPool(parallelism);
+		try {
+			List<File> foundFiles = walkerPool.invoke(new ScanFolderTask(folder));
+			List<Future<FileInfo>> scannedFiles = new ArrayList<Future<FileInfo>>(foundFiles.size());
+			for (File fileEntry : foundFiles) {
+				scannedFiles.add(hashPool.submit(() -> scanFile(fileEntry, digestCache)));
+			}
+			for (Future<FileInfo> scannedFile : scannedFiles) {
+				addScannedFile(files, scannedFile.get());
+			}
+			return true;
+		} catch (InterruptedException | ExecutionException | RuntimeException e) {
+			// invoke relanza las excepciones de las tareas del recorrido
+			System.err.println("scanFolder failed to scan folder " + folder.getPath() + ": " + e.getMessage());
+			return false;
+		} finally {
+			walkerPool.shutdown();
+			hashPool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Tarea del ForkJoinPool que devuelve, en orden de recorrido, los ficheros
+	 * (no directorios) de una carpeta y de sus subcarpetas
+	 */
+	private static class ScanFolderTask extends RecursiveTask<List<File>> {
+		private static final long serialVersionUID = 1L;
+
+		private final File folder;
+
+		private ScanFolderTask(File folder) {
+			this.folder = folder;
+		}
+
+		@Override
+		protected List<File> compute() {
+			List<File> foundFiles = new ArrayList<File>();
+			if (!checkFolder(folder)) {
+				return foundFiles;
+			}
+			File[] entries = folder.listFiles();
+			List<ScanFolderTask> subfolders = new ArrayList<ScanFolderTask>();
+			for (final File fileEntry : entries) {
+				if (fileEntry.isDirectory()) {
+					ScanFolderTask subfolder = new ScanFolderTask(fileEntry);
+					subfolder.fork();
+					subfolders.add(subfolder);
 				}
 			}
+			int nextSubfolder = 0;
+			for (final File fileEntry : entries) {
+				if (fileEntry.isDirectory()) {
+					foundFiles.addAll(subfolders.get(nextSubfolder++).join());
+				} else if (!FileDigestCache.isCacheFile(fileEntry.getName())) {
+					foundFiles.add(fileEntry);
+				}
+			}
+			return foundFiles;
+		}
+	}
+
+	/**
+	 * Obtiene los metadatos de un fichero de la carpeta compartida, calculando su
+	 * hash, su árbol de piezas y los CRC32C de sus chunks si el fichero no está
+	 * vacío
+	 * 
+	 * @return Los metadatos del fichero (con hash nulo si está vacío o no se ha
+	 *         podido leer), o null si no se puede acceder al fichero
+	 */
+	private static FileInfo scanFile(final File fileEntry, FileDigestCache digestCache) {
+		String filePath = fileEntry.getPath();
+		// Tamaño y fecha se leen antes del hash, asi un cambio durante el calculo se detecta despues
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(fileEntry.toPath(), BasicFileAttributes.class);
+		} catch (IOException e) {
+			System.err.println("scanFolder cannot access file " + filePath);
+			return null;
+		}
+		long fileSize = attrs.size();
+		long lastModified = attrs.lastModifiedTime().toMillis();
+		FileHashes hashes = (fileSize > 0) ? digestCache.getFileHashes(fileEntry, attrs) : null;
+		FileInfo fileInfo = new FileInfo((hashes != null) ? hashes.getFileHash() : null, fileEntry.getName(),
+				fileSize, filePath, lastModified);
+		fileInfo.pieceTree = (hashes != null) ? hashes.getPieceTree() : null;
+		fileInfo.chunkChecksums = (hashes != null) ? hashes.getChunkChecksums() : null;
+		return fileInfo;
+	}
+
+	private static void addScannedFile(Map<String, FileInfo> files, FileInfo scannedFile) {
+		if (scannedFile == null) {
+			return;
+		}
+		String fileName = scannedFile.fileName;
+		String filePath = scannedFile.filePath;
+		if (scannedFile.fileHash == null && scannedFile.fileSize > 0) {
+			System.err.println("scanFolder cannot read file " + filePath);
+		} else if (scannedFile.fileSize > 0) {
+			files.put(scannedFile.fileHash, scannedFile);
+		} else {
+			if (fileName.equals(NFShell.FILENAME_TEST_SHELL)) {
+				NFShell.enableVerboseShell();
+				System.out.println("[Enabling verbose shell]");
+			} else {
+				System.out.println("Ignoring empty file found in shared folder: " + filePath);
+			}
 		}
 	}
 
@@ -170,6 +325,25 @@ public class FileInfo {
 		return result;
 	}
 
+	/**
+	 * Among files whose names contain a substring, finds the one whose name is
+	 * exactly that string, so that a full file name is never ambiguous
+	 *
+	 * @return The file, or null if no file (or more than one) has that name
+	 */
+	public static FileInfo lookupExactFilename(FileInfo[] files, String filename) {
+		FileInfo exact = null;
+		for (FileInfo file : files) {
+			if (file.fileName.equalsIgnoreCase(filename)) {
+				if (exact != null) {
+					return null;
+				}
+				exact = file;
+			}
+		}
+		return exact;
+	}
+
 	@Override
 	public boolean equals(Object obj) {
 		if (this == obj) {
@@ -0,0 +1,178 @@
+package es.um.redes.nanoFiles.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Merkle tree of the piece hashes of a file. The file is split in pieces of
+ * pieceSize bytes (the last one may be shorter), each piece is hashed on its
+ * own (the leaves) and the leaves are combined pairwise up to a single root.
+ *
+ * A downloader that knows the root can check the list of leaves received from
+ * any peer, and then check every piece as soon as it has all of its bytes,
+ * instead of waiting for the whole file. As in RFC 6962, leaves and inner nodes
+ * are hashed with different prefixes so that one cannot be passed off as the
+ * other, and an odd node at the end of a level is promoted unchanged.
+ */
+public class MerkleTree {
+
+	/**
+	 * Size (in bytes) of each hash of the tree
+	 */
+	public static final int HASH_LENGTH = FileDigest.getFileDigestSize();
+	/**
+	 * Largest number of pieces a downloader accepts for a file (80 MB of leaves
+	 * with SHA-1), so that a bogus piece size or file size from a peer cannot
+	 * make it allocate an arbitrarily large array
+	 */
+	public static final int MAX_PIECES = 1 << 22;
+
+	private static final byte LEAF_PREFIX = 0;
+	private static final byte NODE_PREFIX = 1;
+
+	private final int pieceSize;
+	private final long fileSize;
+	/**
+	 * Hashes of all pieces, one after another
+	 */
+	private final byte[] leaves;
+	private final byte[] root;
+
+	private MerkleTree(int pieceSize, long fileSize, byte[] leaves) {
+		this.pieceSize = pieceSize;
+		this.fileSize = fileSize;
+		this.leaves = leaves;
+		this.root = computeRoot(leaves);
+	}
+
+	/**
+	 * Builds the tree from the piece hashes of a file (see FileHashes) or received
+	 * from a peer. In the latter case the caller must check that getRoot matches
+	 * the root it trusts before using the tree.
+	 *
+	 * @param pieceSize Size (in bytes) of each piece
+	 * @param fileSize  Size of the file
+	 * @param leaves    The hashes of all the pieces, one after another
+	 * @return The tree, or null if the number of leaves does not match the file
+	 */
+	public static MerkleTree fromLeaves(int pieceSize, long fileSize, byte[] leaves) {
+		if (pieceSize <= 0 || leaves.length != numPieces(fileSize, pieceSize) * HASH_LENGTH) {
+			return null;
+		}
+		return new MerkleTree(pieceSize, fileSize, leaves);
+	}
+
+	/**
+	 * Number of pieces of a file
+	 */
+	public static int numPieces(long fileSize, int pieceSize) {
+		return (int) ((fileSize + pieceSize - 1) / pieceSize);
+	}
+
+	private static int pieceLength(long fileSize, int pieceSize, int piece) {
+		return (int) Math.min(pieceSize, fileSize - (long) piece * pieceSize);
+	}
+
+	public int getPieceSize() {
+		return pieceSize;
+	}
+
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	public int getNumPieces() {
+		return leaves.length / HASH_LENGTH;
+	}
+
+	public byte[] getRoot() {
+		return root.clone();
+	}
+
+	/**
+	 * Returns the hashes of count consecutive pieces, one after another
+	 */
+	public byte[] getLeaves(int firstPiece, int count) {
+		return Arrays.copyOfRange(leaves, firstPiece * HASH_LENGTH, (firstPiece + count) * HASH_LENGTH);
+	}
+
+	/**
+	 * Checks a piece of the file against its hash in the tree.
+	 *
+	 * @param piece   Index of the piece
+	 * @param channel The (partially) downloaded file
+	 * @param buffer  Scratch buffer used to read the file
+	 * @return True if the piece is intact
+	 */
+	public boolean verifyPiece(int piece, FileChannel channel, ByteBuffer buffer) throws IOException {
+		byte[] hash = hashPiece(newDigest(), channel, buffer, (long) piece * pieceSize,
+				pieceLength(fileSize, pieceSize, piece));
+		return hash != null && Arrays.equals(hash, 0, HASH_LENGTH, leaves, piece * HASH_LENGTH,
+				(piece + 1) * HASH_LENGTH);
+	}
+
+	private static byte[] hashPiece(MessageDigest md, FileChannel channel, ByteBuffer buffer, long offset,
+			int length) throws IOException {
+		beginLeaf(md);
+		long position = offset;
+		long end = offset + length;
+		while (position < end) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), end - position));
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				return null;
+			}
+			buffer.flip();
+			md.update(buffer);
+			position += read;
+		}
+		return md.digest();
+	}
+
+	/**
+	 * Prepares a digest to hash the contents of a piece (a leaf of the tree)
+	 */
+	static void beginLeaf(MessageDigest md) {
+		md.reset();
+		md.update(LEAF_PREFIX);
+	}
+
+	private static byte[] computeRoot(byte[] leaves) {
+		MessageDigest md = newDigest();
+		int numNodes = leaves.length / HASH_LENGTH;
+		if (numNodes == 0) {
+			return md.digest(new byte[] { LEAF_PREFIX });
+		}
+		byte[] level = leaves;
+		while (numNodes > 1) {
+			int numParents = (numNodes + 1) / 2;
+			byte[] parents = new byte[numParents * HASH_LENGTH];
+			for (int i = 0; i < numParents; i++) {
+				int left = 2 * i;
+				if (left + 1 < numNodes) {
+					md.update(NODE_PREFIX);
+					md.update(level, left * HASH_LENGTH, 2 * HASH_LENGTH);
+					System.arraycopy(md.digest(), 0, parents, i * HASH_LENGTH, HASH_LENGTH);
+				} else {
+					System.arraycopy(level, left * HASH_LENGTH, parents, i * HASH_LENGTH, HASH_LENGTH);
+				}
+			}
+			level = parents;
+			numNodes = numParents;
+		}
+		return Arrays.copyOf(level, HASH_LENGTH);
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(FileDigest.algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
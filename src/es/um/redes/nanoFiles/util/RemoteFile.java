@@ -0,0 +1,29 @@
+package es.um.redes.nanoFiles.util;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A file published in the directory together with the servers that share it,
+ * as returned by a request_matching_files query.
+ */
+public class RemoteFile {
+	public final FileInfo file;
+	public final InetSocketAddress[] servers;
+
+	public RemoteFile(FileInfo file, InetSocketAddress[] servers) {
+		this.file = file;
+		this.servers = servers;
+	}
+
+	public String getFileName() {
+		return file.getFileName();
+	}
+
+	public String getFileHash() {
+		return file.getFileHash();
+	}
+
+	public long getFileSize() {
+		return file.getFileSize();
+	}
+}